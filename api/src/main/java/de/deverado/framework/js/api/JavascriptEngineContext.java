@@ -4,7 +4,10 @@ package de.deverado.framework.js.api;/*
 
 import com.google.common.io.CharSource;
 
+import javax.annotation.Nullable;
+
 import java.util.LinkedHashMap;
+import java.util.List;
 
 public interface JavascriptEngineContext {
 
@@ -13,6 +16,43 @@ public interface JavascriptEngineContext {
      */
     Object invokeFunction(String functionName, Object... jsCompatibleArgs);
 
+    /**
+     * Like {@link #invokeFunction(String, Object...)}, but the result is converted like javascript's Number() does
+     * and not boxed. Use for hot numeric functions.
+     * @return NaN for undefined and non-numeric results.
+     */
+    double invokeFunctionAsDouble(String functionName, Object... jsCompatibleArgs);
+
+    /**
+     * Like {@link #invokeFunctionAsDouble(String, Object...)}, with the result truncated to a long.
+     * @return 0 for NaN.
+     */
+    long invokeFunctionAsLong(String functionName, Object... jsCompatibleArgs);
+
+    /**
+     * Like {@link #invokeFunction(String, Object...)}, but returns the javascript truthiness of the result.
+     */
+    boolean invokeFunctionAsBoolean(String functionName, Object... jsCompatibleArgs);
+
+    /**
+     * Like {@link #invokeFunction(String, Object...)}, but the result is converted like javascript's String() does.
+     * @return null only if the function returned null.
+     */
+    @Nullable
+    String invokeFunctionAsString(String functionName, Object... jsCompatibleArgs);
+
+    /**
+     * Converts value into java structures that don't reference the engine, so other threads can read it without
+     * calling into the engine: objects become unmodifiable Maps of their own enumerable properties, arrays
+     * unmodifiable Lists, strings Strings, undefined null, dates {@link java.time.Instant}s. Functions are left
+     * out like JSON.stringify does. Lists, Maps and {@link JavascriptInvocationResult}s are copied with their
+     * elements converted, other java objects are kept.
+     * @param value e.g. a result of {@link #invokeFunction(String, Object...)}.
+     * @throws IllegalArgumentException if value is a function or contains a cycle.
+     */
+    @Nullable
+    Object detach(@Nullable Object value);
+
     /**
      * Should provide much better performance than eval.
      * @param scriptObject obtained as return value from
@@ -25,6 +65,36 @@ public interface JavascriptEngineContext {
      */
     Object invokeMethod(Object scriptObject, String methodName, Object... jsCompatibleArgs);
 
+    /**
+     * Invokes the function once per element of argsList, acquiring the engine only once for all calls. Use for
+     * bulk work to save the per call overhead of {@link #invokeFunction(String, Object...)}.
+     * @param argsList each element is the args array of one call.
+     * @return one result per element of argsList, in order. A failing call doesn't stop the batch.
+     */
+    List<JavascriptInvocationResult> invokeFunctionBatch(String functionName, List<Object[]> argsList);
+
+    /**
+     * Batch variant of {@link #invokeMethod(Object, String, Object...)}, see
+     * {@link #invokeFunctionBatch(String, List)}.
+     */
+    List<JavascriptInvocationResult> invokeMethodBatch(Object scriptObject, String methodName,
+                                                       List<Object[]> argsList);
+
+    /**
+     * Resolves a function once for repeated calls, see {@link JavascriptFunctionHandle}.
+     * @param functionPath a global function name or a property path to a function like <code>a.b[4].c</code> or
+     *                     <code>a['b'].c</code>. Resolved by member access, not evaluated.
+     * @throws IllegalArgumentException if the path is malformed or doesn't lead to a function.
+     */
+    JavascriptFunctionHandle getFunctionHandle(String functionPath);
+
+    /**
+     * Like {@link #getScriptObject(String)} without eval, resolved once, see {@link ScriptObjectHandle}.
+     * @param objectPath property path like <code>a.b[4].c</code>, see {@link #getFunctionHandle(String)}.
+     * @throws IllegalArgumentException if the path is malformed or doesn't lead to an object.
+     */
+    ScriptObjectHandle getScriptObjectHandle(String objectPath);
+
     /**
      * Slow, uses eval, an alias to eval.
      * @param scriptCodeReturningObject code like 'someObject.somePropertyName[4].anotherProperty .
@@ -0,0 +1,31 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+
+/**
+ * A function resolved once by {@link JavascriptEngineContext#getFunctionHandle(String)}, called without looking
+ * it up again. Not thread safe beyond what its context guarantees.
+ */
+public interface JavascriptFunctionHandle {
+
+    /**
+     * @return the path the function was resolved with.
+     */
+    String getPath();
+
+    /**
+     * @return false once an object along the path was reassigned or the engine was replaced. Checked on each call,
+     * so a reassignment is noticed with the next call.
+     */
+    boolean isValid();
+
+    /**
+     * Calls the function with the object it was found on as this (the global for global functions).
+     * @return result like {@link JavascriptEngineContext#invokeFunction(String, Object...)} returns it.
+     * @throws IllegalStateException if the handle isn't valid anymore, resolve the path again.
+     */
+    @Nullable
+    Object invoke(Object... jsCompatibleArgs);
+}
@@ -0,0 +1,61 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+/**
+ * Snapshot of the latencies of one function, see {@link JmxJavascriptMetrics#getFunctionStats()}. Latencies are
+ * in microseconds, percentiles exact to a factor of two (see {@link JavascriptLatencyHistogram}).
+ */
+public final class JavascriptFunctionStats {
+
+    private final long count;
+
+    private final long errorCount;
+
+    private final long meanMicros;
+
+    private final long p50Micros;
+
+    private final long p99Micros;
+
+    private final long maxMicros;
+
+    JavascriptFunctionStats(JavascriptLatencyHistogram latencies, long errorCount) {
+        this.count = latencies.getCount();
+        this.errorCount = errorCount;
+        this.meanMicros = latencies.getMeanNanos() / 1000;
+        this.p50Micros = latencies.getQuantileNanos(0.5) / 1000;
+        this.p99Micros = latencies.getQuantileNanos(0.99) / 1000;
+        this.maxMicros = latencies.getMaxNanos() / 1000;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "JavascriptFunctionStats(count " + count + ", errors " + errorCount + ", mean " + meanMicros +
+                " us, p50 " + p50Micros + " us, p99 " + p99Micros + " us, max " + maxMicros + " us)";
+    }
+}
@@ -0,0 +1,69 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of one invocation in a batch, see
+ * {@link JavascriptEngineContext#invokeFunctionBatch(String, java.util.List)}.
+ */
+public final class JavascriptInvocationResult {
+
+    private final Object value;
+
+    private final Throwable error;
+
+    private JavascriptInvocationResult(@Nullable Object value, @Nullable Throwable error) {
+        this.value = value;
+        this.error = error;
+    }
+
+    public static JavascriptInvocationResult success(@Nullable Object value) {
+        return new JavascriptInvocationResult(value, null);
+    }
+
+    public static JavascriptInvocationResult failure(Throwable error) {
+        return new JavascriptInvocationResult(null, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return return value of the invocation, null if it failed.
+     */
+    @Nullable
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * @return error of the invocation, null if it succeeded.
+     */
+    @Nullable
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return return value of the invocation
+     * @throws RuntimeException wrapping the error if the invocation failed.
+     */
+    @Nullable
+    public Object getValueOrThrow() {
+        if (error != null) {
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            throw new RuntimeException(error);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "success: " + value : "failure: " + error;
+    }
+}
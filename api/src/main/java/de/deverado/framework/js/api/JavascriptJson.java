@@ -0,0 +1,434 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal JSON support for the JSON boundary mode of the engine implementations: serializes java values for
+ * JSON.parse and streams JSON.stringify output into a {@link JavascriptJsonConsumer}.
+ * <p>
+ *     JSON compatible are null, Strings and other CharSequences, Characters, Booleans, Numbers, enums (by name),
+ *     Maps (keys converted with String.valueOf), Iterables, arrays and {@link #raw(String)}. Non-finite numbers
+ *     become null like in JSON.stringify. Like there cycles fail.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public final class JavascriptJson {
+
+    private JavascriptJson() {
+    }
+
+    /**
+     * @param json inserted as it is by the serializer, e.g. a request body that is JSON already. Not validated.
+     */
+    public static Raw raw(String json) {
+        Preconditions.checkNotNull(json, "json");
+        return new Raw(json);
+    }
+
+    /**
+     * @throws IllegalArgumentException if value or one of its elements isn't JSON compatible or value contains a
+     * cycle.
+     */
+    public static String toJson(@Nullable Object value) {
+        StringBuilder result = new StringBuilder();
+        appendJson(result, value);
+        return result.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if value or one of its elements isn't JSON compatible or value contains a
+     * cycle.
+     */
+    public static void appendJson(StringBuilder out, @Nullable Object value) {
+        appendJson(out, value, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    /**
+     * @param inProgress containers being serialized, a container found in it again is a cycle.
+     */
+    private static void appendJson(StringBuilder out, @Nullable Object value, Set<Object> inProgress) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Raw) {
+            out.append(((Raw) value).json);
+        } else if (value instanceof CharSequence || value instanceof Character) {
+            appendQuoted(out, value.toString());
+        } else if (value instanceof Boolean) {
+            out.append(value.toString());
+        } else if (value instanceof Number) {
+            appendNumber(out, (Number) value);
+        } else if (value instanceof Map || value instanceof Iterable || value.getClass().isArray()) {
+            if (!inProgress.add(value)) {
+                throw new IllegalArgumentException("Not JSON compatible, contains a cycle: " +
+                        value.getClass().getName());
+            }
+            appendContainer(out, value, inProgress);
+            inProgress.remove(value);
+        } else if (value instanceof Enum) {
+            appendQuoted(out, ((Enum<?>) value).name());
+        } else {
+            throw new IllegalArgumentException("Not JSON compatible: " + value.getClass().getName());
+        }
+    }
+
+    private static void appendContainer(StringBuilder out, Object value, Set<Object> inProgress) {
+        if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendQuoted(out, String.valueOf(e.getKey()));
+                out.append(':');
+                appendJson(out, e.getValue(), inProgress);
+            }
+            out.append('}');
+        } else if (value instanceof Iterable) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (Iterable<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendJson(out, element, inProgress);
+            }
+            out.append(']');
+        } else {
+            out.append('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendJson(out, Array.get(value, i), inProgress);
+            }
+            out.append(']');
+        }
+    }
+
+    private static void appendNumber(StringBuilder out, Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            double d = number.doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                out.append("null");
+                return;
+            }
+        }
+        out.append(number.toString());
+    }
+
+    private static void appendQuoted(StringBuilder out, String text) {
+        out.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Streams the tokens of json into consumer.
+     * @throws IllegalArgumentException if json is malformed. Tokens before the error were delivered already.
+     */
+    public static void parse(CharSequence json, JavascriptJsonConsumer consumer) {
+        Parser parser = new Parser(json, consumer);
+        parser.skipWhitespace();
+        parser.value();
+        parser.skipWhitespace();
+        if (parser.pos != json.length()) {
+            throw parser.error("Unexpected content");
+        }
+    }
+
+    /**
+     * JSON text, see {@link #raw(String)}.
+     */
+    public static final class Raw {
+
+        private final String json;
+
+        private Raw(String json) {
+            this.json = json;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+
+    private static class Parser {
+
+        private final CharSequence json;
+
+        private final JavascriptJsonConsumer consumer;
+
+        private int pos;
+
+        Parser(CharSequence json, JavascriptJsonConsumer consumer) {
+            this.json = json;
+            this.consumer = consumer;
+        }
+
+        void value() {
+            if (pos >= json.length()) {
+                throw error("Unexpected end");
+            }
+            char c = json.charAt(pos);
+            switch (c) {
+                case '{':
+                    object();
+                    break;
+                case '[':
+                    array();
+                    break;
+                case '"':
+                    consumer.writeString(string());
+                    break;
+                case 't':
+                    literal("true");
+                    consumer.writeBoolean(true);
+                    break;
+                case 'f':
+                    literal("false");
+                    consumer.writeBoolean(false);
+                    break;
+                case 'n':
+                    literal("null");
+                    consumer.writeNull();
+                    break;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        number();
+                    } else {
+                        throw error("Unexpected character");
+                    }
+            }
+        }
+
+        private void object() {
+            pos++;
+            consumer.writeStartObject();
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                consumer.writeEndObject();
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected field name");
+                }
+                consumer.writeFieldName(string());
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                value();
+                skipWhitespace();
+                char c = peek();
+                pos++;
+                if (c == '}') {
+                    consumer.writeEndObject();
+                    return;
+                }
+                if (c != ',') {
+                    throw error("Expected , or }");
+                }
+            }
+        }
+
+        private void array() {
+            pos++;
+            consumer.writeStartArray();
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                consumer.writeEndArray();
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                value();
+                skipWhitespace();
+                char c = peek();
+                pos++;
+                if (c == ']') {
+                    consumer.writeEndArray();
+                    return;
+                }
+                if (c != ',') {
+                    throw error("Expected , or ]");
+                }
+            }
+        }
+
+        private String string() {
+            pos++;
+            int start = pos;
+            // fast path without escapes
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c == '"') {
+                    String result = json.subSequence(start, pos).toString();
+                    pos++;
+                    return result;
+                }
+                if (c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            StringBuilder result = new StringBuilder().append(json, start, pos);
+            while (pos < json.length()) {
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return result.toString();
+                }
+                if (c != '\\') {
+                    result.append(c);
+                    continue;
+                }
+                if (pos >= json.length()) {
+                    break;
+                }
+                char escaped = json.charAt(pos++);
+                switch (escaped) {
+                    case 'b':
+                        result.append('\b');
+                        break;
+                    case 'f':
+                        result.append('\f');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > json.length()) {
+                            throw error("Bad unicode escape");
+                        }
+                        try {
+                            result.append((char) Integer.parseInt(json.subSequence(pos, pos + 4).toString(), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        result.append(escaped);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private void number() {
+            int start = pos;
+            boolean integral = true;
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    integral = false;
+                } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                pos++;
+            }
+            String text = json.subSequence(start, pos).toString();
+            try {
+                if (integral) {
+                    try {
+                        consumer.writeNumber(Long.parseLong(text));
+                        return;
+                    } catch (NumberFormatException e) {
+                        // too big for a long
+                    }
+                }
+                consumer.writeNumber(Double.parseDouble(text));
+            } catch (NumberFormatException e) {
+                throw error("Bad number");
+            }
+        }
+
+        private void literal(String literal) {
+            if (pos + literal.length() > json.length()
+                    || !literal.contentEquals(json.subSequence(pos, pos + literal.length()))) {
+                throw error("Unexpected character");
+            }
+            pos += literal.length();
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("Expected " + c);
+            }
+            pos++;
+        }
+
+        private char peek() {
+            if (pos >= json.length()) {
+                throw error("Unexpected end");
+            }
+            return json.charAt(pos);
+        }
+
+        void skipWhitespace() {
+            while (pos < json.length()) {
+                char c = json.charAt(pos);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " of JSON");
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+/**
+ * Receives JSON as a stream of tokens, see {@link JavascriptJson#parse(CharSequence, JavascriptJsonConsumer)} and
+ * the JSON boundary mode of the engine implementations. The methods are named like the ones of Jackson's
+ * JsonGenerator, so adapting one is a matter of delegating.
+ */
+public interface JavascriptJsonConsumer {
+
+    void writeStartObject();
+
+    void writeEndObject();
+
+    void writeStartArray();
+
+    void writeEndArray();
+
+    void writeFieldName(String name);
+
+    void writeString(String text);
+
+    /**
+     * Called for numbers without fraction or exponent that fit into a long.
+     */
+    void writeNumber(long number);
+
+    void writeNumber(double number);
+
+    void writeBoolean(boolean state);
+
+    void writeNull();
+}
@@ -0,0 +1,99 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+/**
+ * Receives metrics of javascript engines, contexts and executors. Implementations must be thread safe and fast,
+ * they are called on the hot paths. All methods default to doing nothing, so implementations override what they
+ * need. {@link #NOOP} is the default everywhere: with it the callers skip even reading the clock.
+ * See {@link JmxJavascriptMetrics} for an implementation exposed via JMX.
+ */
+public interface JavascriptMetrics {
+
+    JavascriptMetrics NOOP = new JavascriptMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * @return false if calls can be skipped, checked by callers before taking times.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * A function or method invocation returned or failed.
+     * @param functionName name of the invoked function or method, for batches once per batch.
+     */
+    default void invocationCompleted(String functionName, long nanos) {
+    }
+
+    /**
+     * Called before {@link #invocationCompleted(String, long)} for failed invocations.
+     */
+    default void invocationFailed(String functionName, Throwable error) {
+    }
+
+    /**
+     * @param intoEngine true for loading libraries (evalIntoEngine, loadWithRequire), false for eval.
+     */
+    default void evalCompleted(long nanos, boolean intoEngine) {
+    }
+
+    /**
+     * Called before {@link #evalCompleted(long, boolean)} for failed evals.
+     */
+    default void evalFailed(Throwable error) {
+    }
+
+    /**
+     * An engine was in use by another thread, the access failed.
+     */
+    default void engineContended() {
+    }
+
+    /**
+     * A task was queued by an executor.
+     * @param queueDepth tasks queued including this one.
+     */
+    default void taskQueued(int queueDepth) {
+    }
+
+    /**
+     * A task was taken from an executor queue to be run, shed or skipped.
+     * @param queueDepth tasks still queued.
+     */
+    default void taskDequeued(int queueDepth) {
+    }
+
+    /**
+     * A task was run by an executor.
+     * @param queueWaitNanos time between submission and start.
+     */
+    default void taskCompleted(long queueWaitNanos, long executionNanos, boolean failed) {
+    }
+
+    /**
+     * An executor rejected, dropped or shed a task instead of running it.
+     */
+    default void taskRejected() {
+    }
+
+    /**
+     * A watchdog abandoned a thread running javascript over its time budget. The thread keeps running until the
+     * script ends.
+     * @param abandonedRunning abandoned threads still running, including this one.
+     */
+    default void scriptAbandoned(int abandonedRunning) {
+    }
+
+    /**
+     * The script of an abandoned thread ended, the thread is free again.
+     * @param abandonedRunning abandoned threads still running.
+     */
+    default void abandonedScriptFinished(int abandonedRunning) {
+    }
+}
@@ -0,0 +1,32 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+
+/**
+ * Javascript execution exceeded its time budget and was aborted.
+ */
+public class JavascriptTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean engineStopped;
+
+    /**
+     * @param engineStopped true if the script didn't react to interruption and was abandoned, still running. The
+     *                      engine it ran in is unusable then and must be recycled.
+     */
+    public JavascriptTimeoutException(String message, @Nullable Throwable cause, boolean engineStopped) {
+        super(message, cause);
+        this.engineStopped = engineStopped;
+    }
+
+    /**
+     * @return true if the script was abandoned, see
+     * {@link #JavascriptTimeoutException(String, Throwable, boolean)}.
+     */
+    public boolean isEngineStopped() {
+        return engineStopped;
+    }
+}
@@ -0,0 +1,307 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link JavascriptMetrics} kept in memory and exposed as an MXBean, so they can be graphed with any JMX client.
+ * Share one instance between the engines, contexts and executors of a component. Latencies are kept per function
+ * name for up to {@link #getMaxFunctions()} names, further names are counted as {@link #OTHER_FUNCTIONS}.
+ */
+@ParametersAreNonnullByDefault
+public class JmxJavascriptMetrics implements JavascriptMetrics, JmxJavascriptMetricsMXBean {
+
+    public static final String OTHER_FUNCTIONS = "(other)";
+
+    private final int maxFunctions;
+
+    private final Map<String, FunctionMetrics> functions = new ConcurrentHashMap<>();
+
+    private final LongAdder invocationCount = new LongAdder();
+
+    private final LongAdder invocationErrorCount = new LongAdder();
+
+    private final LongAdder evalCount = new LongAdder();
+
+    private final LongAdder evalIntoEngineCount = new LongAdder();
+
+    private final LongAdder evalErrorCount = new LongAdder();
+
+    private final LongAdder engineContentionCount = new LongAdder();
+
+    private final LongAdder taskErrorCount = new LongAdder();
+
+    private final LongAdder taskRejectedCount = new LongAdder();
+
+    private final LongAdder scriptAbandonedCount = new LongAdder();
+
+    private volatile int queueDepth;
+
+    private volatile int abandonedRunning;
+
+    private final JavascriptLatencyHistogram queueWait = new JavascriptLatencyHistogram();
+
+    private final JavascriptLatencyHistogram execution = new JavascriptLatencyHistogram();
+
+    @Nullable
+    private volatile ObjectName registeredName;
+
+    private JmxJavascriptMetrics(int maxFunctions) {
+        this.maxFunctions = maxFunctions;
+    }
+
+    public static JmxJavascriptMetrics create() {
+        return create(1000);
+    }
+
+    /**
+     * @param maxFunctions function names to keep latencies for.
+     */
+    public static JmxJavascriptMetrics create(int maxFunctions) {
+        Preconditions.checkArgument(maxFunctions >= 0, "maxFunctions mustn't be negative");
+        return new JmxJavascriptMetrics(maxFunctions);
+    }
+
+    /**
+     * Registers with the platform MBean server as de.deverado.framework.js:type=JavascriptMetrics,name=name.
+     * @return this
+     */
+    public JmxJavascriptMetrics register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("de.deverado.framework.js:type=JavascriptMetrics,name=" +
+                    ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+            return this;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void unregister() {
+        ObjectName objectName = registeredName;
+        if (objectName == null) {
+            return;
+        }
+        registeredName = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Nullable
+    public ObjectName getRegisteredName() {
+        return registeredName;
+    }
+
+    public int getMaxFunctions() {
+        return maxFunctions;
+    }
+
+    @Override
+    public void invocationCompleted(String functionName, long nanos) {
+        invocationCount.increment();
+        getFunctionMetrics(functionName).latencies.record(nanos);
+    }
+
+    @Override
+    public void invocationFailed(String functionName, Throwable error) {
+        invocationErrorCount.increment();
+        getFunctionMetrics(functionName).errorCount.increment();
+    }
+
+    @Override
+    public void evalCompleted(long nanos, boolean intoEngine) {
+        (intoEngine ? evalIntoEngineCount : evalCount).increment();
+    }
+
+    @Override
+    public void evalFailed(Throwable error) {
+        evalErrorCount.increment();
+    }
+
+    @Override
+    public void engineContended() {
+        engineContentionCount.increment();
+    }
+
+    @Override
+    public void taskQueued(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    @Override
+    public void taskDequeued(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    @Override
+    public void taskCompleted(long queueWaitNanos, long executionNanos, boolean failed) {
+        queueWait.record(queueWaitNanos);
+        execution.record(executionNanos);
+        if (failed) {
+            taskErrorCount.increment();
+        }
+    }
+
+    @Override
+    public void taskRejected() {
+        taskRejectedCount.increment();
+    }
+
+    @Override
+    public void scriptAbandoned(int abandonedRunning) {
+        scriptAbandonedCount.increment();
+        this.abandonedRunning = abandonedRunning;
+    }
+
+    @Override
+    public void abandonedScriptFinished(int abandonedRunning) {
+        this.abandonedRunning = abandonedRunning;
+    }
+
+    private FunctionMetrics getFunctionMetrics(String functionName) {
+        FunctionMetrics result = functions.get(functionName);
+        if (result == null) {
+            // racing threads may add a few names above the limit, that's fine
+            String key = functions.size() < maxFunctions ? functionName : OTHER_FUNCTIONS;
+            result = functions.computeIfAbsent(key, k -> new FunctionMetrics());
+        }
+        return result;
+    }
+
+    @Override
+    public long getInvocationCount() {
+        return invocationCount.sum();
+    }
+
+    @Override
+    public long getInvocationErrorCount() {
+        return invocationErrorCount.sum();
+    }
+
+    @Override
+    public long getEvalCount() {
+        return evalCount.sum();
+    }
+
+    @Override
+    public long getEvalIntoEngineCount() {
+        return evalIntoEngineCount.sum();
+    }
+
+    @Override
+    public long getEvalErrorCount() {
+        return evalErrorCount.sum();
+    }
+
+    @Override
+    public long getEngineContentionCount() {
+        return engineContentionCount.sum();
+    }
+
+    @Override
+    public long getTaskCount() {
+        return execution.getCount();
+    }
+
+    @Override
+    public long getTaskErrorCount() {
+        return taskErrorCount.sum();
+    }
+
+    @Override
+    public long getTaskRejectedCount() {
+        return taskRejectedCount.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    @Override
+    public long getScriptAbandonedCount() {
+        return scriptAbandonedCount.sum();
+    }
+
+    @Override
+    public int getAbandonedRunning() {
+        return abandonedRunning;
+    }
+
+    @Override
+    public long getQueueWaitP50Micros() {
+        return queueWait.getQuantileNanos(0.5) / 1000;
+    }
+
+    @Override
+    public long getQueueWaitP99Micros() {
+        return queueWait.getQuantileNanos(0.99) / 1000;
+    }
+
+    @Override
+    public long getExecutionP50Micros() {
+        return execution.getQuantileNanos(0.5) / 1000;
+    }
+
+    @Override
+    public long getExecutionP99Micros() {
+        return execution.getQuantileNanos(0.99) / 1000;
+    }
+
+    public JavascriptLatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public JavascriptLatencyHistogram getExecution() {
+        return execution;
+    }
+
+    @Override
+    public Map<String, JavascriptFunctionStats> getFunctionStats() {
+        Map<String, JavascriptFunctionStats> result = new TreeMap<>();
+        for (Map.Entry<String, FunctionMetrics> e : functions.entrySet()) {
+            result.put(e.getKey(), new JavascriptFunctionStats(e.getValue().latencies,
+                    e.getValue().errorCount.sum()));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        functions.clear();
+        for (LongAdder adder : new LongAdder[]{invocationCount, invocationErrorCount, evalCount, evalIntoEngineCount,
+                evalErrorCount, engineContentionCount, taskErrorCount, taskRejectedCount, scriptAbandonedCount}) {
+            adder.reset();
+        }
+        queueDepth = 0;
+        queueWait.reset();
+        execution.reset();
+    }
+
+    private static class FunctionMetrics {
+
+        final JavascriptLatencyHistogram latencies = new JavascriptLatencyHistogram();
+
+        final LongAdder errorCount = new LongAdder();
+    }
+}
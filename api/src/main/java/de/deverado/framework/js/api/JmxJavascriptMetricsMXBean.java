@@ -0,0 +1,56 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link JmxJavascriptMetrics}. Latencies are in microseconds.
+ */
+public interface JmxJavascriptMetricsMXBean {
+
+    long getInvocationCount();
+
+    long getInvocationErrorCount();
+
+    long getEvalCount();
+
+    long getEvalIntoEngineCount();
+
+    long getEvalErrorCount();
+
+    long getEngineContentionCount();
+
+    long getTaskCount();
+
+    long getTaskErrorCount();
+
+    long getTaskRejectedCount();
+
+    /**
+     * @return depth of the queue after the last task was queued or taken.
+     */
+    int getQueueDepth();
+
+    long getScriptAbandonedCount();
+
+    /**
+     * @return abandoned threads still running their script, as last reported by the watchdog.
+     */
+    int getAbandonedRunning();
+
+    long getQueueWaitP50Micros();
+
+    long getQueueWaitP99Micros();
+
+    long getExecutionP50Micros();
+
+    long getExecutionP99Micros();
+
+    /**
+     * @return stats per function name.
+     */
+    Map<String, JavascriptFunctionStats> getFunctionStats();
+
+    void reset();
+}
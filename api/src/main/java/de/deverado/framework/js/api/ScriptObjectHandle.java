@@ -0,0 +1,35 @@
+package de.deverado.framework.js.api;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+
+/**
+ * A script object resolved once by {@link JavascriptEngineContext#getScriptObjectHandle(String)}, without eval.
+ * Not thread safe beyond what its context guarantees.
+ */
+public interface ScriptObjectHandle {
+
+    /**
+     * @return the path the object was resolved with.
+     */
+    String getPath();
+
+    /**
+     * @return false once an object along the path was reassigned or the engine was replaced.
+     */
+    boolean isValid();
+
+    /**
+     * @return the object, suitable for {@link JavascriptEngineContext#invokeMethod(Object, String, Object...)}.
+     * @throws IllegalStateException if the handle isn't valid anymore, resolve the path again.
+     */
+    Object get();
+
+    /**
+     * See {@link JavascriptEngineContext#invokeMethod(Object, String, Object...)}.
+     * @throws IllegalStateException if the handle isn't valid anymore, resolve the path again.
+     */
+    @Nullable
+    Object invokeMethod(String methodName, Object... jsCompatibleArgs);
+}
@@ -5,13 +5,17 @@ package de.deverado.framework.js.guice;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
 
+import javax.annotation.Nullable;
+
+import java.util.List;
 import java.util.function.Function;
 
 /**
- * Uses a single thread executor to execute javascript on an engine. The results are
- * communicated with futures and the tasks for the javascript engine are queued in an
- * unlimited queue.
+ * Executes javascript on engine threads. The results are communicated with futures and the tasks for the
+ * javascript engines are queued. {@link JavascriptExecutorImpl} uses a single thread and engine,
+ * {@link ShardedJavascriptExecutor} one thread per engine.
  */
 public interface JavascriptExecutor {
 
@@ -21,6 +25,19 @@ public interface JavascriptExecutor {
      */
     ListenableFuture<Object> submit(Function<JavascriptEngineContext, Object> func);
 
+    /**
+     * Like {@link #submit(Function)}, but reports saturation immediately instead of applying the executor's
+     * overflow policy.
+     * @return null if the executor is saturated.
+     */
+    @Nullable
+    ListenableFuture<Object> trySubmit(Function<JavascriptEngineContext, Object> func);
+
+    /**
+     * @return number of queued tasks, for shedding load upstream before the executor does.
+     */
+    int getQueueDepth();
+
     /**
      * See {@link JavascriptEngineContext#eval(String)}.
      */
@@ -36,4 +53,59 @@ public interface JavascriptExecutor {
      */
     ListenableFuture<Object> submitMethodInvocation(Object scriptObject, String methodName,
                                                            Object... jsCompatibleArgs);
+
+    /**
+     * One queued task for the whole batch. See {@link JavascriptEngineContext#invokeFunctionBatch(String, List)}.
+     */
+    ListenableFuture<List<JavascriptInvocationResult>> submitFunctionInvocationBatch(String functionName,
+                                                                                     List<Object[]> argsList);
+
+    /**
+     * One queued task for the whole batch. See
+     * {@link JavascriptEngineContext#invokeMethodBatch(Object, String, List)}.
+     */
+    ListenableFuture<List<JavascriptInvocationResult>> submitMethodInvocationBatch(Object scriptObject,
+                                                                                   String methodName,
+                                                                                   List<Object[]> argsList);
+
+    /**
+     * Like {@link #submit(Function)}, but all work with an equal routingKey goes to the same engine as long as
+     * that engine keeps up. That keeps engines warm on a small set of code. Executors with a single engine ignore
+     * the key.
+     * @param routingKey e.g. a template name or tenant id, should have a good {@link Object#hashCode()}.
+     */
+    ListenableFuture<Object> submitWithKey(Object routingKey, Function<JavascriptEngineContext, Object> func);
+
+    /**
+     * See {@link #submitWithKey(Object, Function)} and {@link JavascriptEngineContext#eval(String)}.
+     */
+    ListenableFuture<Object> submitEvalWithKey(Object routingKey, String scriptCode);
+
+    /**
+     * See {@link #submitWithKey(Object, Function)} and
+     * {@link JavascriptEngineContext#invokeFunction(String, Object...)}.
+     */
+    ListenableFuture<Object> submitFunctionInvocationWithKey(Object routingKey, String functionName,
+                                                             Object... jsCompatibleArgs);
+
+    /**
+     * Like {@link #submit(Function)}, but func is skipped if the deadline passed before it was dequeued, or if
+     * the returned future was cancelled meanwhile. Skipped work doesn't use engine time. Expired work fails with
+     * a {@link java.util.concurrent.TimeoutException}. A deadline passing during execution doesn't abort func.
+     * @param deadlineNanos in {@link System#nanoTime()} terms, e.g.
+     *                      {@code System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200)}.
+     */
+    ListenableFuture<Object> submitWithDeadline(long deadlineNanos, Function<JavascriptEngineContext, Object> func);
+
+    /**
+     * See {@link #submitWithDeadline(long, Function)} and {@link JavascriptEngineContext#eval(String)}.
+     */
+    ListenableFuture<Object> submitEvalWithDeadline(long deadlineNanos, String scriptCode);
+
+    /**
+     * See {@link #submitWithDeadline(long, Function)} and
+     * {@link JavascriptEngineContext#invokeFunction(String, Object...)}.
+     */
+    ListenableFuture<Object> submitFunctionInvocationWithDeadline(long deadlineNanos, String functionName,
+                                                                  Object... jsCompatibleArgs);
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.common.base.Preconditions;
+import de.deverado.framework.js.api.JavascriptMetrics;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of {@link JavascriptExecutorImpl}. Setters return this for chaining.
+ */
+@ParametersAreNonnullByDefault
+public class JavascriptExecutorConfig {
+
+    private int queueCapacity = 50000;
+
+    private JavascriptOverflowPolicy overflowPolicy = JavascriptOverflowPolicy.REJECT;
+
+    private long maxQueueLatencyNanos = -1;
+
+    private long maxExecutionTimeNanos = -1;
+
+    private long maxCpuTimeNanos = -1;
+
+    private NashornWatchdog watchdog = NashornWatchdog.getDefault();
+
+    private boolean detachResults;
+
+    private int affinityWindow = 32;
+
+    private JavascriptMetrics metrics = JavascriptMetrics.NOOP;
+
+    public static JavascriptExecutorConfig create() {
+        return new JavascriptExecutorConfig();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity the executor is saturated if this many tasks are queued. Size it by the queueing delay
+     *                      you can afford: capacity times the mean task time.
+     */
+    public JavascriptExecutorConfig setQueueCapacity(int queueCapacity) {
+        Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public JavascriptOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy applied to submissions while saturated, defaults to
+     *                       {@link JavascriptOverflowPolicy#REJECT}.
+     */
+    public JavascriptExecutorConfig setOverflowPolicy(JavascriptOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy, "overflowPolicy");
+        return this;
+    }
+
+    /**
+     * @return -1 if queue latency isn't limited.
+     */
+    public long getMaxQueueLatencyNanos() {
+        return maxQueueLatencyNanos;
+    }
+
+    /**
+     * Enables shedding by queue latency: the executor counts as saturated while its oldest task has waited longer
+     * than maxQueueLatency, and tasks that waited longer when they are dequeued fail with a
+     * {@link java.util.concurrent.RejectedExecutionException} instead of running.
+     * @param maxQueueLatency -1 to disable (the default).
+     */
+    public JavascriptExecutorConfig setMaxQueueLatency(long maxQueueLatency, TimeUnit unit) {
+        Preconditions.checkArgument(maxQueueLatency >= -1, "maxQueueLatency must be -1 or positive");
+        this.maxQueueLatencyNanos = maxQueueLatency < 0 ? -1 : unit.toNanos(maxQueueLatency);
+        return this;
+    }
+
+    /**
+     * @return -1 if execution time isn't limited.
+     */
+    public long getMaxExecutionTimeNanos() {
+        return maxExecutionTimeNanos;
+    }
+
+    /**
+     * Limits the wall clock time of each task, see {@link NashornWatchdog}. Tasks over budget fail with a
+     * {@link de.deverado.framework.js.api.JavascriptTimeoutException}. While too many threads abandoned by the
+     * watchdog are still running, tasks fail fast with a {@link java.util.concurrent.RejectedExecutionException},
+     * see {@link NashornWatchdog#setMaxAbandoned(int)}.
+     * @param maxExecutionTime -1 to disable (the default).
+     */
+    public JavascriptExecutorConfig setMaxExecutionTime(long maxExecutionTime, TimeUnit unit) {
+        Preconditions.checkArgument(maxExecutionTime >= -1, "maxExecutionTime must be -1 or positive");
+        this.maxExecutionTimeNanos = maxExecutionTime < 0 ? -1 : unit.toNanos(maxExecutionTime);
+        return this;
+    }
+
+    /**
+     * @return -1 if CPU time isn't limited.
+     */
+    public long getMaxCpuTimeNanos() {
+        return maxCpuTimeNanos;
+    }
+
+    /**
+     * Like {@link #setMaxExecutionTime(long, TimeUnit)}, but limits the CPU time of the executing thread. Doesn't
+     * count time the thread waits, e.g. for a lock or I/O.
+     * @param maxCpuTime -1 to disable (the default).
+     */
+    public JavascriptExecutorConfig setMaxCpuTime(long maxCpuTime, TimeUnit unit) {
+        Preconditions.checkArgument(maxCpuTime >= -1, "maxCpuTime must be -1 or positive");
+        this.maxCpuTimeNanos = maxCpuTime < 0 ? -1 : unit.toNanos(maxCpuTime);
+        return this;
+    }
+
+    public NashornWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * @param watchdog enforces the time budgets, defaults to {@link NashornWatchdog#getDefault()}. Reports abandoned
+     *                 threads to its own {@link NashornWatchdog#setMetrics metrics}.
+     */
+    public JavascriptExecutorConfig setWatchdog(NashornWatchdog watchdog) {
+        this.watchdog = Preconditions.checkNotNull(watchdog, "watchdog");
+        return this;
+    }
+
+    public boolean isDetachResults() {
+        return detachResults;
+    }
+
+    /**
+     * @param detachResults true to convert task results with {@link
+     *                      de.deverado.framework.js.api.JavascriptEngineContext#detach(Object)} on the engine
+     *                      thread, so future consumers never call into the engine. Results can't be used as script
+     *                      objects then. Defaults to false.
+     */
+    public JavascriptExecutorConfig setDetachResults(boolean detachResults) {
+        this.detachResults = detachResults;
+        return this;
+    }
+
+    public JavascriptMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics receives queue depth, queue wait and execution times, failed and rejected tasks. Set the
+     *                metrics of the engine context separately (e.g.
+     *                {@link de.deverado.framework.js.nashorn.NashornJavascriptEngineContext#setMetrics(
+     *                JavascriptMetrics)}) for per-function latencies. Defaults to {@link JavascriptMetrics#NOOP}.
+     */
+    public JavascriptExecutorConfig setMetrics(JavascriptMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "metrics");
+        return this;
+    }
+
+    public int getAffinityWindow() {
+        return affinityWindow;
+    }
+
+    /**
+     * Tasks submitted for other contexts (see {@link JavascriptExecutorImpl#submitForContext(
+     * de.deverado.framework.js.api.JavascriptEngineContext, java.util.function.Function)}) are grouped: a queued
+     * task for the context run last is preferred over the oldest task, so that the engine switches contexts less
+     * often. Bounds the reordering for fairness: the oldest task is passed over at most affinityWindow times, and
+     * only the affinityWindow tasks behind it are considered.
+     * @param affinityWindow 0 to run tasks in submission order, defaults to 32.
+     */
+    public JavascriptExecutorConfig setAffinityWindow(int affinityWindow) {
+        Preconditions.checkArgument(affinityWindow >= 0, "affinityWindow mustn't be negative");
+        this.affinityWindow = affinityWindow;
+        return this;
+    }
+}
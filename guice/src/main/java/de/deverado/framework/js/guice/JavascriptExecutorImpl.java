@@ -3,21 +3,45 @@
  */
 package de.deverado.framework.js.guice;
 
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.inject.Singleton;
 import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.api.JavascriptMetrics;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
-import java.util.concurrent.Callable;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 /**
  * Uses a single thread executor to execute javascript on an engine. The results are
- * communicated with futures and the tasks for the javascript engine are queued in an
- * unlimited queue.
+ * communicated with futures and the tasks for the javascript engine are queued in a
+ * bounded queue with admission control, see {@link JavascriptExecutorConfig}.
+ * <p>
+ *     The queue is owned by this class, the executor only receives one drain call per queued task. That way
+ *     queued tasks can be inspected (queue latency) and replaced ({@link JavascriptOverflowPolicy#DROP_OLDEST}).
+ * </p>
+ * <p>
+ *     With time budgets configured tasks running too long are aborted by a {@link NashornWatchdog} and fail
+ *     with a {@link de.deverado.framework.js.api.JavascriptTimeoutException}, so they don't stall the tasks
+ *     queued behind them.
+ * </p>
+ * <p>
+ *     Tasks can target other contexts of the engine, e.g. of {@link
+ *     de.deverado.framework.js.nashorn.NashornTenantContexts}, with {@link #submitForContext(JavascriptEngineContext,
+ *     Function)}. Switching the context of the engine costs about as much as a small function call, so queued
+ *     tasks for the context run last are run first, within the fairness window of
+ *     {@link JavascriptExecutorConfig#setAffinityWindow(int)}.
+ * </p>
  */
 @Singleton
 public class JavascriptExecutorImpl implements  JavascriptExecutor {
@@ -29,16 +53,142 @@ public class JavascriptExecutorImpl implements  JavascriptExecutor {
     @Inject
     JavascriptEngineContext engineAndContext;
 
+    private JavascriptTaskQueue queue;
+
+    private JavascriptOverflowPolicy overflowPolicy;
+
+    private long maxQueueLatencyNanos;
+
+    private NashornWatchdog watchdog;
+
+    private long maxExecutionTimeNanos;
+
+    private long maxCpuTimeNanos;
+
+    private boolean detachResults;
+
+    private int affinityWindow;
+
+    private JavascriptMetrics metrics = JavascriptMetrics.NOOP;
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * {@link JavascriptTask#target} of the task run last, written with engineLock held.
+     */
+    @Nullable
+    private volatile JavascriptEngineContext lastTarget;
+
+    /**
+     * Serializes engine use by the executor thread and callers running their tasks themselves.
+     */
+    private final ReentrantLock engineLock = new ReentrantLock();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong callerRunsCount = new AtomicLong();
+
+    private final AtomicLong shedCount = new AtomicLong();
+
+    private final AtomicLong skippedCancelledCount = new AtomicLong();
+
+    private final AtomicLong skippedExpiredCount = new AtomicLong();
+
+    private final AtomicLong contextSwitchCount = new AtomicLong();
+
+    private final AtomicLong reorderedCount = new AtomicLong();
+
+    @Inject
+    void setConfig(JavascriptExecutorConfig config) {
+        queue = new JavascriptTaskQueue(config.getQueueCapacity());
+        overflowPolicy = config.getOverflowPolicy();
+        maxQueueLatencyNanos = config.getMaxQueueLatencyNanos();
+        watchdog = config.getWatchdog();
+        maxExecutionTimeNanos = config.getMaxExecutionTimeNanos();
+        maxCpuTimeNanos = config.getMaxCpuTimeNanos();
+        detachResults = config.isDetachResults();
+        affinityWindow = config.getAffinityWindow();
+        metrics = config.getMetrics();
+    }
+
+    /**
+     * @return number of queued tasks. Upstream can use this to shed load before the executor does.
+     */
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return true if new submissions would be handled by the overflow policy.
+     */
+    public boolean isSaturated() {
+        return queue.isSaturated(maxQueueLatencyNanos);
+    }
+
+    /**
+     * @return number of submissions that failed with a {@link RejectedExecutionException}.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of queued tasks failed to make room with {@link JavascriptOverflowPolicy#DROP_OLDEST}.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of tasks run by submitting threads with {@link JavascriptOverflowPolicy#CALLER_RUNS}.
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+    /**
+     * @return number of tasks failed at dequeue because they exceeded the max queue latency.
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * @return number of tasks not run because their future was cancelled while they were queued.
+     */
+    public long getSkippedCancelledCount() {
+        return skippedCancelledCount.get();
+    }
+
+    /**
+     * @return number of tasks not run because their deadline passed before they were dequeued.
+     */
+    public long getSkippedExpiredCount() {
+        return skippedExpiredCount.get();
+    }
+
+    /**
+     * @return number of tasks that ran in another context than the task before them.
+     */
+    public long getContextSwitchCount() {
+        return contextSwitchCount.get();
+    }
+
+    /**
+     * @return number of tasks run ahead of older tasks to avoid a context switch.
+     */
+    public long getReorderedCount() {
+        return reorderedCount.get();
+    }
+
     /**
      * See {@link JavascriptEngineContext#invokeFunction(String, Object...)}.
      */
     public ListenableFuture<Object> submitFunctionInvocation(String functionName, Object... jsCompatibleArgs) {
-        return executor.submit(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return engineAndContext.invokeFunction(functionName, jsCompatibleArgs);
-            }
-        });
+        return submit(context -> context.invokeFunction(functionName, jsCompatibleArgs));
     }
 
     /**
@@ -46,33 +196,201 @@ public class JavascriptExecutorImpl implements  JavascriptExecutor {
      */
     public ListenableFuture<Object> submitMethodInvocation(Object scriptObject, String methodName,
                                                            Object... jsCompatibleArgs) {
-        return executor.submit(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return engineAndContext.invokeMethod(scriptObject, methodName, jsCompatibleArgs);
-            }
-        });
+        return submit(context -> context.invokeMethod(scriptObject, methodName, jsCompatibleArgs));
+    }
+
+    /**
+     * See {@link JavascriptEngineContext#invokeFunctionBatch(String, List)}.
+     */
+    @SuppressWarnings("unchecked")
+    public ListenableFuture<List<JavascriptInvocationResult>> submitFunctionInvocationBatch(String functionName,
+                                                                                            List<Object[]> argsList) {
+        return (ListenableFuture) submit(context -> context.invokeFunctionBatch(functionName, argsList));
+    }
+
+    /**
+     * See {@link JavascriptEngineContext#invokeMethodBatch(Object, String, List)}.
+     */
+    @SuppressWarnings("unchecked")
+    public ListenableFuture<List<JavascriptInvocationResult>> submitMethodInvocationBatch(Object scriptObject,
+                                                                                          String methodName,
+                                                                                          List<Object[]> argsList) {
+        return (ListenableFuture) submit(context -> context.invokeMethodBatch(scriptObject, methodName, argsList));
     }
 
     public ListenableFuture<Object> submitEval(String scriptCode) {
-        return executor.submit(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return engineAndContext.eval(scriptCode);
-            }
-        });
+        return submit(context -> context.eval(scriptCode));
     }
 
     /**
      * Use this to call any function on the {@link JavascriptEngineContext} within the thread.
      * @return the return value future with the result of function call.
+     * @throws RejectedExecutionException if saturated and the overflow policy is
+     * {@link JavascriptOverflowPolicy#REJECT}.
      */
     public ListenableFuture<Object> submit(Function<JavascriptEngineContext, Object> func) {
-        return executor.submit(new Callable<Object>() {
-            @Override
-            public Object call() throws Exception {
-                return func.apply(engineAndContext);
+        return enqueue(new JavascriptTask(func, true));
+    }
+
+    /**
+     * Like {@link #submit(Function)}, but runs func with context instead of the executor's context.
+     * @param context should use the engine of the executor's context (or an engine only used by this executor),
+     *                the executor doesn't serialize other uses of it.
+     */
+    public ListenableFuture<Object> submitForContext(JavascriptEngineContext context,
+                                                     Function<JavascriptEngineContext, Object> func) {
+        return enqueue(new JavascriptTask(func, true, JavascriptTask.NO_DEADLINE,
+                context == engineAndContext ? null : context));
+    }
+
+    /**
+     * See {@link #submitForContext(JavascriptEngineContext, Function)} and
+     * {@link JavascriptEngineContext#invokeFunction(String, Object...)}.
+     */
+    public ListenableFuture<Object> submitFunctionInvocationForContext(JavascriptEngineContext context,
+                                                                       String functionName,
+                                                                       Object... jsCompatibleArgs) {
+        return submitForContext(context, c -> c.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    @Override
+    public ListenableFuture<Object> submitWithDeadline(long deadlineNanos,
+                                                       Function<JavascriptEngineContext, Object> func) {
+        JavascriptTask task = new JavascriptTask(func, true, deadlineNanos);
+        if (task.isExpired()) {
+            skippedExpiredCount.incrementAndGet();
+            task.expire();
+            return task.future;
+        }
+        return enqueue(task);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEvalWithDeadline(long deadlineNanos, String scriptCode) {
+        return submitWithDeadline(deadlineNanos, context -> context.eval(scriptCode));
+    }
+
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocationWithDeadline(long deadlineNanos, String functionName,
+                                                                         Object... jsCompatibleArgs) {
+        return submitWithDeadline(deadlineNanos, context -> context.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    private ListenableFuture<Object> enqueue(JavascriptTask task) {
+        if (!queue.isSaturated(maxQueueLatencyNanos) && queue.offer(task)) {
+            metrics.taskQueued(queue.size());
+            scheduleDrain(task);
+            return task.future;
+        }
+        switch (overflowPolicy) {
+            case CALLER_RUNS:
+                callerRunsCount.incrementAndGet();
+                runTask(task);
+                break;
+            case DROP_OLDEST:
+                JavascriptTask dropped = queue.replaceOldest(task);
+                if (dropped == null) {
+                    // drained meanwhile
+                    scheduleDrain(task);
+                } else {
+                    // the drain scheduled for dropped runs task
+                    droppedCount.incrementAndGet();
+                    metrics.taskRejected();
+                    dropped.reject("Dropped from saturated javascript executor queue");
+                }
+                break;
+            default:
+                rejectedCount.incrementAndGet();
+                metrics.taskRejected();
+                throw new RejectedExecutionException("Javascript executor saturated");
+        }
+        return task.future;
+    }
+
+    /**
+     * Like {@link #submit(Function)}, but ignores the overflow policy: never blocks or runs javascript in the
+     * calling thread.
+     * @return null if the executor is saturated.
+     */
+    @Nullable
+    @Override
+    public ListenableFuture<Object> trySubmit(Function<JavascriptEngineContext, Object> func) {
+        JavascriptTask task = new JavascriptTask(func, true);
+        if (queue.isSaturated(maxQueueLatencyNanos) || !queue.offer(task)) {
+            return null;
+        }
+        metrics.taskQueued(queue.size());
+        scheduleDrain(task);
+        return task.future;
+    }
+
+    /**
+     * Single engine: the routing key is ignored.
+     */
+    public ListenableFuture<Object> submitWithKey(Object routingKey, Function<JavascriptEngineContext, Object> func) {
+        return submit(func);
+    }
+
+    /**
+     * Single engine: the routing key is ignored.
+     */
+    public ListenableFuture<Object> submitEvalWithKey(Object routingKey, String scriptCode) {
+        return submitEval(scriptCode);
+    }
+
+    /**
+     * Single engine: the routing key is ignored.
+     */
+    public ListenableFuture<Object> submitFunctionInvocationWithKey(Object routingKey, String functionName,
+                                                                    Object... jsCompatibleArgs) {
+        return submitFunctionInvocation(functionName, jsCompatibleArgs);
+    }
+
+    private void scheduleDrain(JavascriptTask task) {
+        Preconditions.checkState(queue != null, "Not configured");
+        try {
+            executor.execute(this::drainOne);
+        } catch (RejectedExecutionException e) {
+            // executor shut down, later drains skip the done task
+            rejectedCount.incrementAndGet();
+            metrics.taskRejected();
+            task.future.setException(e);
+        }
+    }
+
+    private void drainOne() {
+        JavascriptTask task = affinityWindow > 0 ? queue.pollWithAffinity(lastTarget, affinityWindow, reorderedCount)
+                : queue.poll();
+        metrics.taskDequeued(queue.size());
+        if (task == null || task.skipIfDoneOrExpired(skippedCancelledCount, skippedExpiredCount)) {
+            return;
+        }
+        if (task.waitedLongerThan(maxQueueLatencyNanos)) {
+            shedCount.incrementAndGet();
+            metrics.taskRejected();
+            task.reject("Shed after exceeding max javascript queue latency");
+            return;
+        }
+        runTask(task);
+    }
+
+    private void runTask(JavascriptTask task) {
+        engineLock.lock();
+        long start = metrics.isEnabled() ? System.nanoTime() : NOT_TIMED;
+        try {
+            if (task.target != lastTarget) {
+                contextSwitchCount.incrementAndGet();
+                lastTarget = task.target;
             }
-        });
+            task.run(task.target != null ? task.target : engineAndContext, watchdog, maxExecutionTimeNanos,
+                    maxCpuTimeNanos, detachResults);
+        } finally {
+            engineLock.unlock();
+        }
+        if (start != NOT_TIMED) {
+            // queue wait includes waiting for the engine lock
+            metrics.taskCompleted(start - task.enqueuedNanos, System.nanoTime() - start, task.isFailed());
+        }
+        task.complete();
     }
 }
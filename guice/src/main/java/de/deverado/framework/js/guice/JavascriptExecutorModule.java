@@ -4,17 +4,49 @@
 package de.deverado.framework.js.guice;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 import de.deverado.framework.guice.ThreadPoolHelpers;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 @ParametersAreNonnullByDefault
 public class JavascriptExecutorModule extends AbstractModule {
 
+    private JavascriptExecutorConfig config = JavascriptExecutorConfig.create();
+
+    private JavascriptMicroBatchConfig microBatchConfig;
+
+    /**
+     * @param config queue capacity and admission control of the {@link JavascriptExecutorImpl}.
+     */
+    public JavascriptExecutorModule withConfig(JavascriptExecutorConfig config) {
+        this.config = config;
+        return this;
+    }
+
+    /**
+     * Binds a {@link MicroBatchingJavascriptExecutor} in front of the {@link JavascriptExecutorImpl}.
+     * @param microBatchConfig null to bind the {@link JavascriptExecutorImpl} directly.
+     */
+    public JavascriptExecutorModule withMicroBatching(@Nullable JavascriptMicroBatchConfig microBatchConfig) {
+        this.microBatchConfig = microBatchConfig;
+        return this;
+    }
+
     @Override
     protected void configure() {
+        // holds one drain call per task queued in JavascriptExecutorImpl
         ThreadPoolHelpers.bindControllableExecutor("javascriptExecutor", binder(),
-                1, 1, -1, 50000, -1);
-        bind(JavascriptExecutor.class).to(JavascriptExecutorImpl.class);
+                1, 1, -1, config.getQueueCapacity(), -1);
+        bind(JavascriptExecutorConfig.class).toInstance(config);
+        if (microBatchConfig == null) {
+            bind(JavascriptExecutor.class).to(JavascriptExecutorImpl.class);
+        } else {
+            bind(JavascriptMicroBatchConfig.class).toInstance(microBatchConfig);
+            bind(JavascriptExecutor.class).annotatedWith(Names.named(MicroBatchingJavascriptExecutor.DELEGATE_NAME))
+                    .to(JavascriptExecutorImpl.class);
+            bind(JavascriptExecutor.class).to(MicroBatchingJavascriptExecutor.class);
+        }
     }
 }
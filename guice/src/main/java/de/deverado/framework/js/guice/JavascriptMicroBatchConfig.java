@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of {@link MicroBatchingJavascriptExecutor}: which functions are batched, by which javascript
+ * batch handlers, and how long submissions wait for company. Setters return this for chaining.
+ */
+@ParametersAreNonnullByDefault
+public class JavascriptMicroBatchConfig {
+
+    private final Map<String, String> batchHandlers = new LinkedHashMap<>();
+
+    private int maxBatchSize = 64;
+
+    private long windowNanos = TimeUnit.MICROSECONDS.toNanos(200);
+
+    public static JavascriptMicroBatchConfig create() {
+        return new JavascriptMicroBatchConfig();
+    }
+
+    /**
+     * Submissions of functionName are coalesced and delivered to batchHandlerName as one call. The batch handler
+     * gets a single argument, a javascript array with the argument arrays of the coalesced submissions, and must
+     * return an array with one result per submission, in the same order. If it throws, all futures of the batch
+     * fail. Submissions cancelled before their batch is submitted are left out.
+     * <p>
+     *     The argument arrays are java arrays: index them and read their length, use Java.from(args) to get array
+     *     methods.
+     * </p>
+     * <pre>
+     *     function renderBatch(argsList) {
+     *         return argsList.map(function(args) {
+     *             return render(args[0], args[1]);
+     *         });
+     *     }
+     * </pre>
+     */
+    public JavascriptMicroBatchConfig addBatchHandler(String functionName, String batchHandlerName) {
+        Preconditions.checkNotNull(functionName, "functionName");
+        Preconditions.checkNotNull(batchHandlerName, "batchHandlerName");
+        batchHandlers.put(functionName, batchHandlerName);
+        return this;
+    }
+
+    /**
+     * @return name of the batch handler for functionName, null if its submissions aren't batched.
+     */
+    @Nullable
+    public String getBatchHandler(String functionName) {
+        return batchHandlers.get(functionName);
+    }
+
+    public Map<String, String> getBatchHandlers() {
+        return Collections.unmodifiableMap(batchHandlers);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize a batch is submitted as soon as it is this big.
+     */
+    public JavascriptMicroBatchConfig setMaxBatchSize(int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public long getWindowNanos() {
+        return windowNanos;
+    }
+
+    /**
+     * @param window a batch is submitted at the latest this long after its first submission. Defaults to 200
+     *               microseconds. This is added latency for lone submissions.
+     */
+    public JavascriptMicroBatchConfig setWindow(long window, TimeUnit unit) {
+        Preconditions.checkArgument(window >= 0, "window mustn't be negative");
+        this.windowNanos = unit.toNanos(window);
+        return this;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+/**
+ * What a {@link JavascriptExecutor} does with a submission while it is saturated: its queue is full or (with a
+ * max queue latency configured) the oldest queued task has waited too long.
+ */
+public enum JavascriptOverflowPolicy {
+
+    /**
+     * Submit throws a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT,
+
+    /**
+     * The submitting thread executes the task itself, after waiting for the engine to become free. Slows
+     * down producers to the pace of the engine.
+     */
+    CALLER_RUNS,
+
+    /**
+     * The oldest queued task fails with a {@link java.util.concurrent.RejectedExecutionException} and the new one
+     * is queued. Prefers fresh work, whose callers are more likely to still be waiting.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.common.util.concurrent.SettableFuture;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A unit of work queued for a javascript thread. Completes its future with the result of the function.
+ */
+class JavascriptTask {
+
+    final Function<JavascriptEngineContext, Object> func;
+
+    final SettableFuture<Object> future = SettableFuture.create();
+
+    final long enqueuedNanos = System.nanoTime();
+
+    /**
+     * False if the task must run on the shard it was queued on.
+     */
+    final boolean stealable;
+
+    /**
+     * System.nanoTime() after which the result isn't needed anymore, {@link #NO_DEADLINE} if not set.
+     */
+    final long deadlineNanos;
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Context to run in, null for the executor's context.
+     */
+    @Nullable
+    final JavascriptEngineContext target;
+
+    JavascriptTask(Function<JavascriptEngineContext, Object> func, boolean stealable) {
+        this(func, stealable, NO_DEADLINE);
+    }
+
+    JavascriptTask(Function<JavascriptEngineContext, Object> func, boolean stealable, long deadlineNanos) {
+        this(func, stealable, deadlineNanos, null);
+    }
+
+    JavascriptTask(Function<JavascriptEngineContext, Object> func, boolean stealable, long deadlineNanos,
+                   @Nullable JavascriptEngineContext target) {
+        this.func = func;
+        this.stealable = stealable;
+        this.deadlineNanos = deadlineNanos;
+        this.target = target;
+    }
+
+    boolean isExpired() {
+        return deadlineNanos != NO_DEADLINE && System.nanoTime() - deadlineNanos > 0;
+    }
+
+    /**
+     * Fails the future with a {@link TimeoutException} instead of running.
+     */
+    void expire() {
+        future.setException(new TimeoutException("Deadline passed before javascript task started"));
+    }
+
+    /**
+     * Checks whether the task should be skipped at dequeue, failing its future if it expired. Tasks whose future
+     * was already failed, e.g. because no drain could be scheduled, are skipped without counting them again.
+     * @return false if the task should run.
+     */
+    boolean skipIfDoneOrExpired(AtomicLong cancelledCount, AtomicLong expiredCount) {
+        if (future.isCancelled()) {
+            cancelledCount.incrementAndGet();
+            return true;
+        }
+        if (future.isDone()) {
+            return true;
+        }
+        if (isExpired()) {
+            expiredCount.incrementAndGet();
+            expire();
+            return true;
+        }
+        return false;
+    }
+
+    private Object result;
+
+    private Throwable error;
+
+    /**
+     * @param maxQueueLatencyNanos -1 for no limit.
+     */
+    boolean waitedLongerThan(long maxQueueLatencyNanos) {
+        return maxQueueLatencyNanos >= 0 && System.nanoTime() - enqueuedNanos > maxQueueLatencyNanos;
+    }
+
+    /**
+     * Fails the future with a {@link RejectedExecutionException} instead of running.
+     */
+    void reject(String message) {
+        reject(message, null);
+    }
+
+    void reject(String message, @Nullable Throwable cause) {
+        future.setException(new RejectedExecutionException(message, cause));
+    }
+
+    /**
+     * Runs the function with context unless the future was cancelled meanwhile. Call {@link #complete()}
+     * afterwards.
+     * @return result of function or null on error.
+     */
+    @Nullable
+    Object run(JavascriptEngineContext context) {
+        return run(context, null, -1, -1, false);
+    }
+
+    /**
+     * Like {@link #run(JavascriptEngineContext)}, but within time budgets enforced by watchdog.
+     * @param detachResult true to convert the result with {@link JavascriptEngineContext#detach(Object)}, within
+     *                     the budgets.
+     */
+    @Nullable
+    Object run(JavascriptEngineContext context, @Nullable NashornWatchdog watchdog, long maxWallNanos,
+               long maxCpuNanos, boolean detachResult) {
+        if (future.isDone()) {
+            return null;
+        }
+        try {
+            Function<JavascriptEngineContext, Object> work = detachResult
+                    ? c -> c.detach(func.apply(c)) : func;
+            result = watchdog == null ? work.apply(context)
+                    : watchdog.call(maxWallNanos, maxCpuNanos, () -> work.apply(context));
+            return result;
+        } catch (Throwable t) {
+            error = t;
+            return null;
+        }
+    }
+
+    /**
+     * @return true if {@link #run(JavascriptEngineContext)} failed.
+     */
+    boolean isFailed() {
+        return error != null;
+    }
+
+    /**
+     * Completes the future with the outcome of {@link #run(JavascriptEngineContext)}. Separate to allow
+     * bookkeeping on the result before other threads can see it.
+     */
+    void complete() {
+        if (error != null) {
+            future.setException(error);
+        } else {
+            future.set(result);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import de.deverado.framework.js.api.JavascriptEngineContext;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO of {@link JavascriptTask}s. The owning thread takes from the head, other threads may steal
+ * stealable tasks from the tail.
+ */
+class JavascriptTaskQueue {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Guarded by lock.
+     */
+    private final ArrayDeque<JavascriptTask> tasks = new ArrayDeque<>();
+
+    private final int capacity;
+
+    /**
+     * Tasks taken ahead of the head since it became the head, guarded by lock.
+     */
+    private int headPassedCount;
+
+    private volatile int size;
+
+    JavascriptTaskQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return false if the queue is full.
+     */
+    boolean offer(JavascriptTask task) {
+        lock.lock();
+        try {
+            if (tasks.size() >= capacity) {
+                return false;
+            }
+            tasks.addLast(task);
+            size = tasks.size();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    JavascriptTask poll() {
+        if (size == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            headPassedCount = 0;
+            JavascriptTask result = tasks.pollFirst();
+            size = tasks.size();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #poll()}, but prefers a task for the target context run last, so that runs of tasks for one
+     * context execute back-to-back. Looks at most window tasks behind the head, and takes the head after it was
+     * passed over window times.
+     * @param lastTarget {@link JavascriptTask#target} of the task run last.
+     * @param reorderedCount incremented if a task is taken ahead of the head.
+     */
+    @Nullable
+    JavascriptTask pollWithAffinity(@Nullable JavascriptEngineContext lastTarget, int window,
+                                    AtomicLong reorderedCount) {
+        if (size == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            JavascriptTask head = tasks.peekFirst();
+            if (head != null && head.target != lastTarget && headPassedCount < window) {
+                Iterator<JavascriptTask> iter = tasks.iterator();
+                iter.next();
+                for (int i = 0; i < window && iter.hasNext(); i++) {
+                    JavascriptTask task = iter.next();
+                    if (task.target == lastTarget) {
+                        iter.remove();
+                        size = tasks.size();
+                        headPassedCount++;
+                        reorderedCount.incrementAndGet();
+                        return task;
+                    }
+                }
+            }
+            headPassedCount = 0;
+            JavascriptTask result = tasks.pollFirst();
+            size = tasks.size();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest task and appends task, ignoring the capacity.
+     * @return the removed task, null if the queue was empty.
+     */
+    @Nullable
+    JavascriptTask replaceOldest(JavascriptTask task) {
+        lock.lock();
+        try {
+            headPassedCount = 0;
+            JavascriptTask result = tasks.pollFirst();
+            tasks.addLast(task);
+            size = tasks.size();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param maxQueueLatencyNanos -1 for no latency limit.
+     * @return true if the queue is full or its oldest task waited longer than maxQueueLatencyNanos.
+     */
+    boolean isSaturated(long maxQueueLatencyNanos) {
+        int currentSize = size;
+        if (currentSize >= capacity) {
+            return true;
+        }
+        if (maxQueueLatencyNanos < 0 || currentSize == 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            JavascriptTask oldest = tasks.peekFirst();
+            return oldest != null && oldest.waitedLongerThan(maxQueueLatencyNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the youngest stealable task or null.
+     */
+    @Nullable
+    JavascriptTask steal() {
+        if (size == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Iterator<JavascriptTask> iter = tasks.descendingIterator();
+            while (iter.hasNext()) {
+                JavascriptTask task = iter.next();
+                if (task.stealable) {
+                    iter.remove();
+                    size = tasks.size();
+                    return task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
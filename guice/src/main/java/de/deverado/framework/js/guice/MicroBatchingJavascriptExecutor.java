@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.nashorn.NashornHelper;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Coalesces {@link #submitFunctionInvocation(String, Object...)} calls of the functions configured in
+ * {@link JavascriptMicroBatchConfig}: submissions arriving within the configured window (or up to the max batch
+ * size) become one task on the delegate executor that calls the javascript batch handler once. The results are
+ * fanned back out to the individual futures. Saves the per-task handoff to the engine thread and the per-call
+ * overhead of entering javascript, at the cost of up to one window of latency.
+ * <p>
+ *     All other submissions, including keyed ones and ones with deadlines, go to the delegate unchanged.
+ * </p>
+ */
+@Singleton
+@ParametersAreNonnullByDefault
+public class MicroBatchingJavascriptExecutor implements JavascriptExecutor {
+
+    /**
+     * Name of the binding of the executor the batches are submitted to.
+     */
+    public static final String DELEGATE_NAME = "microBatchingDelegate";
+
+    private final JavascriptExecutor delegate;
+
+    private final JavascriptMicroBatchConfig config;
+
+    private final Map<String, Batcher> batchers = new HashMap<>();
+
+    private final ScheduledExecutorService flushTimer;
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong batchedInvocationCount = new AtomicLong();
+
+    @Inject
+    public MicroBatchingJavascriptExecutor(@Named(DELEGATE_NAME) JavascriptExecutor delegate,
+                                           JavascriptMicroBatchConfig config) {
+        this.delegate = delegate;
+        this.config = config;
+        for (Map.Entry<String, String> e : config.getBatchHandlers().entrySet()) {
+            batchers.put(e.getKey(), new Batcher(e.getValue()));
+        }
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("javascriptMicroBatchFlush-%d").setDaemon(true).build());
+        timer.setRemoveOnCancelPolicy(true);
+        flushTimer = timer;
+    }
+
+    public JavascriptExecutor getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return number of batch handler calls submitted so far.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return number of function invocations that went through batch handlers so far.
+     */
+    public long getBatchedInvocationCount() {
+        return batchedInvocationCount.get();
+    }
+
+    /**
+     * Submits pending batches and stops the flush timer. Later submissions of batched functions aren't delayed
+     * anymore: each is submitted to the delegate right away as a batch of its own (failing if the delegate is shut
+     * down).
+     */
+    public void shutdown() {
+        for (Batcher b : batchers.values()) {
+            b.flush(-1);
+        }
+        flushTimer.shutdown();
+    }
+
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocation(String functionName, Object... jsCompatibleArgs) {
+        Batcher batcher = batchers.get(functionName);
+        if (batcher == null) {
+            return delegate.submitFunctionInvocation(functionName, jsCompatibleArgs);
+        }
+        return batcher.add(jsCompatibleArgs);
+    }
+
+    @Override
+    public ListenableFuture<Object> submit(Function<JavascriptEngineContext, Object> func) {
+        return delegate.submit(func);
+    }
+
+    @Nullable
+    @Override
+    public ListenableFuture<Object> trySubmit(Function<JavascriptEngineContext, Object> func) {
+        return delegate.trySubmit(func);
+    }
+
+    /**
+     * @return queue depth of the delegate, invocations waiting for their batch not included.
+     */
+    @Override
+    public int getQueueDepth() {
+        return delegate.getQueueDepth();
+    }
+
+    @Override
+    public ListenableFuture<Object> submitWithDeadline(long deadlineNanos,
+                                                       Function<JavascriptEngineContext, Object> func) {
+        return delegate.submitWithDeadline(deadlineNanos, func);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEvalWithDeadline(long deadlineNanos, String scriptCode) {
+        return delegate.submitEvalWithDeadline(deadlineNanos, scriptCode);
+    }
+
+    /**
+     * Not batched, the deadline applies to the single invocation.
+     */
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocationWithDeadline(long deadlineNanos, String functionName,
+                                                                         Object... jsCompatibleArgs) {
+        return delegate.submitFunctionInvocationWithDeadline(deadlineNanos, functionName, jsCompatibleArgs);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEval(String scriptCode) {
+        return delegate.submitEval(scriptCode);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitMethodInvocation(Object scriptObject, String methodName,
+                                                           Object... jsCompatibleArgs) {
+        return delegate.submitMethodInvocation(scriptObject, methodName, jsCompatibleArgs);
+    }
+
+    @Override
+    public ListenableFuture<List<JavascriptInvocationResult>> submitFunctionInvocationBatch(String functionName,
+                                                                                            List<Object[]> argsList) {
+        return delegate.submitFunctionInvocationBatch(functionName, argsList);
+    }
+
+    @Override
+    public ListenableFuture<List<JavascriptInvocationResult>> submitMethodInvocationBatch(Object scriptObject,
+                                                                                          String methodName,
+                                                                                          List<Object[]> argsList) {
+        return delegate.submitMethodInvocationBatch(scriptObject, methodName, argsList);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitWithKey(Object routingKey, Function<JavascriptEngineContext, Object> func) {
+        return delegate.submitWithKey(routingKey, func);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEvalWithKey(Object routingKey, String scriptCode) {
+        return delegate.submitEvalWithKey(routingKey, scriptCode);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocationWithKey(Object routingKey, String functionName,
+                                                                    Object... jsCompatibleArgs) {
+        return delegate.submitFunctionInvocationWithKey(routingKey, functionName, jsCompatibleArgs);
+    }
+
+    private class Batcher {
+
+        private final String batchHandlerName;
+
+        /**
+         * Guarded by this.
+         */
+        private List<Object[]> pendingArgs = new ArrayList<>();
+
+        /**
+         * Guarded by this.
+         */
+        private List<SettableFuture<Object>> pendingFutures = new ArrayList<>();
+
+        /**
+         * Guarded by this. Incremented per batch so a timer only flushes the batch it was started for.
+         */
+        private long generation;
+
+        Batcher(String batchHandlerName) {
+            this.batchHandlerName = batchHandlerName;
+        }
+
+        ListenableFuture<Object> add(Object[] args) {
+            SettableFuture<Object> result = SettableFuture.create();
+            List<Object[]> fullArgs = null;
+            List<SettableFuture<Object>> fullFutures = null;
+            long startedGeneration = -1;
+            synchronized (this) {
+                if (pendingArgs.isEmpty()) {
+                    startedGeneration = ++generation;
+                }
+                pendingArgs.add(args);
+                pendingFutures.add(result);
+                if (pendingArgs.size() >= config.getMaxBatchSize()) {
+                    fullArgs = pendingArgs;
+                    fullFutures = pendingFutures;
+                    pendingArgs = new ArrayList<>();
+                    pendingFutures = new ArrayList<>();
+                    generation++;
+                }
+            }
+            if (fullArgs != null) {
+                submitBatch(fullArgs, fullFutures);
+            } else if (startedGeneration >= 0) {
+                long gen = startedGeneration;
+                try {
+                    flushTimer.schedule(() -> flush(gen), config.getWindowNanos(), TimeUnit.NANOSECONDS);
+                } catch (RuntimeException e) {
+                    // timer shut down, no waiting for more
+                    flush(gen);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @param gen only flush if the pending batch is still of this generation, -1 for any.
+         */
+        void flush(long gen) {
+            List<Object[]> args;
+            List<SettableFuture<Object>> futures;
+            synchronized (this) {
+                if (pendingArgs.isEmpty() || (gen >= 0 && gen != generation)) {
+                    return;
+                }
+                args = pendingArgs;
+                futures = pendingFutures;
+                pendingArgs = new ArrayList<>();
+                pendingFutures = new ArrayList<>();
+                generation++;
+            }
+            submitBatch(args, futures);
+        }
+
+        private void submitBatch(List<Object[]> pendingArgs, List<SettableFuture<Object>> pendingFutures) {
+            List<Object[]> args = new ArrayList<>(pendingArgs.size());
+            List<SettableFuture<Object>> futures = new ArrayList<>(pendingFutures.size());
+            for (int i = 0; i < pendingFutures.size(); i++) {
+                // cancelled while waiting for the batch
+                if (!pendingFutures.get(i).isDone()) {
+                    args.add(pendingArgs.get(i));
+                    futures.add(pendingFutures.get(i));
+                }
+            }
+            if (futures.isEmpty()) {
+                return;
+            }
+            batchCount.incrementAndGet();
+            batchedInvocationCount.addAndGet(args.size());
+            Object[][] argsArray = args.toArray(new Object[args.size()][]);
+            ListenableFuture<Object> batchResult;
+            try {
+                // the results must be read on the engine thread
+                batchResult = delegate.submit(context -> NashornHelper.toList(
+                        context.invokeFunction(batchHandlerName, toScriptArray(context, argsArray))));
+            } catch (RuntimeException e) {
+                for (SettableFuture<Object> f : futures) {
+                    f.setException(e);
+                }
+                return;
+            }
+            Futures.addCallback(batchResult, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    List<?> results = (List<?>) result;
+                    if (results.size() != futures.size()) {
+                        IllegalStateException e = new IllegalStateException("Batch handler " + batchHandlerName
+                                + " returned " + results.size() + " results for " + futures.size()
+                                + " invocations");
+                        for (SettableFuture<Object> f : futures) {
+                            f.setException(e);
+                        }
+                        return;
+                    }
+                    for (int i = 0; i < futures.size(); i++) {
+                        futures.get(i).set(results.get(i));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    for (SettableFuture<Object> f : futures) {
+                        f.setException(t);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        /**
+         * Java.from of the engine, so the batch handler gets a javascript array with map, forEach etc. One cached
+         * eval and one call per batch, the argument arrays of the entries stay java arrays.
+         */
+        private Object toScriptArray(JavascriptEngineContext context, Object[][] argsArray) {
+            return context.invokeMethod(context.getScriptObject("Java"), "from", new Object[]{argsArray});
+        }
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Singleton;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.nashorn.NashornEngineWarmer;
+import de.deverado.framework.js.nashorn.NashornJavascriptEnginePool;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Executes javascript on multiple engines, one thread per engine (shard). Each shard uses one member of a
+ * {@link NashornJavascriptEnginePool} and has its own bounded queue. Submits go to the least loaded shard, idle
+ * shards steal queued work from busy ones.
+ * <p>
+ *     Work submitted with a routing key always goes to the key's shard (consistent hashing) and is never stolen,
+ *     so each engine stays hot on its own set of code. Only if the key's shard has a load of
+ *     {@link ShardedJavascriptExecutorConfig#getAffinitySpilloverQueueDepth()} or more the work spills over to
+ *     the next {@link ShardedJavascriptExecutorConfig#getAffinityMaxSpilloverShards()} shards.
+ * </p>
+ * <p>
+ *     With a warmup plan configured (see {@link ShardedJavascriptExecutorConfig#setWarmupPlan}) shards don't take
+ *     work before {@link #startWarmup()} warmed up their engine. Unkeyed work prefers warm shards meanwhile.
+ *     Idle shards can keep their engines warm in the background.
+ * </p>
+ * <p>
+ *     Functions given to {@link #submit(Function)} run on one shard only. Load libraries via the pool (which is
+ *     bound as {@link JavascriptEngineContext} by {@link ShardedJavascriptExecutorModule}), that loads them into
+ *     all engines. Method invocations on script objects returned by this executor run on the shard that owns the
+ *     object.
+ * </p>
+ * <p>
+ *     With time budgets configured tasks running too long are aborted, see {@link JavascriptExecutorImpl}. An
+ *     engine abandoned that way is replaced by its pool member before the next task.
+ * </p>
+ */
+@Singleton
+@ParametersAreNonnullByDefault
+public class ShardedJavascriptExecutor implements JavascriptExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedJavascriptExecutor.class);
+
+    /**
+     * Idle shards recheck for stealable work at least this often.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long WARMUP_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final NashornJavascriptEnginePool pool;
+
+    private final Shard[] shards;
+
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    private final AtomicLong stolenCount = new AtomicLong();
+
+    private final AtomicLong spilloverCount = new AtomicLong();
+
+    private final int spilloverQueueDepth;
+
+    private final int maxSpilloverShards;
+
+    private final JavascriptOverflowPolicy overflowPolicy;
+
+    private final long maxQueueLatencyNanos;
+
+    private final NashornWatchdog watchdog;
+
+    private final long maxExecutionTimeNanos;
+
+    private final long maxCpuTimeNanos;
+
+    private final boolean detachResults;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong callerRunsCount = new AtomicLong();
+
+    private final AtomicLong shedCount = new AtomicLong();
+
+    private final AtomicLong skippedCancelledCount = new AtomicLong();
+
+    private final AtomicLong skippedExpiredCount = new AtomicLong();
+
+    private final long backgroundWarmupIdleNanos;
+
+    private final int backgroundWarmupRounds;
+
+    private volatile boolean warmupRequested;
+
+    private volatile boolean shutdown;
+
+    @Inject
+    public ShardedJavascriptExecutor(NashornJavascriptEnginePool pool, ShardedJavascriptExecutorConfig config) {
+        Preconditions.checkArgument(pool.getSize() >= config.getShardCount(),
+                "Pool has fewer engines than shards configured");
+        this.pool = pool;
+        spilloverQueueDepth = config.getAffinitySpilloverQueueDepth();
+        maxSpilloverShards = Math.min(config.getAffinityMaxSpilloverShards(), config.getShardCount() - 1);
+        overflowPolicy = config.getOverflowPolicy();
+        maxQueueLatencyNanos = config.getMaxQueueLatencyNanos();
+        watchdog = config.getWatchdog();
+        maxExecutionTimeNanos = config.getMaxExecutionTimeNanos();
+        maxCpuTimeNanos = config.getMaxCpuTimeNanos();
+        detachResults = config.isDetachResults();
+        if (config.getWarmupPlan() != null) {
+            pool.setWarmupPlan(config.getWarmupPlan(), true);
+        }
+        backgroundWarmupIdleNanos = config.getWarmupPlan() == null || config.getBackgroundWarmupIdleMillis() < 0
+                ? -1 : TimeUnit.MILLISECONDS.toNanos(config.getBackgroundWarmupIdleMillis());
+        backgroundWarmupRounds = config.getBackgroundWarmupRounds();
+        shards = new Shard[config.getShardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i, config.getQueueCapacityPerShard());
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return number of tasks queued (not running) in all shards.
+     */
+    @Override
+    public int getQueueDepth() {
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.queue.size();
+        }
+        return result;
+    }
+
+    /**
+     * @return number of submissions that failed with a {@link RejectedExecutionException}.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of queued tasks failed to make room with {@link JavascriptOverflowPolicy#DROP_OLDEST}.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of tasks run by submitting threads with {@link JavascriptOverflowPolicy#CALLER_RUNS}.
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+    /**
+     * @return number of tasks failed at dequeue because they exceeded the max queue latency.
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * @return number of tasks not run because their future was cancelled while they were queued.
+     */
+    public long getSkippedCancelledCount() {
+        return skippedCancelledCount.get();
+    }
+
+    /**
+     * @return number of tasks not run because their deadline passed before they were dequeued.
+     */
+    public long getSkippedExpiredCount() {
+        return skippedExpiredCount.get();
+    }
+
+    public long getStolenCount() {
+        return stolenCount.get();
+    }
+
+    /**
+     * @return number of keyed submits that didn't go to their key's shard.
+     */
+    public long getSpilloverCount() {
+        return spilloverCount.get();
+    }
+
+    /**
+     * @return the shard index work with routingKey goes to if that shard isn't overloaded.
+     */
+    public int getShardIndexForKey(Object routingKey) {
+        return Hashing.consistentHash(routingKey.hashCode(), shards.length);
+    }
+
+    /**
+     * Lets each shard warm up its engine with the configured warmup plan. Call after loading the libraries. Shards
+     * retry failed warmups every second, meanwhile warm shards take their work. If no shard is warm, the work
+     * queued on failed shards fails.
+     * @return completes when all shards are done with their first warmup (also if some failed).
+     */
+    public ListenableFuture<List<Void>> startWarmup() {
+        Preconditions.checkState(pool.getWarmer(0) != null, "No warmup plan configured");
+        warmupRequested = true;
+        List<ListenableFuture<Void>> futures = new ArrayList<>();
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+            futures.add(shard.warmer.getReadyFuture());
+        }
+        return Futures.successfulAsList(futures);
+    }
+
+    /**
+     * @return true if all shards warmed up successfully or no warmup is configured.
+     */
+    public boolean isReady() {
+        for (Shard shard : shards) {
+            if (!shard.isWarm()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the shard threads after their current task. Queued tasks are not executed, their futures fail with a
+     * {@link RejectedExecutionException}. Later submissions throw one.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+            shard.rejectQueued();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Object> submit(Function<JavascriptEngineContext, Object> func) {
+        return enqueue(new JavascriptTask(func, true), null);
+    }
+
+    /**
+     * Like {@link #submit(Function)}, but ignores the overflow policy.
+     * @return null if all shard queues are saturated.
+     */
+    @Nullable
+    @Override
+    public ListenableFuture<Object> trySubmit(Function<JavascriptEngineContext, Object> func) {
+        rejectIfShutdown();
+        JavascriptTask task = new JavascriptTask(func, true);
+        Shard chosen = pickLeastLoaded();
+        if (!chosen.offer(task)) {
+            chosen = offerToAny(task);
+            if (chosen == null) {
+                return null;
+            }
+        }
+        signalQueued(chosen, task);
+        return task.future;
+    }
+
+    @Override
+    public ListenableFuture<Object> submitWithDeadline(long deadlineNanos,
+                                                       Function<JavascriptEngineContext, Object> func) {
+        JavascriptTask task = new JavascriptTask(func, true, deadlineNanos);
+        if (task.isExpired()) {
+            skippedExpiredCount.incrementAndGet();
+            task.expire();
+            return task.future;
+        }
+        return enqueue(task, null);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEvalWithDeadline(long deadlineNanos, String scriptCode) {
+        return submitWithDeadline(deadlineNanos, context -> context.eval(scriptCode));
+    }
+
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocationWithDeadline(long deadlineNanos, String functionName,
+                                                                         Object... jsCompatibleArgs) {
+        return submitWithDeadline(deadlineNanos, context -> context.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEval(String scriptCode) {
+        return submit(context -> context.eval(scriptCode));
+    }
+
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocation(String functionName, Object... jsCompatibleArgs) {
+        return submit(context -> context.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    /**
+     * Runs on the shard owning scriptObject if it was returned by this executor, on any shard otherwise.
+     */
+    @Override
+    public ListenableFuture<Object> submitMethodInvocation(Object scriptObject, String methodName,
+                                                           Object... jsCompatibleArgs) {
+        int owner = pool.getOwnerIndex(scriptObject);
+        Function<JavascriptEngineContext, Object> func =
+                context -> context.invokeMethod(scriptObject, methodName, jsCompatibleArgs);
+        if (owner >= 0 && owner < shards.length) {
+            return enqueue(new JavascriptTask(func, false), shards[owner]);
+        }
+        return submit(func);
+    }
+
+    @Override
+    public ListenableFuture<Object> submitWithKey(Object routingKey, Function<JavascriptEngineContext, Object> func) {
+        rejectIfShutdown();
+        JavascriptTask task = new JavascriptTask(func, false);
+        int home = getShardIndexForKey(routingKey);
+        Shard chosen = shards[home];
+        if (chosen.load() >= spilloverQueueDepth) {
+            for (int i = 1; i <= maxSpilloverShards; i++) {
+                Shard candidate = shards[(home + i) % shards.length];
+                if (candidate.load() < chosen.load()) {
+                    chosen = candidate;
+                }
+            }
+        }
+        if (!chosen.offer(task)) {
+            chosen = null;
+            for (int i = 0; i <= maxSpilloverShards && chosen == null; i++) {
+                Shard candidate = shards[(home + i) % shards.length];
+                if (candidate.offer(task)) {
+                    chosen = candidate;
+                }
+            }
+            if (chosen == null) {
+                return overflow(task, shards[home]);
+            }
+        }
+        if (chosen.index != home) {
+            spilloverCount.incrementAndGet();
+        }
+        chosen.signal();
+        return task.future;
+    }
+
+    @Override
+    public ListenableFuture<Object> submitEvalWithKey(Object routingKey, String scriptCode) {
+        return submitWithKey(routingKey, context -> context.eval(scriptCode));
+    }
+
+    @Override
+    public ListenableFuture<Object> submitFunctionInvocationWithKey(Object routingKey, String functionName,
+                                                                    Object... jsCompatibleArgs) {
+        return submitWithKey(routingKey, context -> context.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ListenableFuture<List<JavascriptInvocationResult>> submitFunctionInvocationBatch(String functionName,
+                                                                                            List<Object[]> argsList) {
+        return (ListenableFuture) submit(context -> context.invokeFunctionBatch(functionName, argsList));
+    }
+
+    /**
+     * Runs on the shard owning scriptObject if it was returned by this executor, on any shard otherwise.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ListenableFuture<List<JavascriptInvocationResult>> submitMethodInvocationBatch(Object scriptObject,
+                                                                                          String methodName,
+                                                                                          List<Object[]> argsList) {
+        Function<JavascriptEngineContext, Object> func =
+                context -> context.invokeMethodBatch(scriptObject, methodName, argsList);
+        int owner = pool.getOwnerIndex(scriptObject);
+        if (owner >= 0 && owner < shards.length) {
+            return (ListenableFuture) enqueue(new JavascriptTask(func, false), shards[owner]);
+        }
+        return (ListenableFuture) submit(func);
+    }
+
+    private ListenableFuture<Object> enqueue(JavascriptTask task, @Nullable Shard target) {
+        rejectIfShutdown();
+        Shard preferred = target == null ? pickLeastLoaded() : target;
+        Shard chosen = preferred;
+        if (!chosen.offer(task)) {
+            chosen = target == null ? offerToAny(task) : null;
+            if (chosen == null) {
+                return overflow(task, preferred);
+            }
+        }
+        signalQueued(chosen, task);
+        return task.future;
+    }
+
+    private void rejectIfShutdown() {
+        if (shutdown) {
+            rejectedCount.incrementAndGet();
+            throw new RejectedExecutionException("Javascript executor shut down");
+        }
+    }
+
+    private void signalQueued(Shard chosen, JavascriptTask task) {
+        if (shutdown) {
+            // shut down after the check in enqueue, the shard might not drain its queue anymore
+            chosen.rejectQueued();
+            return;
+        }
+        chosen.signal();
+        if (chosen.busy && task.stealable) {
+            wakeIdleShard();
+        }
+    }
+
+    /**
+     * Applies the overflow policy to a task no queue accepted.
+     * @param shard the shard task should have gone to.
+     */
+    private ListenableFuture<Object> overflow(JavascriptTask task, Shard shard) {
+        switch (overflowPolicy) {
+            case CALLER_RUNS:
+                callerRunsCount.incrementAndGet();
+                try {
+                    if (task.stealable) {
+                        pool.withContext(context -> runBudgeted(task, context));
+                    } else {
+                        pool.withMember(shard.index, context -> runBudgeted(task, context));
+                    }
+                    task.complete();
+                } catch (Throwable t) {
+                    task.future.setException(t);
+                }
+                break;
+            case DROP_OLDEST:
+                JavascriptTask dropped = shard.queue.replaceOldest(task);
+                if (dropped != null) {
+                    droppedCount.incrementAndGet();
+                    dropped.reject("Dropped from saturated javascript shard queue");
+                }
+                signalQueued(shard, task);
+                break;
+            default:
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("Javascript executor queues saturated");
+        }
+        return task.future;
+    }
+
+    @Nullable
+    private Object runBudgeted(JavascriptTask task, JavascriptEngineContext context) {
+        return task.run(context, watchdog, maxExecutionTimeNanos, maxCpuTimeNanos, detachResults);
+    }
+
+    private Shard pickLeastLoaded() {
+        int start = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        Shard best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            // cold shards only get work if no shard is warm
+            int load = shard.isWarm() ? shard.load() : Integer.MAX_VALUE - 1;
+            if (load == 0) {
+                return shard;
+            }
+            if (best == null || load < bestLoad) {
+                best = shard;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    @Nullable
+    private Shard offerToAny(JavascriptTask task) {
+        for (Shard shard : shards) {
+            if (shard.offer(task)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private boolean isAnyShardWarm() {
+        for (Shard shard : shards) {
+            if (shard.isWarm()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void wakeIdleShard() {
+        for (Shard shard : shards) {
+            if (shard.idle && shard.isWarm()) {
+                LockSupport.unpark(shard.thread);
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private JavascriptTask steal(Shard thief) {
+        for (int i = 1; i < shards.length; i++) {
+            Shard victim = shards[(thief.index + i) % shards.length];
+            if (victim.busy || !victim.isWarm()) {
+                JavascriptTask result = victim.queue.steal();
+                if (result != null) {
+                    stolenCount.incrementAndGet();
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    private class Shard implements Runnable {
+
+        final int index;
+
+        final JavascriptTaskQueue queue;
+
+        final Thread thread;
+
+        @Nullable
+        final NashornEngineWarmer warmer;
+
+        volatile boolean idle;
+
+        volatile boolean busy;
+
+        Shard(int index, int queueCapacity) {
+            this.index = index;
+            this.queue = new JavascriptTaskQueue(queueCapacity);
+            thread = new Thread(this, "javascriptExecutor-shard-" + index);
+            thread.setDaemon(true);
+            warmer = pool.getWarmer(index);
+        }
+
+        boolean isWarm() {
+            return warmer == null || warmer.isReady();
+        }
+
+        boolean isWarmupFailed() {
+            return warmer != null && warmer.getState() == NashornEngineWarmer.State.FAILED;
+        }
+
+        int load() {
+            return queue.size() + (busy ? 1 : 0);
+        }
+
+        /**
+         * @return false if the queue is saturated.
+         */
+        boolean offer(JavascriptTask task) {
+            return !queue.isSaturated(maxQueueLatencyNanos) && queue.offer(task);
+        }
+
+        void signal() {
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Fails the queued tasks, after shutdown.
+         */
+        void rejectQueued() {
+            rejectQueued("Javascript executor shut down", null);
+        }
+
+        void rejectQueued(String message, @Nullable Throwable cause) {
+            for (JavascriptTask task = queue.poll(); task != null; task = queue.poll()) {
+                task.reject(message, cause);
+            }
+        }
+
+        @Nullable
+        JavascriptTask next() {
+            JavascriptTask result = queue.poll();
+            if (result == null) {
+                result = steal(this);
+            }
+            return result;
+        }
+
+        @Override
+        public void run() {
+            long idleSince = System.nanoTime();
+            long lastWarmupNanos = 0;
+            while (!shutdown) {
+                if (!isWarm()) {
+                    if (warmupRequested && (!isWarmupFailed()
+                            || System.nanoTime() - lastWarmupNanos >= WARMUP_RETRY_NANOS)) {
+                        runWarmup(warmer::warmUp);
+                        lastWarmupNanos = System.nanoTime();
+                    } else {
+                        if (isWarmupFailed() && !isAnyShardWarm()) {
+                            rejectQueued("Javascript engine warmup failed", warmer.getFailure());
+                        }
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    continue;
+                }
+                JavascriptTask task = next();
+                if (task == null) {
+                    idle = true;
+                    // recheck after publishing idle state to not miss a signal
+                    task = next();
+                    if (task == null) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        idle = false;
+                        if (backgroundWarmupIdleNanos >= 0
+                                && System.nanoTime() - idleSince >= backgroundWarmupIdleNanos) {
+                            runWarmup(() -> warmer.warmRounds(backgroundWarmupRounds));
+                            idleSince = System.nanoTime();
+                        }
+                        continue;
+                    }
+                    idle = false;
+                }
+                if (task.skipIfDoneOrExpired(skippedCancelledCount, skippedExpiredCount)) {
+                    continue;
+                }
+                if (task.waitedLongerThan(maxQueueLatencyNanos)) {
+                    shedCount.incrementAndGet();
+                    task.reject("Shed after exceeding max javascript queue latency");
+                    continue;
+                }
+                busy = true;
+                try {
+                    execute(task);
+                } finally {
+                    busy = false;
+                    idleSince = System.nanoTime();
+                }
+            }
+            rejectQueued();
+        }
+
+        private void execute(JavascriptTask task) {
+            try {
+                pool.withMember(index, context -> runBudgeted(task, context));
+                task.complete();
+            } catch (Throwable t) {
+                LOG.error("Unexpected error in javascript shard {}", index, t);
+                task.future.setException(t);
+            }
+        }
+
+        private void runWarmup(Runnable warmup) {
+            try {
+                pool.withMember(index, context -> {
+                    warmup.run();
+                    return null;
+                });
+            } catch (Throwable t) {
+                LOG.error("Warmup error in javascript shard {}", index, t);
+            }
+        }
+    }
+}
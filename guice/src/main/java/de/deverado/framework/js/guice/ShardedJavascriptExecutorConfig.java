@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.common.base.Preconditions;
+import de.deverado.framework.js.nashorn.NashornWarmupPlan;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of {@link ShardedJavascriptExecutor}. Setters return this for chaining.
+ */
+public class ShardedJavascriptExecutorConfig {
+
+    private int shardCount = Runtime.getRuntime().availableProcessors();
+
+    private int queueCapacityPerShard = 10000;
+
+    private int affinitySpilloverQueueDepth = 64;
+
+    private int affinityMaxSpilloverShards = 1;
+
+    private JavascriptOverflowPolicy overflowPolicy = JavascriptOverflowPolicy.REJECT;
+
+    private long maxQueueLatencyNanos = -1;
+
+    private long maxExecutionTimeNanos = -1;
+
+    private long maxCpuTimeNanos = -1;
+
+    private NashornWatchdog watchdog = NashornWatchdog.getDefault();
+
+    private boolean detachResults;
+
+    private NashornWarmupPlan warmupPlan;
+
+    private long backgroundWarmupIdleMillis = -1;
+
+    private int backgroundWarmupRounds = 10;
+
+    public static ShardedJavascriptExecutorConfig create() {
+        return new ShardedJavascriptExecutorConfig();
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @param shardCount number of engines and threads, defaults to the number of processors. Each engine needs
+     *                   its own warmup (see {@link NashornJavascriptModule}), so less might be better.
+     */
+    public ShardedJavascriptExecutorConfig setShardCount(int shardCount) {
+        Preconditions.checkArgument(shardCount > 0, "shardCount must be positive");
+        this.shardCount = shardCount;
+        return this;
+    }
+
+    public int getQueueCapacityPerShard() {
+        return queueCapacityPerShard;
+    }
+
+    /**
+     * @param queueCapacityPerShard submits fail with a
+     *                              {@link java.util.concurrent.RejectedExecutionException} if all queues are full.
+     */
+    public ShardedJavascriptExecutorConfig setQueueCapacityPerShard(int queueCapacityPerShard) {
+        Preconditions.checkArgument(queueCapacityPerShard > 0, "queueCapacityPerShard must be positive");
+        this.queueCapacityPerShard = queueCapacityPerShard;
+        return this;
+    }
+
+    public int getAffinitySpilloverQueueDepth() {
+        return affinitySpilloverQueueDepth;
+    }
+
+    /**
+     * @param affinitySpilloverQueueDepth keyed work goes to another shard if the load of the key's shard reaches
+     *                                    this.
+     */
+    public ShardedJavascriptExecutorConfig setAffinitySpilloverQueueDepth(int affinitySpilloverQueueDepth) {
+        Preconditions.checkArgument(affinitySpilloverQueueDepth > 0, "affinitySpilloverQueueDepth must be positive");
+        this.affinitySpilloverQueueDepth = affinitySpilloverQueueDepth;
+        return this;
+    }
+
+    public int getAffinityMaxSpilloverShards() {
+        return affinityMaxSpilloverShards;
+    }
+
+    /**
+     * @param affinityMaxSpilloverShards how many other shards (always the same ones for a key) may take keyed
+     *                                   work when the key's shard is overloaded. 0 disables spillover.
+     */
+    public ShardedJavascriptExecutorConfig setAffinityMaxSpilloverShards(int affinityMaxSpilloverShards) {
+        Preconditions.checkArgument(affinityMaxSpilloverShards >= 0, "affinityMaxSpilloverShards mustn't be negative");
+        this.affinityMaxSpilloverShards = affinityMaxSpilloverShards;
+        return this;
+    }
+
+    public JavascriptOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy applied to submissions while the queues they could go to are saturated, defaults to
+     *                       {@link JavascriptOverflowPolicy#REJECT}.
+     */
+    public ShardedJavascriptExecutorConfig setOverflowPolicy(JavascriptOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy, "overflowPolicy");
+        return this;
+    }
+
+    /**
+     * @return -1 if queue latency isn't limited.
+     */
+    public long getMaxQueueLatencyNanos() {
+        return maxQueueLatencyNanos;
+    }
+
+    /**
+     * Enables shedding by queue latency, see {@link JavascriptExecutorConfig#setMaxQueueLatency(long, TimeUnit)}.
+     * Applies per shard queue.
+     * @param maxQueueLatency -1 to disable (the default).
+     */
+    public ShardedJavascriptExecutorConfig setMaxQueueLatency(long maxQueueLatency, TimeUnit unit) {
+        Preconditions.checkArgument(maxQueueLatency >= -1, "maxQueueLatency must be -1 or positive");
+        this.maxQueueLatencyNanos = maxQueueLatency < 0 ? -1 : unit.toNanos(maxQueueLatency);
+        return this;
+    }
+
+    /**
+     * @return -1 if execution time isn't limited.
+     */
+    public long getMaxExecutionTimeNanos() {
+        return maxExecutionTimeNanos;
+    }
+
+    /**
+     * Limits the wall clock time of each task, see {@link NashornWatchdog}. Tasks over budget fail with a
+     * {@link de.deverado.framework.js.api.JavascriptTimeoutException}. While too many threads abandoned by the
+     * watchdog are still running, tasks fail fast with a {@link java.util.concurrent.RejectedExecutionException},
+     * see {@link NashornWatchdog#setMaxAbandoned(int)}.
+     * @param maxExecutionTime -1 to disable (the default).
+     */
+    public ShardedJavascriptExecutorConfig setMaxExecutionTime(long maxExecutionTime, TimeUnit unit) {
+        Preconditions.checkArgument(maxExecutionTime >= -1, "maxExecutionTime must be -1 or positive");
+        this.maxExecutionTimeNanos = maxExecutionTime < 0 ? -1 : unit.toNanos(maxExecutionTime);
+        return this;
+    }
+
+    /**
+     * @return -1 if CPU time isn't limited.
+     */
+    public long getMaxCpuTimeNanos() {
+        return maxCpuTimeNanos;
+    }
+
+    /**
+     * Like {@link #setMaxExecutionTime(long, TimeUnit)}, but limits the CPU time of the executing thread. Doesn't
+     * count time the thread waits, e.g. for a lock or I/O.
+     * @param maxCpuTime -1 to disable (the default).
+     */
+    public ShardedJavascriptExecutorConfig setMaxCpuTime(long maxCpuTime, TimeUnit unit) {
+        Preconditions.checkArgument(maxCpuTime >= -1, "maxCpuTime must be -1 or positive");
+        this.maxCpuTimeNanos = maxCpuTime < 0 ? -1 : unit.toNanos(maxCpuTime);
+        return this;
+    }
+
+    public NashornWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * @param watchdog enforces the time budgets, defaults to {@link NashornWatchdog#getDefault()}. Reports abandoned
+     *                 threads to its own {@link NashornWatchdog#setMetrics metrics}.
+     */
+    public ShardedJavascriptExecutorConfig setWatchdog(NashornWatchdog watchdog) {
+        this.watchdog = Preconditions.checkNotNull(watchdog, "watchdog");
+        return this;
+    }
+
+    @Nullable
+    public NashornWarmupPlan getWarmupPlan() {
+        return warmupPlan;
+    }
+
+    /**
+     * @param warmupPlan if set shards don't execute work before their engine is warmed up with this plan. Start
+     *                   warmup with {@link ShardedJavascriptExecutor#startWarmup()} after loading the libraries.
+     */
+    public ShardedJavascriptExecutorConfig setWarmupPlan(@Nullable NashornWarmupPlan warmupPlan) {
+        this.warmupPlan = warmupPlan;
+        return this;
+    }
+
+    public long getBackgroundWarmupIdleMillis() {
+        return backgroundWarmupIdleMillis;
+    }
+
+    /**
+     * @param backgroundWarmupIdleMillis shards idle for this long run {@link #getBackgroundWarmupRounds()} warmup
+     *                                   rounds, again after each further period of idleness. Negative disables
+     *                                   background warmup (default). Requires a warmup plan.
+     */
+    public ShardedJavascriptExecutorConfig setBackgroundWarmupIdleMillis(long backgroundWarmupIdleMillis) {
+        this.backgroundWarmupIdleMillis = backgroundWarmupIdleMillis;
+        return this;
+    }
+
+    public int getBackgroundWarmupRounds() {
+        return backgroundWarmupRounds;
+    }
+
+    public ShardedJavascriptExecutorConfig setBackgroundWarmupRounds(int backgroundWarmupRounds) {
+        Preconditions.checkArgument(backgroundWarmupRounds > 0, "backgroundWarmupRounds must be positive");
+        this.backgroundWarmupRounds = backgroundWarmupRounds;
+        return this;
+    }
+
+    public boolean isDetachResults() {
+        return detachResults;
+    }
+
+    /**
+     * @param detachResults true to convert task results with {@link
+     *                      de.deverado.framework.js.api.JavascriptEngineContext#detach(Object)} on the engine
+     *                      thread, so future consumers never call into the engine. Results can't be used as script
+     *                      objects then. Defaults to false.
+     */
+    public ShardedJavascriptExecutorConfig setDetachResults(boolean detachResults) {
+        this.detachResults = detachResults;
+        return this;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.nashorn.NashornJavascriptEnginePool;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Binds a {@link ShardedJavascriptExecutor} as {@link JavascriptExecutor} and its
+ * {@link NashornJavascriptEnginePool} as pool and as {@link JavascriptEngineContext}. Use instead of
+ * {@link JavascriptExecutorModule} and {@link NashornJavascriptModule} when javascript should use more than
+ * one core.
+ */
+@ParametersAreNonnullByDefault
+public class ShardedJavascriptExecutorModule extends AbstractModule {
+
+    private ShardedJavascriptExecutorConfig config;
+
+    private NashornJavascriptEnginePool pool;
+
+    private JavascriptMicroBatchConfig microBatchConfig;
+
+    public static ShardedJavascriptExecutorModule create() {
+        return create(ShardedJavascriptExecutorConfig.create());
+    }
+
+    public static ShardedJavascriptExecutorModule create(ShardedJavascriptExecutorConfig config) {
+        return createWithPool(config, null);
+    }
+
+    /**
+     * @param pool must have at least {@link ShardedJavascriptExecutorConfig#getShardCount()} members. Created
+     *             with new engines if null.
+     */
+    public static ShardedJavascriptExecutorModule createWithPool(ShardedJavascriptExecutorConfig config,
+                                                                 @Nullable NashornJavascriptEnginePool pool) {
+        ShardedJavascriptExecutorModule result = new ShardedJavascriptExecutorModule();
+        result.config = config;
+        result.pool = pool;
+        return result;
+    }
+
+    /**
+     * Binds a {@link MicroBatchingJavascriptExecutor} in front of the {@link ShardedJavascriptExecutor}.
+     * @param microBatchConfig null to bind the {@link ShardedJavascriptExecutor} directly.
+     */
+    public ShardedJavascriptExecutorModule withMicroBatching(@Nullable JavascriptMicroBatchConfig microBatchConfig) {
+        this.microBatchConfig = microBatchConfig;
+        return this;
+    }
+
+    @Override
+    protected void configure() {
+        if (pool == null) {
+            pool = NashornJavascriptEnginePool.createWithNewEngines(config.getShardCount());
+        }
+        bind(ShardedJavascriptExecutorConfig.class).toInstance(config);
+        bind(NashornJavascriptEnginePool.class).toInstance(pool);
+        bind(JavascriptEngineContext.class).toInstance(pool);
+        if (microBatchConfig == null) {
+            bind(JavascriptExecutor.class).to(ShardedJavascriptExecutor.class);
+        } else {
+            bind(JavascriptMicroBatchConfig.class).toInstance(microBatchConfig);
+            bind(JavascriptExecutor.class).annotatedWith(Names.named(MicroBatchingJavascriptExecutor.DELEGATE_NAME))
+                    .to(ShardedJavascriptExecutor.class);
+            bind(JavascriptExecutor.class).to(MicroBatchingJavascriptExecutor.class);
+        }
+    }
+
+    public ShardedJavascriptExecutorConfig getConfig() {
+        return config;
+    }
+
+    public NashornJavascriptEnginePool getPool() {
+        return pool;
+    }
+}
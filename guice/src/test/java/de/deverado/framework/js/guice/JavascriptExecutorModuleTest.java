@@ -4,14 +4,37 @@
 package de.deverado.framework.js.guice;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Guice;
 import de.deverado.framework.guice.coreext.problemreporting.LoggingProblemReporterModule;
 import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.api.JavascriptTimeoutException;
+import de.deverado.framework.js.api.JmxJavascriptMetrics;
+import de.deverado.framework.js.nashorn.NashornJavascriptEngineContext;
+import de.deverado.framework.js.nashorn.NashornJavascriptEngineHolder;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 public class JavascriptExecutorModuleTest {
@@ -47,4 +70,339 @@ public class JavascriptExecutorModuleTest {
         }).get();
         assertEquals(5.0, cut.submitMethodInvocation(gobj, "adder", 2).get());
     }
+
+    @Test
+    public void testSubmitFunctionInvocationBatch() throws Exception {
+        cut.submit(javascriptEngineContext -> {
+            javascriptEngineContext.evalIntoEngine("globalCode", "function adder(a, b) { return a + b; }");
+            return null;
+        }).get();
+        List<JavascriptInvocationResult> results = cut.submitFunctionInvocationBatch("adder",
+                Arrays.asList(new Object[]{1, 2}, new Object[]{3, 4})).get();
+        assertEquals(3.0, results.get(0).getValue());
+        assertEquals(7.0, results.get(1).getValue());
+    }
+
+    @Test
+    public void testMicroBatching() throws Exception {
+        JavascriptExecutor batching = Guice.createInjector(new LoggingProblemReporterModule(),
+                new JavascriptExecutorModule().withMicroBatching(JavascriptMicroBatchConfig.create()
+                        .addBatchHandler("adder", "adderBatch").setMaxBatchSize(5).setWindow(10, TimeUnit.SECONDS)),
+                new NashornJavascriptModule())
+                .getInstance(JavascriptExecutor.class);
+        batching.submit(context -> {
+            context.evalIntoEngine("batch.js", "function adder(a, b) { return a + b; }\n"
+                    + "var batchCalls = 0;\n"
+                    + "function adderBatch(argsList) {\n"
+                    + "  batchCalls++;\n"
+                    + "  return argsList.map(function(args) { return adder(args[0], args[1]); });\n"
+                    + "}");
+            return null;
+        }).get();
+
+        List<ListenableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(batching.submitFunctionInvocation("adder", i, 1));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i + 1.0, ((Number) results.get(i).get(5, TimeUnit.SECONDS)).doubleValue(), 0);
+        }
+        assertEquals(2, ((Number) batching.submit(context -> context.getScriptObject("batchCalls")).get())
+                .intValue());
+        assertEquals(2L, ((MicroBatchingJavascriptExecutor) batching).getBatchCount());
+        // not batched
+        assertEquals(3.0, ((Number) batching.submitFunctionInvocationWithKey("k", "adder", 1, 2).get())
+                .doubleValue(), 0);
+
+        // shutdown submits the pending batch without waiting for the window, later invocations aren't delayed
+        ListenableFuture<Object> pending = batching.submitFunctionInvocation("adder", 2, 2);
+        ((MicroBatchingJavascriptExecutor) batching).shutdown();
+        assertEquals(4.0, ((Number) pending.get(5, TimeUnit.SECONDS)).doubleValue(), 0);
+        assertEquals(5.0, ((Number) batching.submitFunctionInvocation("adder", 2, 3).get(5, TimeUnit.SECONDS))
+                .doubleValue(), 0);
+        assertEquals(4L, ((MicroBatchingJavascriptExecutor) batching).getBatchCount());
+    }
+
+    @Test
+    public void testMicroBatchingLeavesOutCancelled() throws Exception {
+        MicroBatchingJavascriptExecutor batching = (MicroBatchingJavascriptExecutor) Guice.createInjector(
+                new LoggingProblemReporterModule(),
+                new JavascriptExecutorModule().withMicroBatching(JavascriptMicroBatchConfig.create()
+                        .addBatchHandler("twice", "twiceBatch").setWindow(10, TimeUnit.SECONDS)),
+                new NashornJavascriptModule())
+                .getInstance(JavascriptExecutor.class);
+        batching.submit(context -> {
+            context.evalIntoEngine("batch.js", "var batchSizes = [];\n"
+                    + "function twiceBatch(argsList) {\n"
+                    + "  batchSizes.push(argsList.length);\n"
+                    + "  return argsList.map(function(args) { return args[0] * 2; });\n"
+                    + "}");
+            return null;
+        }).get();
+
+        ListenableFuture<Object> cancelled = batching.submitFunctionInvocation("twice", 1);
+        ListenableFuture<Object> kept = batching.submitFunctionInvocation("twice", 2);
+        cancelled.cancel(false);
+        batching.shutdown();
+
+        assertEquals(4.0, ((Number) kept.get(5, TimeUnit.SECONDS)).doubleValue(), 0);
+        assertEquals("1", batching.submit(context -> context.getScriptObject("batchSizes.join()")).get());
+        assertEquals(1L, batching.getBatchedInvocationCount());
+    }
+
+    @Test
+    public void testRejectWhenQueueFull() throws Exception {
+        JavascriptExecutorImpl bounded = createBounded(JavascriptExecutorConfig.create().setQueueCapacity(2));
+        CountDownLatch release = blockEngine(bounded);
+        ListenableFuture<Object> first;
+        try {
+            first = bounded.submitEval("1");
+            bounded.submitEval("2");
+            assertEquals(2, bounded.getQueueDepth());
+            assertNull(bounded.trySubmit(context -> context.eval("3")));
+            try {
+                bounded.submitEval("3");
+                fail("expected rejection");
+            } catch (RejectedExecutionException expected) {
+                // ok
+            }
+            assertEquals(1, bounded.getRejectedCount());
+        } finally {
+            release.countDown();
+        }
+        assertEquals(1, first.get());
+        assertEquals(4, bounded.submitEval("4").get());
+    }
+
+    @Test
+    public void testDropOldestWhenQueueFull() throws Exception {
+        JavascriptExecutorImpl bounded = createBounded(JavascriptExecutorConfig.create().setQueueCapacity(2)
+                .setOverflowPolicy(JavascriptOverflowPolicy.DROP_OLDEST));
+        CountDownLatch release = blockEngine(bounded);
+        ListenableFuture<Object> first = bounded.submitEval("1");
+        ListenableFuture<Object> second = bounded.submitEval("2");
+        ListenableFuture<Object> third = bounded.submitEval("3");
+        release.countDown();
+        assertRejected(first);
+        assertEquals(2, second.get());
+        assertEquals(3, third.get());
+        assertEquals(1, bounded.getDroppedCount());
+    }
+
+    @Test
+    public void testCallerRunsWhenQueueFull() throws Exception {
+        JavascriptExecutorImpl bounded = createBounded(JavascriptExecutorConfig.create().setQueueCapacity(1)
+                .setOverflowPolicy(JavascriptOverflowPolicy.CALLER_RUNS));
+        CountDownLatch release = blockEngine(bounded);
+        ListenableFuture<Object> queued = bounded.submitEval("1");
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        }).start();
+        // waits for the engine, then runs in this thread
+        ListenableFuture<Object> callerRan = bounded.submitEval("2");
+        assertTrue(callerRan.isDone());
+        assertEquals(2, callerRan.get());
+        assertEquals(1, queued.get());
+        assertEquals(1, bounded.getCallerRunsCount());
+    }
+
+    @Test
+    public void testShedByQueueLatency() throws Exception {
+        JavascriptExecutorImpl bounded = createBounded(JavascriptExecutorConfig.create()
+                .setMaxQueueLatency(20, TimeUnit.MILLISECONDS));
+        CountDownLatch release = blockEngine(bounded);
+        ListenableFuture<Object> stale = bounded.submitEval("1");
+        Thread.sleep(50);
+        assertTrue(bounded.isSaturated());
+        assertNull(bounded.trySubmit(context -> context.eval("2")));
+        release.countDown();
+        assertRejected(stale);
+        assertEquals(1, bounded.getShedCount());
+        assertEquals(3, bounded.submitEval("3").get());
+    }
+
+    @Test
+    public void testRunawayTaskAbortedByWatchdog() throws Exception {
+        // own watchdog: the abandoned thread spins forever and mustn't count against other tests
+        JavascriptExecutorImpl budgeted = createBounded(JavascriptExecutorConfig.create()
+                .setMaxExecutionTime(100, TimeUnit.MILLISECONDS)
+                .setWatchdog(NashornWatchdog.create(10, 100, TimeUnit.MILLISECONDS).setMaxAbandoned(2)));
+        budgeted.submit(context -> {
+            context.evalIntoEngine("lib.js", "function add(a, b) { return a + b; }");
+            return null;
+        }).get();
+        ListenableFuture<Object> runaway = budgeted.submitEval("while (true) {}");
+        ListenableFuture<Object> queued = budgeted.submitFunctionInvocation("add", 1, 2);
+        try {
+            runaway.get(10, TimeUnit.SECONDS);
+            fail("expected timeout");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof JavascriptTimeoutException);
+        }
+        // runs on the recycled engine with the library loaded again
+        assertEquals(3.0, ((Number) queued.get(10, TimeUnit.SECONDS)).doubleValue(), 0);
+    }
+
+    @Test
+    public void testCancelledAndExpiredTasksSkipped() throws Exception {
+        JavascriptExecutorImpl executor = createBounded(JavascriptExecutorConfig.create());
+        executor.submit(context -> {
+            context.evalIntoEngine("lib.js", "var counter = 0;\nfunction count() { return ++counter; }");
+            return null;
+        }).get();
+        CountDownLatch release = blockEngine(executor);
+        ListenableFuture<Object> expiring = executor.submitFunctionInvocationWithDeadline(
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10), "count");
+        ListenableFuture<Object> cancelled = executor.submitFunctionInvocation("count");
+        cancelled.cancel(false);
+        ListenableFuture<Object> alreadyExpired = executor.submitFunctionInvocationWithDeadline(
+                System.nanoTime() - 1, "count");
+        assertTrue(alreadyExpired.isDone());
+        Thread.sleep(30);
+        release.countDown();
+
+        try {
+            expiring.get();
+            fail("expected expiry");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, ((Number) executor.submitFunctionInvocation("count").get()).intValue());
+        assertEquals(1, executor.getSkippedCancelledCount());
+        assertEquals(2, executor.getSkippedExpiredCount());
+    }
+
+    @Test
+    public void testFailedTaskSkippedWithoutCounting() throws Exception {
+        JavascriptTask task = new JavascriptTask(context -> {
+            fail("failed task ran");
+            return null;
+        }, true, System.nanoTime() - 1);
+        task.future.setException(new RejectedExecutionException("no drain scheduled"));
+        AtomicLong cancelled = new AtomicLong();
+        AtomicLong expired = new AtomicLong();
+
+        assertTrue(task.skipIfDoneOrExpired(cancelled, expired));
+        assertEquals(0, cancelled.get());
+        assertEquals(0, expired.get());
+    }
+
+    @Test
+    public void testDetachResults() throws Exception {
+        JavascriptExecutorImpl detaching = createBounded(JavascriptExecutorConfig.create().setDetachResults(true));
+        detaching.submit(context -> {
+            context.evalIntoEngine("detach.js", "function obj(a) { return { a: a, list: [1, 'x', {}] }; }");
+            return null;
+        }).get();
+        Map<?, ?> result = (Map<?, ?>) detaching.submitFunctionInvocation("obj", 2).get();
+        assertEquals(2, result.get("a"));
+        assertEquals(Arrays.asList(1, "x", Collections.emptyMap()), result.get("list"));
+        List<JavascriptInvocationResult> batch = detaching.submitFunctionInvocationBatch("obj",
+                Collections.singletonList(new Object[]{3})).get();
+        assertEquals(3, ((Map<?, ?>) batch.get(0).getValue()).get("a"));
+    }
+
+    @Test
+    public void testTasksGroupedByContext() throws Exception {
+        JavascriptExecutorImpl executor = createBounded(JavascriptExecutorConfig.create().setAffinityWindow(2));
+        List<JavascriptEngineContext> tenants = new ArrayList<>();
+        executor.submit(context -> {
+            NashornJavascriptEngineHolder holder = ((NashornJavascriptEngineContext) context).getEngineHolder();
+            for (String name : Arrays.asList("a", "b")) {
+                NashornJavascriptEngineContext tenant = NashornJavascriptEngineContext.createForExistingEngine(holder);
+                tenant.evalIntoEngine(name + ".js", "var counter = 0;\nfunction next() { return '" + name +
+                        "' + (++counter); }");
+                tenants.add(tenant);
+            }
+            return null;
+        }).get();
+        CountDownLatch release = blockEngine(executor);
+        List<ListenableFuture<Object>> results = new ArrayList<>();
+        List<Object> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 3; i++) {
+            for (JavascriptEngineContext tenant : tenants) {
+                ListenableFuture<Object> result = executor.submitFunctionInvocationForContext(tenant, "next");
+                result.addListener(() -> order.add(Futures.getUnchecked(result)), MoreExecutors.directExecutor());
+                results.add(result);
+            }
+        }
+        release.countDown();
+        Futures.allAsList(results).get(10, TimeUnit.SECONDS);
+
+        // a3 passes b1 twice, then the window is used up
+        assertEquals(Arrays.asList("a1", "a2", "a3", "b1", "b2", "b3"), order);
+        assertEquals(2, executor.getReorderedCount());
+        assertEquals(2, executor.getContextSwitchCount());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        JmxJavascriptMetrics metrics = JmxJavascriptMetrics.create();
+        JavascriptExecutorImpl executor = createBounded(JavascriptExecutorConfig.create().setQueueCapacity(2)
+                .setMetrics(metrics));
+        CountDownLatch release = blockEngine(executor);
+        ListenableFuture<Object> failing = executor.submitEval("throw 'failing'");
+        executor.submitEval("1");
+        try {
+            executor.submitEval("2");
+            fail("expected rejection");
+        } catch (RejectedExecutionException expected) {
+            // ok
+        }
+        assertEquals(2, metrics.getQueueDepth());
+        Thread.sleep(20);
+        release.countDown();
+        try {
+            failing.get();
+            fail();
+        } catch (ExecutionException expected) {
+            // expected
+        }
+        executor.submitEval("3").get();
+        assertEquals(0, metrics.getQueueDepth());
+
+        assertEquals(4, metrics.getTaskCount());
+        assertEquals(1, metrics.getTaskErrorCount());
+        assertEquals(1, metrics.getTaskRejectedCount());
+        assertTrue(metrics.getQueueWaitP99Micros() >= 10000);
+    }
+
+    private JavascriptExecutorImpl createBounded(JavascriptExecutorConfig config) {
+        return Guice.createInjector(new LoggingProblemReporterModule(),
+                new JavascriptExecutorModule().withConfig(config), new NashornJavascriptModule())
+                .getInstance(JavascriptExecutorImpl.class);
+    }
+
+    /**
+     * @return latch releasing the engine thread
+     */
+    private CountDownLatch blockEngine(JavascriptExecutor executor) throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(context -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        running.await();
+        return release;
+    }
+
+    private void assertRejected(ListenableFuture<Object> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("expected rejection");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+    }
 }
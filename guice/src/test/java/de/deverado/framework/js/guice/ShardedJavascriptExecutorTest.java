@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.guice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import de.deverado.framework.guice.coreext.problemreporting.LoggingProblemReporterModule;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptTimeoutException;
+import de.deverado.framework.js.nashorn.NashornWarmupPlan;
+import de.deverado.framework.js.nashorn.NashornWatchdog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ShardedJavascriptExecutorTest {
+
+    private ShardedJavascriptExecutor cut;
+
+    private JavascriptEngineContext engineContext;
+
+    @Before
+    public void setUp() throws Exception {
+        Injector injector = Guice.createInjector(new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create()
+                        .setShardCount(3).setQueueCapacityPerShard(1000)));
+        cut = (ShardedJavascriptExecutor) injector.getInstance(JavascriptExecutor.class);
+        engineContext = injector.getInstance(JavascriptEngineContext.class);
+        engineContext.evalIntoEngine("globalCode",
+                "gobj = {a: 3, adder: function (b) { return this.a+b;} };\n" +
+                "function globalFunc(a,b) { return a + b; }\n");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cut.shutdown();
+    }
+
+    @Test
+    public void testSubmitEval() throws Exception {
+        assertEquals(5, cut.submitEval("2+3").get());
+    }
+
+    @Test
+    public void testSubmissionsRejectedAfterShutdown() throws Exception {
+        cut.shutdown();
+        List<Runnable> submissions = new ArrayList<>();
+        submissions.add(() -> cut.submitEval("1"));
+        submissions.add(() -> cut.trySubmit(context -> 1));
+        submissions.add(() -> cut.submitWithKey("k", context -> 1));
+        for (Runnable submission : submissions) {
+            try {
+                submission.run();
+                fail("expected rejection");
+            } catch (RejectedExecutionException expected) {
+                // ok
+            }
+        }
+        assertEquals(3, cut.getRejectedCount());
+    }
+
+    @Test
+    public void testFunctionInvocationsOnAllShards() throws Exception {
+        List<ListenableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            results.add(cut.submitFunctionInvocation("globalFunc", i, 1));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i + 1.0, ((Number) results.get(i).get()).doubleValue(), 0);
+        }
+    }
+
+    @Test
+    public void testSubmitMethodInvocationOnOwningShard() throws Exception {
+        Object gobj = cut.submit(context -> context.getScriptObject("gobj")).get();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(5.0, cut.submitMethodInvocation(gobj, "adder", 2).get());
+        }
+    }
+
+    @Test
+    public void testWorkSpreadsOverAllShards() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        Set<String> threads = new HashSet<>();
+        List<ListenableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            results.add(cut.submit(context -> {
+                try {
+                    blocked.await(20, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Thread.currentThread().getName();
+            }));
+        }
+        for (ListenableFuture<Object> result : results) {
+            threads.add((String) result.get());
+        }
+        assertEquals(3, threads.size());
+        assertTrue(cut.getQueueDepth() == 0);
+    }
+
+    @Test
+    public void testKeyedWorkStaysOnKeyShard() throws Exception {
+        Set<String> threads = new HashSet<>();
+        List<ListenableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            results.add(cut.submitWithKey("template-a", context -> Thread.currentThread().getName()));
+        }
+        for (ListenableFuture<Object> result : results) {
+            threads.add((String) result.get());
+        }
+        assertEquals(1, threads.size());
+        assertEquals("javascriptExecutor-shard-" + cut.getShardIndexForKey("template-a"), threads.iterator().next());
+        assertEquals(8.0, cut.submitFunctionInvocationWithKey("template-a", "globalFunc", 3, 5).get());
+    }
+
+    @Test
+    public void testKeyedWorkSpillsOverWhenShardOverloaded() throws Exception {
+        Injector injector = Guice.createInjector(new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create()
+                        .setShardCount(3).setAffinitySpilloverQueueDepth(2).setAffinityMaxSpilloverShards(1)));
+        ShardedJavascriptExecutor spilling = (ShardedJavascriptExecutor) injector.getInstance(JavascriptExecutor.class);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            Set<String> threads = new HashSet<>();
+            List<ListenableFuture<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(spilling.submitWithKey("tenant", context -> {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return Thread.currentThread().getName();
+                }));
+            }
+            release.countDown();
+            for (ListenableFuture<Object> result : results) {
+                threads.add((String) result.get());
+            }
+            assertEquals(2, threads.size());
+            assertTrue(spilling.getSpilloverCount() > 0);
+        } finally {
+            spilling.shutdown();
+        }
+    }
+
+    @Test
+    public void testWorkWaitsForWarmup() throws Exception {
+        Injector injector = Guice.createInjector(new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create()
+                        .setShardCount(2).setWarmupPlan(NashornWarmupPlan.create()
+                                .addFunctionInvocation("globalFunc", 3, 5).setMinRounds(20).setMaxRounds(200))));
+        ShardedJavascriptExecutor gated = (ShardedJavascriptExecutor) injector.getInstance(JavascriptExecutor.class);
+        try {
+            injector.getInstance(JavascriptEngineContext.class).evalIntoEngine("globalFunc.js",
+                    "function globalFunc(a,b) { return a + b; }\n");
+            ListenableFuture<Object> result = gated.submitFunctionInvocation("globalFunc", 1, 2);
+            Thread.sleep(50);
+            assertFalse(result.isDone());
+            assertFalse(gated.isReady());
+
+            gated.startWarmup().get();
+            assertTrue(gated.isReady());
+            assertEquals(3.0, result.get());
+        } finally {
+            gated.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedWarmupFailsWorkAndIsRetried() throws Exception {
+        Injector injector = Guice.createInjector(new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create()
+                        .setShardCount(2).setWarmupPlan(NashornWarmupPlan.create()
+                                .addFunctionInvocation("globalFunc", 3, 5).setMinRounds(20).setMaxRounds(200))));
+        ShardedJavascriptExecutor gated = (ShardedJavascriptExecutor) injector.getInstance(JavascriptExecutor.class);
+        try {
+            gated.startWarmup().get();
+            assertFalse(gated.isReady());
+            try {
+                gated.submitEval("1").get(10, TimeUnit.SECONDS);
+                fail("expected rejection");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof RejectedExecutionException);
+            }
+
+            injector.getInstance(JavascriptEngineContext.class).evalIntoEngine("globalFunc.js",
+                    "function globalFunc(a,b) { return a + b; }\n");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!gated.isReady() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(gated.isReady());
+            assertEquals(3.0, gated.submitFunctionInvocation("globalFunc", 1, 2).get(10, TimeUnit.SECONDS));
+        } finally {
+            gated.shutdown();
+        }
+    }
+
+    @Test
+    public void testDropOldestWhenQueuesFull() throws Exception {
+        ShardedJavascriptExecutor bounded = (ShardedJavascriptExecutor) Guice.createInjector(
+                new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create()
+                        .setShardCount(1).setQueueCapacityPerShard(1)
+                        .setOverflowPolicy(JavascriptOverflowPolicy.DROP_OLDEST)))
+                .getInstance(JavascriptExecutor.class);
+        try {
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            bounded.submit(context -> {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            });
+            running.await();
+            ListenableFuture<Object> oldest = bounded.submitEval("1");
+            assertNull(bounded.trySubmit(context -> context.eval("2")));
+            ListenableFuture<Object> newest = bounded.submitEval("3");
+            release.countDown();
+            try {
+                oldest.get();
+                fail("expected drop");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(3, newest.get());
+            assertEquals(1, bounded.getDroppedCount());
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownFailsQueuedTasks() throws Exception {
+        ShardedJavascriptExecutor single = (ShardedJavascriptExecutor) Guice.createInjector(
+                new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create().setShardCount(1)))
+                .getInstance(JavascriptExecutor.class);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ListenableFuture<Object> current = single.submit(context -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "done";
+        });
+        running.await();
+        List<ListenableFuture<Object>> queued = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            queued.add(single.submitEval("1"));
+        }
+
+        single.shutdown();
+        for (ListenableFuture<Object> future : queued) {
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("expected rejection");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        release.countDown();
+        assertEquals("done", current.get(10, TimeUnit.SECONDS));
+        assertEquals(0, single.getQueueDepth());
+        try {
+            single.submitEval("1");
+            fail("expected rejection");
+        } catch (RejectedExecutionException expected) {
+            // shut down
+        }
+    }
+
+    @Test
+    public void testRunawayTaskAbortedAndShardEngineRecycled() throws Exception {
+        Injector injector = Guice.createInjector(new LoggingProblemReporterModule(),
+                ShardedJavascriptExecutorModule.create(ShardedJavascriptExecutorConfig.create()
+                        .setShardCount(1).setMaxExecutionTime(100, TimeUnit.MILLISECONDS)
+                        .setWatchdog(NashornWatchdog.create(10, 100, TimeUnit.MILLISECONDS).setMaxAbandoned(2))));
+        ShardedJavascriptExecutor budgeted = (ShardedJavascriptExecutor) injector.getInstance(
+                JavascriptExecutor.class);
+        try {
+            injector.getInstance(JavascriptEngineContext.class).evalIntoEngine("globalFunc.js",
+                    "function globalFunc(a,b) { return a + b; }\n");
+            ListenableFuture<Object> runaway = budgeted.submitEval("while (true) {}");
+            try {
+                runaway.get(10, TimeUnit.SECONDS);
+                fail("expected timeout");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof JavascriptTimeoutException);
+            }
+            assertEquals(3.0, budgeted.submitFunctionInvocation("globalFunc", 1, 2).get(10, TimeUnit.SECONDS));
+        } finally {
+            budgeted.shutdown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.io.CharSource;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file by memory mapping it and decoding the mapped bytes in one go, without copying them into a heap
+ * buffer first. Small files are read with a plain read, mapping them costs more than it saves.
+ */
+@ParametersAreNonnullByDefault
+public class MappedFileCharSource extends CharSource {
+
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    private final File file;
+
+    private final Charset charset;
+
+    private MappedFileCharSource(File file, Charset charset) {
+        this.file = file;
+        this.charset = charset;
+    }
+
+    public static MappedFileCharSource create(File file, Charset charset) {
+        return new MappedFileCharSource(file, charset);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public Reader openStream() throws IOException {
+        return new StringReader(read());
+    }
+
+    @Override
+    public String read() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // read fully
+                }
+                bytes.flip();
+            }
+            // replaces malformed input like the readers of other CharSources
+            return charset.decode(bytes).toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileCharSource(" + file + ", " + charset + ")";
+    }
+}
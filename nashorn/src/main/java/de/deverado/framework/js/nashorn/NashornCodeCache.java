@@ -0,0 +1,379 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CharSource;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Nashorn's persistent code cache (-pcc) for one deployment: engines created with {@link #createEngine()} store
+ * the classes compiled for scripts in {@link #getCodeCacheDir()} and load them from there after a restart,
+ * skipping most of the compilation. Setters return this for chaining. Don't change a cache while engines use it.
+ * <p>
+ *     Nashorn keys stored classes by source content and its own version, stale entries are never loaded but stay
+ *     on disk. A manifest records the content hashes of the libraries the cache was primed with:
+ *     {@link #verify(Map)} clears the directories if the libraries (or the java runtime) changed and
+ *     {@link #trim()} keeps the directory below {@link #getMaxBytes()}. Prime at build time with
+ *     {@link #prime(Map, Consumer)} (or {@link #main(String[])}, e.g. with the primeCodeCache task of the gradle
+ *     build) and ship the directory, marking it {@link #setReadOnly(boolean) read only} on nodes that shouldn't
+ *     add to it.
+ * </p>
+ * <p>
+ *     With optimistic typing Nashorn also persists the types it observed to {@link #getTypeInfoDir()}. These
+ *     settings are global to the JVM and only read once, so create the first optimistic engine after this
+ *     cache's first {@link #createEngine()}.
+ * </p>
+ * <p>
+ *     Loads are counted for engines created by this cache ({@link #getHitRate()}). Scripts shorter than
+ *     {@link #getMinSourceChars()} aren't cached.
+ * </p>
+ * <p>
+ *     The store plugs into Nashorn's internal CodeStore (see {@link NashornCodeStoreProvider}), it needs the Nashorn
+ *     internals of JDK 8 to be accessible.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornCodeCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NashornCodeCache.class);
+
+    private static final String MANIFEST = "nashorn-code-cache.properties";
+
+    private static final String RUNTIME_VERSION_KEY = "java.runtime.version";
+
+    private static final String LIBRARY_PREFIX = "library.";
+
+    private static final String TYPE_INFO_DIR_PROPERTY = "nashorn.typeInfo.cacheDir";
+
+    private static final String TYPE_INFO_MAX_FILES_PROPERTY = "nashorn.typeInfo.maxFiles";
+
+    private static final ThreadLocal<NashornCodeCache> CREATING = new ThreadLocal<>();
+
+    private final File codeCacheDir;
+
+    @Nullable
+    private File typeInfoDir;
+
+    private int typeInfoMaxFiles = 16384;
+
+    private boolean optimisticTyping;
+
+    private boolean readOnly;
+
+    private int minSourceChars = 1000;
+
+    private long maxBytes = 256 * 1024 * 1024;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong storeCount = new AtomicLong();
+
+    private NashornCodeCache(File codeCacheDir) {
+        this.codeCacheDir = codeCacheDir;
+    }
+
+    public static NashornCodeCache create(File codeCacheDir) {
+        return new NashornCodeCache(codeCacheDir);
+    }
+
+    /**
+     * Primes a code cache at build time: loads the require targets and requires each of them.
+     * Arguments: codeCacheDir typeInfoDir|- classpathRoot requireTarget...
+     */
+    public static void main(String[] args) throws Exception {
+        Preconditions.checkArgument(args.length >= 3, "Usage: codeCacheDir typeInfoDir|- classpathRoot " +
+                "requireTarget...");
+        NashornCodeCache cache = create(new File(args[0]));
+        if (!"-".equals(args[1])) {
+            cache.setTypeInfoDir(new File(args[1])).setOptimisticTyping(true);
+        }
+        LinkedHashMap<String, CharSource> targets = new LinkedHashMap<>();
+        List<String> files = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            files.add(args[i]);
+        }
+        NashornHelper.addClasspathResources(targets, args[2], files.toArray(new String[files.size()]));
+        cache.prime(targets, context -> {
+            context.loadWithRequire(targets);
+            for (String target : targets.keySet()) {
+                context.invokeFunction("require", target);
+            }
+        });
+        System.out.format("Primed %s: %d scripts stored\n", cache.getCodeCacheDir(), cache.getStoreCount());
+    }
+
+    /**
+     * Not thread safe in respect to other Nashorn engines created with optimistic typing at the same time (see
+     * class doc). The type info system properties are only set while creating the engine.
+     * @throws UnsupportedOperationException if the Nashorn internals aren't accessible.
+     */
+    public NashornScriptEngine createEngine() {
+        NashornInternals.check("Persistent code caches");
+        String previousTypeInfoDir = null;
+        String previousTypeInfoMaxFiles = null;
+        if (typeInfoDir != null) {
+            previousTypeInfoDir = System.setProperty(TYPE_INFO_DIR_PROPERTY, typeInfoDir.getPath());
+            previousTypeInfoMaxFiles = System.setProperty(TYPE_INFO_MAX_FILES_PROPERTY,
+                    Integer.toString(typeInfoMaxFiles));
+        }
+        CREATING.set(this);
+        try {
+            return (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine("-pcc",
+                    "-ot=" + optimisticTyping);
+        } finally {
+            CREATING.remove();
+            if (typeInfoDir != null) {
+                restoreProperty(TYPE_INFO_DIR_PROPERTY, previousTypeInfoDir);
+                restoreProperty(TYPE_INFO_MAX_FILES_PROPERTY, previousTypeInfoMaxFiles);
+            }
+        }
+    }
+
+    private static void restoreProperty(String key, @Nullable String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+
+    /**
+     * @return true if the cache was primed with libraries in this java runtime. If not, the cache directories
+     * are cleared (unless read only).
+     */
+    public boolean verify(Map<String, CharSource> libraries) {
+        Properties expected = createManifest(libraries);
+        Properties actual = new Properties();
+        File manifest = new File(codeCacheDir, MANIFEST);
+        if (manifest.isFile()) {
+            try (InputStream in = Files.newInputStream(manifest.toPath())) {
+                actual.load(in);
+            } catch (IOException e) {
+                LOG.warn("Failed to read code cache manifest {}", manifest, e);
+            }
+        }
+        if (expected.equals(actual)) {
+            return true;
+        }
+        if (!readOnly) {
+            LOG.info("Code cache {} outdated, clearing it", codeCacheDir);
+            clear();
+        }
+        return false;
+    }
+
+    /**
+     * Clears outdated caches, creates an engine, loads the libraries with load and records them in the manifest.
+     * Then trims the cache.
+     * @param libraries for the manifest, should be what load loads.
+     * @param load loads the libraries like production code does - the cache hits only for the same sources.
+     */
+    public void prime(Map<String, CharSource> libraries, Consumer<NashornJavascriptEngineContext> load) {
+        Preconditions.checkState(!readOnly, "Cache is read only");
+        verify(libraries);
+        load.accept(NashornJavascriptEngineContext.createWithNewEngine(createEngine()));
+        try {
+            Files.createDirectories(codeCacheDir.toPath());
+            try (OutputStream out = Files.newOutputStream(codeCacheDir.toPath().resolve(MANIFEST))) {
+                createManifest(libraries).store(out, "Libraries the code cache was primed with");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        trim();
+    }
+
+    /**
+     * Deletes the least recently modified cached classes until the directory is below max bytes.
+     */
+    public void trim() {
+        List<Path> files = listCachedFiles(codeCacheDir);
+        long bytes = 0;
+        for (Path file : files) {
+            bytes += file.toFile().length();
+        }
+        files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        for (Path file : files) {
+            if (bytes <= maxBytes) {
+                break;
+            }
+            bytes -= file.toFile().length();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Failed to trim code cache file {}", file, e);
+            }
+        }
+    }
+
+    private void clear() {
+        for (Path file : listCachedFiles(codeCacheDir)) {
+            file.toFile().delete();
+        }
+        new File(codeCacheDir, MANIFEST).delete();
+        if (typeInfoDir != null) {
+            for (Path file : listCachedFiles(typeInfoDir)) {
+                file.toFile().delete();
+            }
+        }
+    }
+
+    private static List<Path> listCachedFiles(File dir) {
+        if (!dir.isDirectory()) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            return files.filter(Files::isRegularFile).filter(file -> !file.endsWith(MANIFEST))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Properties createManifest(Map<String, CharSource> libraries) {
+        Properties result = new Properties();
+        result.setProperty(RUNTIME_VERSION_KEY, System.getProperty(RUNTIME_VERSION_KEY, ""));
+        for (Map.Entry<String, CharSource> e : libraries.entrySet()) {
+            result.setProperty(LIBRARY_PREFIX + e.getKey(), NashornModuleCache.getSource(e.getValue()).hash.toString());
+        }
+        return result;
+    }
+
+    @Nullable
+    static NashornCodeCache getCreating() {
+        return CREATING.get();
+    }
+
+    void recordLoad(boolean hit) {
+        (hit ? hitCount : missCount).incrementAndGet();
+    }
+
+    void recordStore() {
+        storeCount.incrementAndGet();
+    }
+
+    public File getCodeCacheDir() {
+        return codeCacheDir;
+    }
+
+    @Nullable
+    public File getTypeInfoDir() {
+        return typeInfoDir;
+    }
+
+    /**
+     * @param typeInfoDir null keeps Nashorn's default (persisting no type info).
+     */
+    public NashornCodeCache setTypeInfoDir(@Nullable File typeInfoDir) {
+        this.typeInfoDir = typeInfoDir;
+        return this;
+    }
+
+    public int getTypeInfoMaxFiles() {
+        return typeInfoMaxFiles;
+    }
+
+    /**
+     * @param typeInfoMaxFiles Nashorn deletes the oldest type info files above this, -1 for no limit.
+     */
+    public NashornCodeCache setTypeInfoMaxFiles(int typeInfoMaxFiles) {
+        Preconditions.checkArgument(typeInfoMaxFiles >= -1, "typeInfoMaxFiles must be -1 or more");
+        this.typeInfoMaxFiles = typeInfoMaxFiles;
+        return this;
+    }
+
+    public boolean isOptimisticTyping() {
+        return optimisticTyping;
+    }
+
+    /**
+     * @param optimisticTyping see {@link NashornHelper#createEngine(boolean)}, required for type info.
+     */
+    public NashornCodeCache setOptimisticTyping(boolean optimisticTyping) {
+        this.optimisticTyping = optimisticTyping;
+        return this;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @param readOnly engines only load from the cache and {@link #verify(Map)} doesn't clear it.
+     */
+    public NashornCodeCache setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public int getMinSourceChars() {
+        return minSourceChars;
+    }
+
+    public NashornCodeCache setMinSourceChars(int minSourceChars) {
+        Preconditions.checkArgument(minSourceChars >= 0, "minSourceChars mustn't be negative");
+        this.minSourceChars = minSourceChars;
+        return this;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public NashornCodeCache setMaxBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes mustn't be negative");
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @return compilations served from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getStoreCount() {
+        return storeCount.get();
+    }
+
+    /**
+     * @return hits per load, NaN before the first load.
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? Double.NaN : (double) hits / total;
+    }
+}
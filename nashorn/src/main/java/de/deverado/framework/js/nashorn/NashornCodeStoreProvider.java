@@ -0,0 +1,81 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import jdk.nashorn.internal.runtime.CodeStore;
+import jdk.nashorn.internal.runtime.Context;
+import jdk.nashorn.internal.runtime.Source;
+import jdk.nashorn.internal.runtime.StoredScript;
+import jdk.nashorn.internal.runtime.logging.DebugLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Persistent code store of engines created with -pcc, registered with Nashorn as a service (see
+ * {@link CodeStore#newCodeStore(Context)}). Stores in the directory of the {@link NashornCodeCache} creating the
+ * engine and counts its loads and stores. Engines created with -pcc elsewhere get Nashorn's default store. If
+ * the directory can't be created the engine caches nothing.
+ * Public for the ServiceLoader only.
+ */
+public class NashornCodeStoreProvider extends CodeStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NashornCodeStoreProvider.class);
+
+    private CodeStore delegate;
+
+    @Nullable
+    private NashornCodeCache cache;
+
+    @Override
+    public DebugLogger initLogger(Context context) {
+        DebugLogger log = super.initLogger(context);
+        // called by Nashorn right after construction, before the engine uses the store
+        cache = NashornCodeCache.getCreating();
+        try {
+            delegate = cache == null ? new DirectoryCodeStore(context)
+                    : new DirectoryCodeStore(context, cache.getCodeCacheDir().getPath(), cache.isReadOnly(),
+                    cache.getMinSourceChars());
+        } catch (IOException e) {
+            LOG.warn("Failed to open code cache directory, not caching code", e);
+            delegate = new DisabledCodeStore();
+        }
+        delegate.initLogger(context);
+        return log;
+    }
+
+    @Override
+    public StoredScript load(Source source, String functionKey) {
+        StoredScript result = delegate.load(source, functionKey);
+        // sources below the size threshold aren't looked up
+        if (cache != null && source.getLength() >= cache.getMinSourceChars()) {
+            cache.recordLoad(result != null);
+        }
+        return result;
+    }
+
+    @Override
+    public StoredScript store(String functionKey, Source source, StoredScript script) {
+        StoredScript result = delegate.store(functionKey, source, script);
+        if (cache != null && result != null) {
+            cache.recordStore();
+        }
+        return result;
+    }
+
+    private static class DisabledCodeStore extends CodeStore {
+
+        @Override
+        public StoredScript load(Source source, String functionKey) {
+            return null;
+        }
+
+        @Override
+        public StoredScript store(String functionKey, Source source, StoredScript script) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+/**
+ * LRU cache of compiled scripts of one engine, keyed by source text and bounded by the summed length of the
+ * cached sources. Used by {@link NashornHelper#eval(NashornScriptEngine, javax.script.ScriptContext, String)} so
+ * that repeatedly evaluated code is parsed and compiled once. A compiled script isn't bound to a context, so
+ * the cache serves all contexts of the engine. Thread safe.
+ */
+@ParametersAreNonnullByDefault
+public class NashornCompiledScriptCache {
+
+    private static volatile long defaultMaxChars = 4 * 1024 * 1024;
+
+    private final NashornScriptEngine engine;
+
+    private final Cache<String, CompiledScript> cache;
+
+    private final long maxChars;
+
+    NashornCompiledScriptCache(NashornScriptEngine engine, long maxChars) {
+        this.engine = engine;
+        this.maxChars = maxChars;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher((String source, CompiledScript compiled) -> source.length())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param maxChars summed source length cached per engine, for caches created after this call. 0 disables
+     *                 caching.
+     */
+    public static void setDefaultMaxChars(long maxChars) {
+        Preconditions.checkArgument(maxChars >= 0, "maxChars mustn't be negative");
+        defaultMaxChars = maxChars;
+    }
+
+    public static long getDefaultMaxChars() {
+        return defaultMaxChars;
+    }
+
+    /**
+     * @return compiled form of source, compiled now if not cached.
+     * @throws ScriptException if source doesn't compile.
+     */
+    public CompiledScript getCompiled(String source) throws ScriptException {
+        CompiledScript result = cache.getIfPresent(source);
+        if (result == null) {
+            result = engine.compile(source);
+            if (maxChars > 0) {
+                cache.put(source, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return hit, miss and eviction counts.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getMaxChars() {
+        return maxChars;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,325 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.nashorn.internal.objects.Global;
+import jdk.nashorn.internal.runtime.Context;
+import jdk.nashorn.internal.runtime.Property;
+import jdk.nashorn.internal.runtime.ScriptObject;
+import jdk.nashorn.internal.runtime.UserAccessorProperty;
+import jdk.nashorn.internal.runtime.arrays.ArrayData;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.script.ScriptContext;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stamps out isolated contexts that share the libraries of a loaded context. Loading libraries into every new
+ * context (evalIntoEngine, loadWithRequire) takes tens to hundreds of milliseconds, a stamped context takes a
+ * fresh global (a few milliseconds) and a reset after a request a fraction of that.
+ * <p>
+ *     {@link #capture(NashornJavascriptEngineContext)} records the global variables of the library context. Each
+ *     new context gets its own global with these variables set to the same library objects: scripts of the
+ *     context see the libraries, their own variables stay in their global. The library objects are shared between
+ *     all contexts, so capture freezes (Object.freeze) the library global and everything reachable from it,
+ *     including its builtins and their prototypes. Changes to them fail silently, also changes library code
+ *     makes after capture: keep state in closures, which aren't frozen, or in the contexts. Capture first loads
+ *     all targets registered with the require of the library context, contexts calling loadWithRequire get their
+ *     own require falling back to the library's.
+ * </p>
+ * <p>
+ *     The library objects are set as mirrors: library functions run in the library global with its builtins (as
+ *     they were loaded, including polyfills), calls into them are interop calls. Names the library doesn't define
+ *     are read from the calling context, assignments to undeclared variables fail. Objects crossing between
+ *     library and context are mirrors and fail instanceof checks against the builtins on the other side (e.g.
+ *     Array, Array.isArray works).
+ * </p>
+ * <p>
+ *     {@link #reset(NashornJavascriptEngineContext)} returns a context to the template state: the variables are
+ *     removed and the library variables set again, like {@link NashornScratchScopePool} recycles scopes. Contexts
+ *     with declared variables or changed builtins can't be cleaned and get a fresh global, from the idle globals
+ *     prepared with {@link #prepare(int)} or released with {@link #release(NashornJavascriptEngineContext)}.
+ * </p>
+ * <p>
+ *     Thread safe, all contexts share the engine of the library context and its lock. If the engine is replaced
+ *     (see {@link NashornJavascriptEngineContext#recycle()}) capture a new template: contexts recycle by loading
+ *     the libraries themselves.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornContextTemplate {
+
+    private final NashornJavascriptEngineContext libraryContext;
+
+    private final NashornScriptEngine engine;
+
+    private final Map<String, Object> libraryValues;
+
+    /**
+     * Guarded by this.
+     */
+    private final ArrayDeque<NashornScratchScopePool.ScratchScope> idle = new ArrayDeque<>();
+
+    private volatile int maxIdle = 16;
+
+    private final AtomicLong stampedCount = new AtomicLong();
+
+    private final AtomicLong cleanedCount = new AtomicLong();
+
+    private final AtomicLong replacedCount = new AtomicLong();
+
+    private NashornContextTemplate(NashornJavascriptEngineContext libraryContext, NashornScriptEngine engine,
+                                   Map<String, Object> libraryValues) {
+        this.libraryContext = libraryContext;
+        this.engine = engine;
+        this.libraryValues = libraryValues;
+    }
+
+    /**
+     * @param libraryContext with the libraries loaded, frozen by this. Libraries can't be loaded into it later.
+     * @throws UnsupportedOperationException if the Nashorn internals of JDK 8 aren't accessible, templates copy
+     * internal properties.
+     */
+    public static NashornContextTemplate capture(NashornJavascriptEngineContext libraryContext) {
+        NashornInternals.check("Context templates");
+        return (NashornContextTemplate) libraryContext.getEngineHolder().withEngine(engine -> {
+            ScriptContext context = libraryContext.getContext();
+            Object bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+            Preconditions.checkArgument(bindings instanceof ScriptObjectMirror,
+                    "Context not created with NashornHelper.createContext");
+            try {
+                NashornHelper.freezeRequire(engine, context);
+            } catch (Exception e) {
+                throw new RuntimeException("Loading the require targets failed", e);
+            }
+            ScriptObjectMirror global = (ScriptObjectMirror) bindings;
+            freeze(NashornFunctionInvoker.captureGlobal(global));
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String name : global.keySet()) {
+                // mirrors: library code runs in the library global, with its builtins
+                values.put(name, global.get(name));
+            }
+            return new NashornContextTemplate(libraryContext, engine, Collections.unmodifiableMap(values));
+        });
+    }
+
+    /**
+     * Freezes global and the objects reachable from it by properties, elements and prototypes.
+     */
+    private static void freeze(Global global) {
+        Global oldGlobal = Context.getGlobal();
+        Context.setGlobal(global);
+        try {
+            Set<Object> done = Collections.newSetFromMap(new IdentityHashMap<>());
+            ArrayDeque<ScriptObject> pending = new ArrayDeque<>();
+            addUnfrozen(pending, done, global);
+            while (!pending.isEmpty()) {
+                ScriptObject object = pending.poll();
+                object.freeze();
+                addUnfrozen(pending, done, object.getProto());
+                for (Property property : object.getMap().getProperties()) {
+                    if (!(property instanceof UserAccessorProperty)) {
+                        addUnfrozen(pending, done, property.getObjectValue(object, object));
+                    }
+                }
+                ArrayData array = object.getArray();
+                for (int i = 0; i < array.length(); i++) {
+                    addUnfrozen(pending, done, array.getObject(i));
+                }
+            }
+        } finally {
+            Context.setGlobal(oldGlobal);
+        }
+    }
+
+    private static void addUnfrozen(ArrayDeque<ScriptObject> pending, Set<Object> done, @Nullable Object value) {
+        if (value instanceof ScriptObject && done.add(value)) {
+            pending.add((ScriptObject) value);
+        }
+    }
+
+    /**
+     * @return a context in the template state, sharing the engine of the template.
+     * @throws IllegalStateException if the engine is in use or was replaced.
+     */
+    public NashornJavascriptEngineContext newContext() {
+        return (NashornJavascriptEngineContext) libraryContext.getEngineHolder().withEngine(current -> {
+            checkEngine(current);
+            NashornScratchScopePool.ScratchScope scope = takeScope();
+            ScriptContext context = new SimpleScriptContext();
+            // eval swaps the ENGINE_SCOPE in here while it runs, a second global isn't needed
+            context.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+            context.setBindings(scope.bindings, ScriptContext.ENGINE_SCOPE);
+            NashornJavascriptEngineContext result = NashornJavascriptEngineContext.createFromTemplate(
+                    libraryContext, context);
+            result.templateScope = scope;
+            return result;
+        });
+    }
+
+    /**
+     * Returns context to the template state, e.g. after each request. Script objects obtained from context before
+     * can't be used afterwards.
+     * @return true if the global of context was cleaned, false if it was replaced.
+     * @throws IllegalStateException if the engine is in use or was replaced, or context isn't from this template.
+     */
+    public boolean reset(NashornJavascriptEngineContext context) {
+        return (Boolean) libraryContext.getEngineHolder().withEngine(current -> {
+            checkEngine(current);
+            NashornScratchScopePool.ScratchScope scope = checkContext(context);
+            if (clean(scope)) {
+                cleanedCount.incrementAndGet();
+                return true;
+            }
+            replacedCount.incrementAndGet();
+            NashornScratchScopePool.ScratchScope replacement = takeScope();
+            context.getContext().setBindings(replacement.bindings, ScriptContext.ENGINE_SCOPE);
+            context.templateScope = replacement;
+            context.scopeReplaced();
+            return false;
+        });
+    }
+
+    /**
+     * Keeps the global of context for new contexts if it can be cleaned. Don't use context afterwards.
+     */
+    public void release(NashornJavascriptEngineContext context) {
+        libraryContext.getEngineHolder().withEngine(current -> {
+            checkEngine(current);
+            NashornScratchScopePool.ScratchScope scope = checkContext(context);
+            context.templateScope = null;
+            if (clean(scope)) {
+                offerIdle(scope);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Stamps idle globals so that the next count context creations and resets needing a new global are fast. Call
+     * at startup or when idle, it locks the engine for about a millisecond per global.
+     */
+    public void prepare(int count) {
+        libraryContext.getEngineHolder().withEngine(current -> {
+            checkEngine(current);
+            for (int i = 0; i < count && getIdleCount() < maxIdle; i++) {
+                offerIdle(stamp());
+            }
+            return null;
+        });
+    }
+
+    NashornScriptEngine getEngine() {
+        return engine;
+    }
+
+    public NashornJavascriptEngineContext getLibraryContext() {
+        return libraryContext;
+    }
+
+    public Set<String> getLibraryNames() {
+        return libraryValues.keySet();
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @param maxIdle globals kept for new contexts, defaults to 16.
+     */
+    public NashornContextTemplate setMaxIdle(int maxIdle) {
+        Preconditions.checkArgument(maxIdle >= 0, "maxIdle mustn't be negative");
+        this.maxIdle = maxIdle;
+        synchronized (this) {
+            while (idle.size() > maxIdle) {
+                idle.pollLast();
+            }
+        }
+        return this;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return globals created for contexts.
+     */
+    public long getStampedCount() {
+        return stampedCount.get();
+    }
+
+    /**
+     * @return resets that cleaned the global.
+     */
+    public long getCleanedCount() {
+        return cleanedCount.get();
+    }
+
+    /**
+     * @return resets that replaced the global.
+     */
+    public long getReplacedCount() {
+        return replacedCount.get();
+    }
+
+    private NashornScratchScopePool.ScratchScope takeScope() {
+        NashornScratchScopePool.ScratchScope result;
+        synchronized (this) {
+            result = idle.pollFirst();
+        }
+        return result != null ? result : stamp();
+    }
+
+    private NashornScratchScopePool.ScratchScope stamp() {
+        // records the builtins before the library variables are added
+        NashornScratchScopePool.ScratchScope result = NashornEngineResources.get(engine).scratchScopes.newScope(true);
+        result.bindings.putAll(libraryValues);
+        stampedCount.incrementAndGet();
+        return result;
+    }
+
+    private boolean clean(NashornScratchScopePool.ScratchScope scope) {
+        if (++scope.uses > NashornEngineResources.get(engine).scratchScopes.getMaxReuses() || !scope.clean()) {
+            return false;
+        }
+        scope.bindings.putAll(libraryValues);
+        return true;
+    }
+
+    private synchronized boolean offerIdle(NashornScratchScopePool.ScratchScope scope) {
+        if (idle.size() < maxIdle) {
+            idle.addFirst(scope);
+            return true;
+        }
+        return false;
+    }
+
+    private void checkEngine(NashornScriptEngine current) {
+        if (current != engine) {
+            throw new IllegalStateException("Engine was replaced, capture a new template");
+        }
+    }
+
+    private NashornScratchScopePool.ScratchScope checkContext(NashornJavascriptEngineContext context) {
+        NashornScratchScopePool.ScratchScope scope = context.templateScope;
+        if (scope == null || context.getEngineHolder() != libraryContext.getEngineHolder()) {
+            throw new IllegalStateException("Context wasn't created by this template or was recycled");
+        }
+        return scope;
+    }
+}
@@ -0,0 +1,43 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * State {@link NashornHelper} keeps per engine.
+ * <p>
+ *     The compiled scripts and scratch globals reference their engine, so the registry holds the resources only
+ *     weakly: strongly held values would keep the engine alive forever. They are kept by the
+ *     {@link NashornJavascriptEngineHolder} of the engine and the contexts created with
+ *     {@link NashornHelper#createContext(NashornScriptEngine)}, and dropped together with the engine once these
+ *     are gone.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+class NashornEngineResources {
+
+    private static final LoadingCache<NashornScriptEngine, NashornEngineResources> RESOURCES =
+            CacheBuilder.newBuilder().weakKeys().weakValues().build(CacheLoader.from(NashornEngineResources::new));
+
+    final NashornCompiledScriptCache compiledScripts;
+
+    final NashornScratchScopePool scratchScopes;
+
+    final NashornModuleCache modules;
+
+    private NashornEngineResources(NashornScriptEngine engine) {
+        compiledScripts = new NashornCompiledScriptCache(engine, NashornCompiledScriptCache.getDefaultMaxChars());
+        scratchScopes = new NashornScratchScopePool(engine);
+        modules = new NashornModuleCache(engine, NashornCompiledScriptCache.getDefaultMaxChars());
+    }
+
+    static NashornEngineResources get(NashornScriptEngine engine) {
+        return RESOURCES.getUnchecked(engine);
+    }
+}
@@ -0,0 +1,188 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Warms up one engine (context) by replaying the invocations of a {@link NashornWarmupPlan}. Call
+ * {@link #warmUp()} after the libraries are loaded, from the thread that has exclusive use of the context
+ * (e.g. within {@link NashornJavascriptEnginePool#withMember(int, Function)}). Readiness can be queried by any
+ * thread.
+ * <p>
+ *     A failing warmup invocation ends the warmup in state {@link State#FAILED} and fails the ready future. Only
+ *     {@link #isReady()} engines get traffic gated on warmup, call {@link #warmUp()} again to retry. Concurrent
+ *     calls of {@link #warmUp()} run the plan once.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornEngineWarmer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NashornEngineWarmer.class);
+
+    public enum State {
+        COLD, WARMING, READY, FAILED
+    }
+
+    private final NashornJavascriptEngineContext context;
+
+    private final NashornWarmupPlan plan;
+
+    private volatile SettableFuture<Void> readyFuture = SettableFuture.create();
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.COLD);
+
+    @Nullable
+    private volatile Throwable failure;
+
+    private volatile int failureCount;
+
+    /**
+     * Rounds of the current or last warmup, written by the warming thread only.
+     */
+    private volatile long roundsRun;
+
+    private volatile long lastWindowMedianNanos = -1;
+
+    public NashornEngineWarmer(NashornJavascriptEngineContext context, NashornWarmupPlan plan) {
+        this.context = context;
+        this.plan = plan;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return true if warmup finished, successful or not.
+     */
+    public boolean isDone() {
+        State current = state.get();
+        return current == State.READY || current == State.FAILED;
+    }
+
+    /**
+     * @return true if warmup finished successfully, gate traffic on this.
+     */
+    public boolean isReady() {
+        return state.get() == State.READY;
+    }
+
+    /**
+     * @return error of the last warmup if it failed.
+     */
+    @Nullable
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return completes when the current warmup is done, fails if a warmup invocation failed. A retry gets a new
+     * future.
+     */
+    public ListenableFuture<Void> getReadyFuture() {
+        return readyFuture;
+    }
+
+    /**
+     * @return rounds run by the current or last {@link #warmUp()}, not counting {@link #warmRounds(int)}.
+     */
+    public long getRoundsRun() {
+        return roundsRun;
+    }
+
+    /**
+     * @return median round time of the last measured window, -1 before the first window.
+     */
+    public long getLastWindowMedianNanos() {
+        return lastWindowMedianNanos;
+    }
+
+    /**
+     * Replays the plan until latency is stable. Does nothing if warmup succeeded, retries a failed warmup.
+     */
+    public void warmUp() {
+        State current = state.get();
+        if (current == State.WARMING || current == State.READY || !state.compareAndSet(current, State.WARMING)) {
+            return;
+        }
+        if (current == State.FAILED) {
+            readyFuture = SettableFuture.create();
+        }
+        roundsRun = 0;
+        long[] samples = new long[plan.getWindowSize()];
+        long previousMedian = -1;
+        int stableWindows = 0;
+        try {
+            while (roundsRun < plan.getMaxRounds()) {
+                for (int i = 0; i < samples.length; i++) {
+                    long start = System.nanoTime();
+                    runRound();
+                    samples[i] = System.nanoTime() - start;
+                    roundsRun++;
+                }
+                Arrays.sort(samples);
+                long median = samples[samples.length / 2];
+                lastWindowMedianNanos = median;
+                if (previousMedian > 0
+                        && Math.abs(median - previousMedian) <= plan.getStableTolerance() * previousMedian) {
+                    stableWindows++;
+                } else {
+                    stableWindows = 0;
+                }
+                previousMedian = median;
+                if (stableWindows >= plan.getRequiredStableWindows() && roundsRun >= plan.getMinRounds()) {
+                    break;
+                }
+            }
+            LOG.debug("Engine warm after {} rounds, median round {}ns", roundsRun, lastWindowMedianNanos);
+            failure = null;
+            state.set(State.READY);
+            readyFuture.set(null);
+        } catch (Throwable t) {
+            // errors too, WARMING would block retries forever
+            LOG.error("Warmup failed after {} rounds", roundsRun, t);
+            failure = t;
+            failureCount++;
+            state.set(State.FAILED);
+            readyFuture.setException(t);
+            Throwables.propagateIfInstanceOf(t, Error.class);
+        }
+    }
+
+    /**
+     * Keeps an idle engine warm, e.g. after deploys or long pauses in traffic. Errors are logged only.
+     * @param rounds to run.
+     */
+    public void warmRounds(int rounds) {
+        try {
+            for (int i = 0; i < rounds; i++) {
+                runRound();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Background warmup round failed", e);
+        }
+    }
+
+    private void runRound() {
+        for (Function<JavascriptEngineContext, Object> invocation : plan.getInvocations()) {
+            invocation.apply(context);
+        }
+    }
+}
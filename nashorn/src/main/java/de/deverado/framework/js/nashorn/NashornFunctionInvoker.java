@@ -0,0 +1,691 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Throwables;
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.NashornException;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.internal.dynalink.support.NameCodec;
+import jdk.nashorn.internal.objects.Global;
+import jdk.nashorn.internal.objects.NativeJSON;
+import jdk.nashorn.internal.runtime.Context;
+import jdk.nashorn.internal.runtime.JSType;
+import jdk.nashorn.internal.runtime.ScriptFunction;
+import jdk.nashorn.internal.runtime.ScriptObject;
+import jdk.nashorn.internal.runtime.ScriptRuntime;
+import jdk.nashorn.internal.runtime.linker.Bootstrap;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls global functions of one script context with little overhead and typed results.
+ * {@link NashornScriptEngine#invokeFunction(String, Object...)} returns numbers as boxed Doubles (even for integer
+ * math) and converts every result generically. This class calls the functions through call sites of Nashorn's
+ * dynamic linker with primitive return types instead, so the conversion is done by the linked code and nothing is
+ * boxed.
+ * <p>
+ *     Results are converted with javascript semantics, like javascript's Number(), Boolean() and String() do:
+ *     'abc' becomes NaN as double, 8.5 becomes 8 as long, '' becomes false as boolean, undefined becomes
+ *     'undefined' as String. Only null stays null as String.
+ * </p>
+ * <p>
+ *     Call sites are linked per function, result type, argument type and number of arguments when first used.
+ *     Calls with more than {@value #MAX_LINKED_ARITY} arguments aren't linked and convert the result afterwards.
+ *     Redefined functions are picked up on the next call.
+ * </p>
+ * <p>
+ *     The fixed arity variants used by {@link NashornJavascriptEngineContext} avoid the varargs array, the one
+ *     with double arguments also avoids boxing them. It doesn't allocate at all once linked, unless the function
+ *     does.
+ * </p>
+ * <p>
+ *     Uses Nashorn internals (jdk.nashorn.internal). Not thread safe, lock the engine as for the other
+ *     {@link NashornHelper} methods.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornFunctionInvoker {
+
+    public static final int MAX_LINKED_ARITY = 4;
+
+    private static final int OBJECT = 0;
+
+    private static final int DOUBLE = 1;
+
+    private static final int LONG = 2;
+
+    private static final int BOOLEAN = 3;
+
+    private static final int STRING = 4;
+
+    private static final Class<?>[] RETURN_TYPES = {Object.class, double.class, long.class, boolean.class,
+            String.class};
+
+    private static final int OBJECT_ARGS = 0;
+
+    private static final int NUMERIC_ARGS = 1;
+
+    private static final Class<?>[] ARG_TYPES = {Object.class, double.class};
+
+    private final NashornScriptEngine engine;
+
+    private final ScriptContext context;
+
+    private final Global global;
+
+    private final Map<String, Target> targets = new HashMap<>();
+
+    private NashornResultDetacher detacher;
+
+    private NashornFunctionInvoker(NashornScriptEngine engine, ScriptContext context, Global global) {
+        this.engine = engine;
+        this.context = context;
+        this.global = global;
+    }
+
+    /**
+     * @param context created with {@link NashornHelper#createContext(NashornScriptEngine)}. The invoker calls the
+     *                functions of this context only.
+     */
+    public static NashornFunctionInvoker create(NashornScriptEngine engine, ScriptContext context) {
+        Object bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (!(bindings instanceof ScriptObjectMirror)) {
+            throw new IllegalArgumentException("Context not created with NashornHelper.createContext");
+        }
+        return new NashornFunctionInvoker(engine, context, captureGlobal((ScriptObjectMirror) bindings));
+    }
+
+    /**
+     * @param bindings ENGINE_SCOPE bindings of a context created with
+     * {@link NashornHelper#createContext(NashornScriptEngine)}.
+     * @return the internal global of bindings.
+     */
+    static Global captureGlobal(ScriptObjectMirror bindings) {
+        // the internal global of the bindings is current while a function of it runs
+        ScriptObjectMirror capture = (ScriptObjectMirror) bindings.eval("(function(callback) { callback.run(); })");
+        Global[] captured = new Global[1];
+        capture.call(null, (Runnable) () -> captured[0] = Context.getGlobal());
+        return captured[0];
+    }
+
+    public ScriptContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return result like {@link NashornScriptEngine#invokeFunction(String, Object...)} returns it: script objects
+     * as {@link ScriptObjectMirror}, numbers boxed.
+     */
+    @Nullable
+    public Object invoke(String functionName, Object... jsCompatibleArgs) {
+        Global oldGlobal = enter();
+        try {
+            Target target = resolve(functionName);
+            if (jsCompatibleArgs.length > MAX_LINKED_ARITY) {
+                Object result = apply(target, jsCompatibleArgs);
+                return wrap(result);
+            }
+            return wrap(callObject(target, jsCompatibleArgs.length, arg(jsCompatibleArgs, 0), arg(jsCompatibleArgs, 1),
+                    arg(jsCompatibleArgs, 2), arg(jsCompatibleArgs, 3)));
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * Fixed arity variant of {@link #invoke(String, Object...)}, without the varargs array.
+     * @param arity number of arguments passed, the others are ignored. At most {@value #MAX_LINKED_ARITY}.
+     */
+    @Nullable
+    Object invokeFixed(String functionName, int arity, @Nullable Object a0, @Nullable Object a1,
+                       @Nullable Object a2, @Nullable Object a3) {
+        Global oldGlobal = enter();
+        try {
+            return wrap(callObject(resolve(functionName), arity, unwrap(a0), unwrap(a1), unwrap(a2), unwrap(a3)));
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * @return result of the function converted to a number, NaN for undefined and non-numeric strings.
+     */
+    public double invokeAsDouble(String functionName, Object... jsCompatibleArgs) {
+        Global oldGlobal = enter();
+        try {
+            Target target = resolve(functionName);
+            if (jsCompatibleArgs.length > MAX_LINKED_ARITY) {
+                Object result = apply(target, jsCompatibleArgs);
+                return JSType.toNumber(result);
+            }
+            return callDouble(target, jsCompatibleArgs.length, arg(jsCompatibleArgs, 0), arg(jsCompatibleArgs, 1),
+                    arg(jsCompatibleArgs, 2), arg(jsCompatibleArgs, 3));
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * Variant of {@link #invokeAsDouble(String, Object...)} for numeric arguments, without the varargs array and
+     * without boxing them.
+     * @param arity number of arguments passed, the others are ignored. At most {@value #MAX_LINKED_ARITY}.
+     */
+    double invokeAsDoubleFixed(String functionName, int arity, double a0, double a1, double a2, double a3) {
+        Global oldGlobal = enter();
+        try {
+            return callDoubleNumeric(resolve(functionName), arity, a0, a1, a2, a3);
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * @return result of the function converted to a number and truncated, 0 for NaN.
+     */
+    public long invokeAsLong(String functionName, Object... jsCompatibleArgs) {
+        Global oldGlobal = enter();
+        try {
+            Target target = resolve(functionName);
+            if (jsCompatibleArgs.length > MAX_LINKED_ARITY) {
+                Object result = apply(target, jsCompatibleArgs);
+                return JSType.toLong(result);
+            }
+            return callLong(target, jsCompatibleArgs.length, arg(jsCompatibleArgs, 0), arg(jsCompatibleArgs, 1),
+                    arg(jsCompatibleArgs, 2), arg(jsCompatibleArgs, 3));
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * @return javascript truthiness of the result of the function.
+     */
+    public boolean invokeAsBoolean(String functionName, Object... jsCompatibleArgs) {
+        Global oldGlobal = enter();
+        try {
+            Target target = resolve(functionName);
+            if (jsCompatibleArgs.length > MAX_LINKED_ARITY) {
+                Object result = apply(target, jsCompatibleArgs);
+                return JSType.toBoolean(result);
+            }
+            return callBoolean(target, jsCompatibleArgs.length, arg(jsCompatibleArgs, 0), arg(jsCompatibleArgs, 1),
+                    arg(jsCompatibleArgs, 2), arg(jsCompatibleArgs, 3));
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * @return result of the function converted to a string, null only for null.
+     */
+    @Nullable
+    public String invokeAsString(String functionName, Object... jsCompatibleArgs) {
+        Global oldGlobal = enter();
+        try {
+            Target target = resolve(functionName);
+            if (jsCompatibleArgs.length > MAX_LINKED_ARITY) {
+                Object result = apply(target, jsCompatibleArgs);
+                return result == null ? null : JSType.toString(result);
+            }
+            return callString(target, jsCompatibleArgs.length, arg(jsCompatibleArgs, 0), arg(jsCompatibleArgs, 1),
+                    arg(jsCompatibleArgs, 2), arg(jsCompatibleArgs, 3));
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * JSON boundary mode: parses the args with the native JSON.parse and converts the result with JSON.stringify,
+     * see {@link NashornJavascriptEngineContext#invokeFunctionJson(String, Object...)}.
+     * @param argsJsonArray JSON array with the args.
+     * @return the result as JSON, null if the function returned undefined.
+     */
+    @Nullable
+    public String invokeJson(String functionName, String argsJsonArray) {
+        Global oldGlobal = enter();
+        try {
+            Target target = resolve(functionName);
+            Object parsed = NativeJSON.parse(global, argsJsonArray, ScriptRuntime.UNDEFINED);
+            if (!(parsed instanceof ScriptObject) || !((ScriptObject) parsed).isArray()) {
+                throw new IllegalArgumentException("Args aren't a JSON array: " + argsJsonArray);
+            }
+            Object[] args = ((ScriptObject) parsed).getArray().asObjectArray();
+            Object result = applyUnwrapped(target, args);
+            Object json = NativeJSON.stringify(global, result, ScriptRuntime.UNDEFINED, ScriptRuntime.UNDEFINED);
+            return json == ScriptRuntime.UNDEFINED ? null : json.toString();
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * See {@link de.deverado.framework.js.api.JavascriptEngineContext#detach(Object)}. Script objects of this
+     * invoker's context are read without going through mirrors.
+     */
+    @Nullable
+    public Object detach(@Nullable Object value) {
+        Global oldGlobal = enter();
+        try {
+            if (detacher == null) {
+                detacher = new NashornResultDetacher(global);
+            }
+            return detacher.detach(value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * Resolves path by member access like a script evaluating it would, without eval.
+     * @throws IllegalArgumentException if path is malformed or doesn't lead to an object or function.
+     */
+    ResolvedPath resolvePath(String path, boolean function) {
+        ResolvedPath result = new ResolvedPath(path, parsePath(path));
+        Global oldGlobal = enter();
+        try {
+            Object current = global;
+            for (int i = 0; i < result.keys.length; i++) {
+                current = result.get(i, current);
+                if (!(current instanceof ScriptObject) && !(current instanceof JSObject)) {
+                    throw new IllegalArgumentException("Path " + path + " doesn't lead to an object at "
+                            + result.keys[i]);
+                }
+                result.values[i] = current;
+            }
+            if (function && !(current instanceof ScriptFunction)
+                    && !(current instanceof JSObject && ((JSObject) current).isFunction())) {
+                throw new IllegalArgumentException("Path " + path + " doesn't lead to a function");
+            }
+            result.mirror = ScriptObjectMirror.wrap(current, global);
+            return result;
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * Walks the path again through its linked getters, without lookup objects.
+     * @return false once an object along the path was reassigned.
+     */
+    boolean isCurrent(ResolvedPath path) {
+        if (path.invalidated) {
+            return false;
+        }
+        Global oldGlobal = enter();
+        try {
+            Object current = global;
+            for (int i = 0; i < path.keys.length; i++) {
+                current = path.get(i, current);
+                if (current != path.values[i]) {
+                    path.invalidated = true;
+                    return false;
+                }
+            }
+            return true;
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * Calls the function path leads to, with the object it was found on as this.
+     * @throws IllegalStateException if an object along the path was reassigned.
+     */
+    @Nullable
+    Object invokeResolved(ResolvedPath path, Object[] args) {
+        if (!isCurrent(path)) {
+            throw new IllegalStateException("Handle for " + path.path + " invalidated by reassignment");
+        }
+        Global oldGlobal = enter();
+        try {
+            Object function = path.values[path.values.length - 1];
+            Object self = path.values.length > 1 ? path.values[path.values.length - 2] : global;
+            if (args.length > MAX_LINKED_ARITY) {
+                return function instanceof ScriptFunction
+                        ? wrap(ScriptRuntime.apply((ScriptFunction) function, self,
+                        ScriptObjectMirror.unwrapArray(args, global)))
+                        : ((JSObject) function).call(wrap(self), args);
+            }
+            MethodHandle invoker = path.getCaller(args.length);
+            switch (args.length) {
+                case 0:
+                    return wrap((Object) invoker.invokeExact(function, self));
+                case 1:
+                    return wrap((Object) invoker.invokeExact(function, self, arg(args, 0)));
+                case 2:
+                    return wrap((Object) invoker.invokeExact(function, self, arg(args, 0), arg(args, 1)));
+                case 3:
+                    return wrap((Object) invoker.invokeExact(function, self, arg(args, 0), arg(args, 1),
+                            arg(args, 2)));
+                default:
+                    return wrap((Object) invoker.invokeExact(function, self, arg(args, 0), arg(args, 1),
+                            arg(args, 2), arg(args, 3)));
+            }
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            exit(oldGlobal);
+        }
+    }
+
+    /**
+     * @param path like <code>a.b[4].c</code> or <code>a['b'].c</code>.
+     * @return property names as Strings, element indices as Integers.
+     */
+    static Object[] parsePath(String path) {
+        List<Object> result = new ArrayList<>();
+        int pos = 0;
+        boolean expectName = true;
+        while (pos < path.length()) {
+            char c = path.charAt(pos);
+            if (c == '[') {
+                int end = path.indexOf(']', pos);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed [ in path " + path);
+                }
+                String key = path.substring(pos + 1, end).trim();
+                if (key.length() >= 2 && (key.charAt(0) == '\'' || key.charAt(0) == '"')
+                        && key.charAt(key.length() - 1) == key.charAt(0)) {
+                    result.add(key.substring(1, key.length() - 1));
+                } else {
+                    try {
+                        result.add(Integer.parseInt(key));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad index " + key + " in path " + path);
+                    }
+                }
+                pos = end + 1;
+                expectName = false;
+            } else if (c == '.' && !expectName) {
+                pos++;
+                expectName = true;
+            } else if (expectName) {
+                int end = pos;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == pos) {
+                    throw new IllegalArgumentException("Empty name in path " + path);
+                }
+                result.add(path.substring(pos, end));
+                pos = end;
+                expectName = false;
+            } else {
+                throw new IllegalArgumentException("Unexpected " + c + " in path " + path);
+            }
+        }
+        if (result.isEmpty() || expectName || !(result.get(0) instanceof String)) {
+            throw new IllegalArgumentException("Path must start with a global name: " + path);
+        }
+        return result.toArray();
+    }
+
+    // the invokers take all arguments, unused ones are dropped: one exact call per result and argument type
+
+    @Nullable
+    private Object callObject(Target target, int arity, @Nullable Object a0, @Nullable Object a1, @Nullable Object a2,
+            @Nullable Object a3) throws Throwable {
+        return (Object) target.getInvoker(OBJECT, OBJECT_ARGS, arity).invokeExact(target.function, (Object) global,
+                a0, a1, a2, a3);
+    }
+
+    private double callDouble(Target target, int arity, @Nullable Object a0, @Nullable Object a1, @Nullable Object a2,
+            @Nullable Object a3) throws Throwable {
+        return (double) target.getInvoker(DOUBLE, OBJECT_ARGS, arity).invokeExact(target.function, (Object) global,
+                a0, a1, a2, a3);
+    }
+
+    private double callDoubleNumeric(Target target, int arity, double a0, double a1, double a2, double a3)
+            throws Throwable {
+        return (double) target.getInvoker(DOUBLE, NUMERIC_ARGS, arity).invokeExact(target.function, (Object) global,
+                a0, a1, a2, a3);
+    }
+
+    private long callLong(Target target, int arity, @Nullable Object a0, @Nullable Object a1, @Nullable Object a2,
+            @Nullable Object a3) throws Throwable {
+        return (long) target.getInvoker(LONG, OBJECT_ARGS, arity).invokeExact(target.function, (Object) global,
+                a0, a1, a2, a3);
+    }
+
+    private boolean callBoolean(Target target, int arity, @Nullable Object a0, @Nullable Object a1, @Nullable Object a2,
+            @Nullable Object a3) throws Throwable {
+        return (boolean) target.getInvoker(BOOLEAN, OBJECT_ARGS, arity).invokeExact(target.function, (Object) global,
+                a0, a1, a2, a3);
+    }
+
+    @Nullable
+    private String callString(Target target, int arity, @Nullable Object a0, @Nullable Object a1, @Nullable Object a2,
+            @Nullable Object a3) throws Throwable {
+        return (String) target.getInvoker(STRING, OBJECT_ARGS, arity).invokeExact(target.function, (Object) global,
+                a0, a1, a2, a3);
+    }
+
+    /**
+     * Call with the global entered, looking up missing properties needs it.
+     */
+    private Target resolve(String functionName) throws Throwable {
+        Target result = targets.get(functionName);
+        if (result == null) {
+            result = new Target(functionName);
+            targets.put(functionName, result);
+        }
+        // linked like global access in scripts: no lookup objects, unlike global.get()
+        Object function = (Object) result.getter.invokeExact((Object) global);
+        if (function != result.function) {
+            // functions of other globals (e.g. library functions of a NashornContextTemplate) are mirrors, the
+            // linked calls handle them like scripts calling them do
+            if (!(function instanceof ScriptFunction)
+                    && !(function instanceof JSObject && ((JSObject) function).isFunction())) {
+                throw new RuntimeException(new NoSuchMethodException("No such function " + functionName));
+            }
+            result.setFunction(function);
+        }
+        return result;
+    }
+
+    @Nullable
+    private Object arg(Object[] args, int index) {
+        return index < args.length ? unwrap(args[index]) : null;
+    }
+
+    @Nullable
+    private Object unwrap(@Nullable Object arg) {
+        return ScriptObjectMirror.unwrap(arg, global);
+    }
+
+    @Nullable
+    private Object wrap(@Nullable Object result) {
+        Object wrapped = ScriptObjectMirror.wrap(result, global);
+        return wrapped == ScriptRuntime.UNDEFINED ? null : wrapped;
+    }
+
+    /**
+     * Javascript errors are reported like {@link NashornScriptEngine#invokeFunction(String, Object...)} does, as
+     * {@link ScriptException}, wrapped like in {@link NashornJavascriptEngineContext}.
+     */
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof NashornException) {
+            NashornException ne = (NashornException) t;
+            ScriptException se = new ScriptException(ne.getMessage(), ne.getFileName(), ne.getLineNumber(),
+                    ne.getColumnNumber());
+            se.initCause(ne);
+            return new RuntimeException(se);
+        }
+        return Throwables.propagate(t);
+    }
+
+    private Object apply(Target target, Object[] args) {
+        return applyUnwrapped(target, ScriptObjectMirror.unwrapArray(args, global));
+    }
+
+    private Object applyUnwrapped(Target target, Object[] args) {
+        if (target.function instanceof ScriptFunction) {
+            return ScriptRuntime.apply((ScriptFunction) target.function, global, args);
+        }
+        return ScriptObjectMirror.unwrap(((JSObject) target.function).call(wrap(global),
+                ScriptObjectMirror.wrapArray(args, global)), global);
+    }
+
+    /**
+     * @return the global to restore with {@link #exit(Global)}.
+     */
+    private Global enter() {
+        if (engine.getContext() != context) {
+            engine.setContext(context);
+        }
+        Global oldGlobal = Context.getGlobal();
+        if (oldGlobal != global) {
+            Context.setGlobal(global);
+        }
+        return oldGlobal;
+    }
+
+    private void exit(@Nullable Global oldGlobal) {
+        if (oldGlobal != global) {
+            Context.setGlobal(oldGlobal);
+        }
+    }
+
+    /**
+     * A property path resolved by {@link #resolvePath(String, boolean)}, with a linked getter per step.
+     */
+    static final class ResolvedPath {
+
+        final String path;
+
+        /**
+         * Strings for properties, Integers for elements.
+         */
+        final Object[] keys;
+
+        private final MethodHandle[] getters;
+
+        /**
+         * Value of each step when resolved.
+         */
+        final Object[] values;
+
+        private final MethodHandle[] callers = new MethodHandle[MAX_LINKED_ARITY + 1];
+
+        /**
+         * The object the path leads to, as returned to java.
+         */
+        Object mirror;
+
+        boolean invalidated;
+
+        ResolvedPath(String path, Object[] keys) {
+            this.path = path;
+            this.keys = keys;
+            getters = new MethodHandle[keys.length];
+            values = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                getters[i] = keys[i] instanceof String
+                        ? Bootstrap.createDynamicInvoker("dyn:getProp|getElem|getMethod:"
+                        + NameCodec.encode((String) keys[i]), Object.class, Object.class)
+                        : Bootstrap.createDynamicInvoker("dyn:getElem|getProp|getMethod", Object.class,
+                        Object.class, int.class);
+            }
+        }
+
+        Object get(int index, Object from) throws Throwable {
+            return keys[index] instanceof String ? (Object) getters[index].invokeExact(from)
+                    : (Object) getters[index].invokeExact(from, (int) (Integer) keys[index]);
+        }
+
+        MethodHandle getCaller(int arity) {
+            MethodHandle result = callers[arity];
+            if (result == null) {
+                Class<?>[] paramTypes = new Class<?>[arity + 2];
+                Arrays.fill(paramTypes, Object.class);
+                result = Bootstrap.createDynamicInvoker("dyn:call", Object.class, paramTypes);
+                callers[arity] = result;
+            }
+            return result;
+        }
+    }
+
+    private static class Target {
+
+        final MethodHandle getter;
+
+        /**
+         * A {@link ScriptFunction} or a function {@link JSObject}.
+         */
+        Object function;
+
+        /**
+         * Indexed by result type, argument type and arity, created when first used.
+         */
+        private final MethodHandle[] invokers =
+                new MethodHandle[RETURN_TYPES.length * ARG_TYPES.length * (MAX_LINKED_ARITY + 1)];
+
+        Target(String functionName) {
+            getter = Bootstrap.createDynamicInvoker("dyn:getMethod|getProp|getElem:" + NameCodec.encode(functionName),
+                    Object.class, Object.class);
+        }
+
+        /**
+         * New or redefined: start with unlinked call sites.
+         */
+        void setFunction(Object function) {
+            this.function = function;
+            Arrays.fill(invokers, null);
+        }
+
+        MethodHandle getInvoker(int returnType, int argType, int arity) {
+            int index = (returnType * ARG_TYPES.length + argType) * (MAX_LINKED_ARITY + 1) + arity;
+            MethodHandle result = invokers[index];
+            if (result == null) {
+                Class<?>[] paramTypes = new Class<?>[arity + 2];
+                Arrays.fill(paramTypes, ARG_TYPES[argType]);
+                // callee and this
+                paramTypes[0] = Object.class;
+                paramTypes[1] = Object.class;
+                result = MethodHandles.dropArguments(
+                        Bootstrap.createDynamicInvoker("dyn:call", RETURN_TYPES[returnType], paramTypes),
+                        arity + 2, Collections.nCopies(MAX_LINKED_ARITY - arity, ARG_TYPES[argType]));
+                invokers[index] = result;
+            }
+            return result;
+        }
+    }
+}
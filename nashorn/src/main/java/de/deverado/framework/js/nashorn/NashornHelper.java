@@ -4,20 +4,33 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ListenableFuture;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
 import jdk.nashorn.api.scripting.NashornScriptEngine;
 import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.script.Bindings;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
 import javax.script.SimpleScriptContext;
 
 import java.io.File;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
 
 /**
  * Some definitions and specs to understand this class:
@@ -30,6 +43,8 @@ import java.util.Map;
  *     {@link #evalIntoEngine(NashornScriptEngine, ScriptContext, String, String)} and its siblings and then for
  *     repetitive use call functions via {@link #invokeFunction(NashornScriptEngine, ScriptContext, String, Object...)}.
  *     eval is 15 to 100 times slower - after warmup (meaning the evaled content has been evaled thousands of times)!
+ *     Evaled code is compiled once per engine and kept in a {@link NashornCompiledScriptCache}, but even then
+ *     eval costs more than invocation.
  *     </li>
  *     <li>Use {@link #evalIntoEngine(NashornScriptEngine, ScriptContext, String, String)} to load for example jQuery
  *     once, or a templating engine's code, or your configuration variables.</li>
@@ -42,7 +57,8 @@ import java.util.Map;
  *     <li>Internally the ENGINE_SCOPE is used to store variables and function code in the engine for multiple
  *     executions. {@link #evalIntoEngine(NashornScriptEngine, ScriptContext, String, String)} loads code into
  *     the ENGINE_SCOPE. But for eval executions the ENGINE_SCOPE is switched to GLOBAL_SCOPE and a throw-away bindings
- *     object is assigned as ENGINE_SCOPE.</li>
+ *     object is assigned as ENGINE_SCOPE. Throw-away bindings are recycled if possible, see
+ *     {@link NashornScratchScopePool}.</li>
  * </ul>
  * <p>
  * Downside of Nashorn: Slow first 4 times of execution of a script, then catching up and overtaking Rhino.
@@ -78,11 +94,12 @@ public class NashornHelper {
     }
 
     /**
-     * Context (scope) stays associated with engine and therefore isn't thread safe.
+     * Context (scope) stays associated with engine and therefore isn't thread safe. Keeps the caches of this class
+     * for engine.
      */
     public static ScriptContext createContext(NashornScriptEngine engine) {
 
-        ScriptContext result = new SimpleScriptContext();
+        ScriptContext result = new EngineScriptContext(NashornEngineResources.get(engine));
         result.setBindings(engine.createBindings(), ScriptContext.GLOBAL_SCOPE);
         result.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
 
@@ -93,6 +110,10 @@ public class NashornHelper {
         return (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine("-ot=" + optimisticTyping);
     }
 
+    /**
+     * Uses Nashorn's default cache directory (nashorn_code_cache in the working directory). See
+     * {@link NashornCodeCache} for configuring, priming and verifying the cache.
+     */
     public static NashornScriptEngine createEngineWithPersistentCodeCache(boolean optimisticTyping) {
         return (NashornScriptEngine) new NashornScriptEngineFactory().getScriptEngine("-pcc", "-ot=" + optimisticTyping);
     }
@@ -144,6 +165,66 @@ public class NashornHelper {
         return engine.invokeMethod(scriptObject, MethodName, jsCompatibleArgs);
     }
 
+    /**
+     * Calls {@link #invokeFunction(NashornScriptEngine, ScriptContext, String, Object...)} for each element of
+     * argsList, checking the context only once.
+     * @param argsList each element is the args array of one call.
+     * @return one result per element of argsList, in order. A failing call doesn't stop the batch.
+     */
+    public static List<JavascriptInvocationResult> invokeFunctionBatch(NashornScriptEngine engine,
+                                                                       ScriptContext context, String functionName,
+                                                                       List<Object[]> argsList) {
+        if (engine.getContext() != context) {
+            engine.setContext(context);
+        }
+        List<JavascriptInvocationResult> result = new ArrayList<>(argsList.size());
+        for (Object[] args : argsList) {
+            try {
+                result.add(JavascriptInvocationResult.success(engine.invokeFunction(functionName, args)));
+            } catch (Exception e) {
+                result.add(JavascriptInvocationResult.failure(e));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Batch variant of {@link #invokeMethod(NashornScriptEngine, ScriptContext, Object, String, Object...)}, see
+     * {@link #invokeFunctionBatch(NashornScriptEngine, ScriptContext, String, List)}.
+     */
+    public static List<JavascriptInvocationResult> invokeMethodBatch(NashornScriptEngine engine,
+                                                                     ScriptContext context, Object scriptObject,
+                                                                     String methodName, List<Object[]> argsList) {
+        if (engine.getContext() != context) {
+            engine.setContext(context);
+        }
+        List<JavascriptInvocationResult> result = new ArrayList<>(argsList.size());
+        for (Object[] args : argsList) {
+            try {
+                result.add(JavascriptInvocationResult.success(engine.invokeMethod(scriptObject, methodName, args)));
+            } catch (Exception e) {
+                result.add(JavascriptInvocationResult.failure(e));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the cache used by {@link #eval(NashornScriptEngine, ScriptContext, String)} for engine, for
+     * statistics and invalidation.
+     */
+    public static NashornCompiledScriptCache getCompiledScriptCache(NashornScriptEngine engine) {
+        return NashornEngineResources.get(engine).compiledScripts;
+    }
+
+    /**
+     * @return the pool of throw-away scopes used by {@link #eval(NashornScriptEngine, ScriptContext, String)} for
+     * engine, for statistics and configuration.
+     */
+    public static NashornScratchScopePool getScratchScopePool(NashornScriptEngine engine) {
+        return NashornEngineResources.get(engine).scratchScopes;
+    }
+
     /**
      * Slow, uses eval, an alias to eval.
      * @param scriptCodeReturningObject code like 'someObject.somePropertyName[4].anotherProperty .
@@ -164,6 +245,11 @@ public class NashornHelper {
      *     You can provide a scope here, but mind that with nashorn code stays deeply associated with engine objects:
      * Warmup for example is currently required for each engine separately.
      * </p>
+     * <p>
+     *     The compiled script is cached per engine as long as a context created with
+     *     {@link #createContext(NashornScriptEngine)} or a {@link NashornJavascriptEngineHolder} of the engine is in
+     *     use, see {@link #getCompiledScriptCache(NashornScriptEngine)}.
+     * </p>
      * @param engine created with this class
      * @param context created with this class. Scope bindings are switched to provide shielding of global content.
      * @param scriptCode to eval.
@@ -171,16 +257,24 @@ public class NashornHelper {
      */
     public static Object eval(NashornScriptEngine engine, ScriptContext context,
                                          String scriptCode) throws Exception {
+        NashornEngineResources resources = NashornEngineResources.get(engine);
+        CompiledScript compiled = resources.compiledScripts.getCompiled(scriptCode);
         Bindings engineScopeBindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
         Bindings globalScopeBindings = context.getBindings(ScriptContext.GLOBAL_SCOPE);
         context.setBindings(engineScopeBindings, ScriptContext.GLOBAL_SCOPE);
         // assign throw-away scope
-        context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+        NashornScratchScopePool.ScratchScope scratch = resources.scratchScopes.acquire();
+        context.setBindings(scratch.bindings, ScriptContext.ENGINE_SCOPE);
+        Object result = null;
+        boolean succeeded = false;
         try {
-            return engine.eval(scriptCode, context);
+            result = compiled.eval(context);
+            succeeded = true;
+            return result;
         } finally {
             context.setBindings(engineScopeBindings, ScriptContext.ENGINE_SCOPE);
             context.setBindings(globalScopeBindings, ScriptContext.GLOBAL_SCOPE);
+            resources.scratchScopes.release(scratch, result, succeeded);
         }
     }
 
@@ -226,7 +320,8 @@ public class NashornHelper {
 
     /**
      * A compatible require() implementation useful for loading common-js style modules. After this
-     * the context 'knows' require.
+     * the context 'knows' require. Modules are compiled once per engine and cached by content,
+     * further contexts of the engine only link them.
      * @param engine MODIFIED, context is set to it.
      * @param context get require if not available yet. Must the require fake of NashornHelper - other requires don't
      *                work.
@@ -238,6 +333,35 @@ public class NashornHelper {
         loadWithRequire(engine, context, requireTargets, "de/deverado/framework/js/nashorn/require.js");
     }
 
+    /**
+     * Like {@link #loadWithRequire(NashornScriptEngine, ScriptContext, LinkedHashMap)}, but reads all targets
+     * concurrently with ioExecutor first (see {@link #prefetchRequireTargets(Map, Executor)}).
+     * @param ioExecutor a direct executor reads one target after the other in the calling thread.
+     */
+    public static void loadWithRequire(NashornScriptEngine engine, ScriptContext context,
+                                       LinkedHashMap<String, CharSource> requireTargets,
+                                       Executor ioExecutor) throws Exception {
+        try {
+            prefetchRequireTargets(requireTargets, ioExecutor).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to read require targets", e.getCause());
+        }
+        loadWithRequire(engine, context, requireTargets);
+    }
+
+    /**
+     * Reads the sources of require targets ahead of {@link #loadWithRequire(NashornScriptEngine, ScriptContext,
+     * LinkedHashMap)}, so that requiring them doesn't wait for I/O on the engine thread. Sources are read once
+     * per CharSource instance, also by all engines, and sources with the same content share their text. Start
+     * this early, e.g. before creating the engines.
+     * @param ioExecutor reads one source per task.
+     * @return future completing when all sources are read, failing if one of them failed.
+     */
+    public static ListenableFuture<?> prefetchRequireTargets(Map<String, CharSource> requireTargets,
+                                                             Executor ioExecutor) {
+        return NashornModuleCache.prefetch(requireTargets.values(), ioExecutor);
+    }
+
     /**
      * A node-fake-compatible require() implementation useful for loading common-js style modules. After this
      * the context 'knows' require.
@@ -257,7 +381,7 @@ public class NashornHelper {
                                         String requireResourceName) throws Exception {
 
         engine.setContext(context);
-        if (context.getAttribute("require") == null) {
+        if (context.getAttribute("require") == null || isRequireFrozen(engine, context)) {
             String requireScript;
             try {
                 requireScript = Resources.asCharSource(Resources.getResource(requireResourceName),
@@ -272,14 +396,93 @@ public class NashornHelper {
         Preconditions.checkState(addTargetsFunc != null,
                 "Wrong require loaded, expecting the fake require - otherwise you don't need this method.");
 
+        // without the internals require compiles modules per context itself
+        if (NashornInternals.isAvailable()
+                && NashornHelper.getScriptObject(engine, context, "require.__setCompiler") != null) {
+            NashornModuleCache modules = NashornEngineResources.get(engine).modules;
+            BiFunction<String, CharSource, Object> compiler = (name, source) -> {
+                try {
+                    return modules.link(context, name, source);
+                } catch (ScriptException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            NashornHelper.invokeMethod(engine, context, requireObj, "__setCompiler", compiler);
+        }
         NashornHelper.invokeMethod(engine, context, requireObj, "__addTargets", requireTargets);
     }
 
+    /**
+     * Loads all targets of the require of context and keeps further targets from being added, see
+     * {@link NashornContextTemplate}. Contexts loading targets afterwards get their own require.
+     */
+    static void freezeRequire(NashornScriptEngine engine, ScriptContext context) throws Exception {
+        if (context.getAttribute("require") != null
+                && getScriptObject(engine, context, "require.__freeze") != null) {
+            invokeMethod(engine, context, getScriptObject(engine, context, "require"), "__freeze");
+        }
+    }
+
+    private static boolean isRequireFrozen(NashornScriptEngine engine, ScriptContext context) throws Exception {
+        return Boolean.TRUE.equals(getScriptObject(engine, context,
+                "typeof require.__isFrozen === 'function' && require.__isFrozen()"));
+    }
+
+    /**
+     * Copies the elements of a javascript array (or a java list or array) into a new list. Call on the thread
+     * using the engine the array belongs to.
+     * @throws IllegalArgumentException if jsArray isn't an array or list.
+     */
+    public static List<Object> toList(@Nullable Object jsArray) {
+        if (jsArray instanceof ScriptObjectMirror && ((ScriptObjectMirror) jsArray).isArray()) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror) jsArray;
+            int length = ((Number) mirror.getMember("length")).intValue();
+            List<Object> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                result.add(mirror.getSlot(i));
+            }
+            return result;
+        }
+        if (jsArray instanceof List) {
+            return new ArrayList<>((List<?>) jsArray);
+        }
+        if (jsArray instanceof Object[]) {
+            return new ArrayList<>(Arrays.asList((Object[]) jsArray));
+        }
+        throw new IllegalArgumentException("Not an array: " + jsArray);
+    }
+
+    /**
+     * Resources in directories are read with {@link MappedFileCharSource}.
+     */
     public static void addClasspathResources(LinkedHashMap<String, CharSource> requireTargets, String classpathRoot,
                                              String... files) {
         for (String f : files) {
             URL resource = Resources.getResource(new File(classpathRoot, f).getPath());
-            requireTargets.put(f, Resources.asCharSource(resource, Charsets.UTF_8));
+            CharSource source;
+            if ("file".equals(resource.getProtocol())) {
+                try {
+                    source = MappedFileCharSource.create(new File(resource.toURI()), Charsets.UTF_8);
+                } catch (URISyntaxException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                source = Resources.asCharSource(resource, Charsets.UTF_8);
+            }
+            requireTargets.put(f, source);
+        }
+    }
+
+    /**
+     * Keeps the per engine resources while the context is used, see {@link NashornEngineResources}.
+     */
+    private static class EngineScriptContext extends SimpleScriptContext {
+
+        @SuppressWarnings("unused")
+        private final NashornEngineResources engineResources;
+
+        EngineScriptContext(NashornEngineResources engineResources) {
+            this.engineResources = engineResources;
         }
     }
 }
@@ -0,0 +1,103 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import jdk.internal.dynalink.support.NameCodec;
+import jdk.nashorn.api.scripting.ScriptUtils;
+import jdk.nashorn.internal.objects.Global;
+import jdk.nashorn.internal.runtime.JSType;
+import jdk.nashorn.internal.runtime.arrays.ArrayData;
+import jdk.nashorn.internal.runtime.linker.Bootstrap;
+import jdk.nashorn.internal.runtime.logging.DebugLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Probes once whether the Nashorn internals (jdk.nashorn.internal, jdk.internal.dynalink) used by the fast paths
+ * of this package are accessible. Under a SecurityManager they need the RuntimePermissions
+ * accessClassInPackage.jdk.nashorn.internal.* and accessClassInPackage.jdk.internal.dynalink.*, on JDK 9+ they
+ * aren't exported to other modules.
+ * <p>
+ *     Without them the typed invocations of {@link NashornJavascriptEngineContext} go through the public API and
+ *     convert with {@link ScriptUtils#convert(Object, Object)}, scratch scopes of
+ *     {@link NashornHelper#eval} aren't recycled and require doesn't share compiled modules between contexts.
+ *     Features that can't do without them fail with an {@link UnsupportedOperationException}, see
+ *     {@link #check(String)}.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+final class NashornInternals {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NashornInternals.class);
+
+    static final String REQUIREMENT = "access to the Nashorn internals of JDK 8 (jdk.nashorn.internal.*, " +
+            "jdk.internal.dynalink.*), grant accessClassInPackage RuntimePermissions for them under a SecurityManager";
+
+    private static final boolean AVAILABLE = probe();
+
+    private NashornInternals() {
+    }
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @param feature named in the exception, e.g. "Function handles".
+     * @throws UnsupportedOperationException if the internals aren't accessible.
+     */
+    static void check(String feature) {
+        if (!AVAILABLE) {
+            throw new UnsupportedOperationException(feature + " need " + REQUIREMENT);
+        }
+    }
+
+    /**
+     * Fallback conversions for results of the public API, which passes undefined as null: undefined converts like
+     * null.
+     */
+    static double toNumber(@Nullable Object result) {
+        return result == null ? 0 : ((Number) ScriptUtils.convert(result, double.class)).doubleValue();
+    }
+
+    static long toLong(@Nullable Object result) {
+        return result == null ? 0 : ((Number) ScriptUtils.convert(result, long.class)).longValue();
+    }
+
+    static boolean toBoolean(@Nullable Object result) {
+        return result != null && (Boolean) ScriptUtils.convert(result, boolean.class);
+    }
+
+    @Nullable
+    static String toString(@Nullable Object result) {
+        return result == null ? null : (String) ScriptUtils.convert(result, String.class);
+    }
+
+    private static boolean probe() {
+        try {
+            Probe.run();
+            return true;
+        } catch (LinkageError | SecurityException e) {
+            LOG.warn("Nashorn internals aren't accessible, using the slower public API where possible. Needs {}",
+                    REQUIREMENT, e);
+            return false;
+        }
+    }
+
+    /**
+     * Resolves a class of each internal package used. Linking fails if they aren't accessible.
+     */
+    private static class Probe {
+
+        static void run() {
+            for (Class<?> internal : new Class<?>[]{Global.class, ArrayData.class, Bootstrap.class,
+                    DebugLogger.class, NameCodec.class}) {
+                internal.getName();
+            }
+            JSType.toNumber("1");
+        }
+    }
+}
@@ -2,16 +2,31 @@ package de.deverado.framework.js.nashorn;/*
  * Copyright Georg Koester 2012-15. All rights reserved.
  */
 
+import com.google.common.base.Throwables;
 import com.google.common.io.CharSource;
 import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptFunctionHandle;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.api.JavascriptJson;
+import de.deverado.framework.js.api.JavascriptJsonConsumer;
+import de.deverado.framework.js.api.JavascriptMetrics;
+import de.deverado.framework.js.api.ScriptObjectHandle;
 import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.apache.commons.lang3.tuple.Pair;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.script.ScriptContext;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A convenience facade to the Nashorn script engine. This context holds functions and variables - not thread safe, but with
@@ -21,6 +36,23 @@ import java.util.function.Function;
  * of one string concatenation. One (small) string concatenation in the called JS code is taking as much time as the
  * overhead introduced by this convenience class.
  *
+ * <p>
+ *     If the engine was abandoned by a {@link NashornWatchdog} it is replaced before the next use: a new engine is
+ *     created with the engine factory and the libraries loaded with {@link #evalIntoEngine(String, String)},
+ *     {@link #evalIntoEngineUTF8Resource(String, Class)} and {@link #loadWithRequire(LinkedHashMap)} are loaded
+ *     again. Script objects of the old engine can't be used anymore. Other contexts sharing the
+ *     {@link NashornJavascriptEngineHolder} load their libraries into the new engine the same way before their next
+ *     use.
+ * </p>
+ * <p>
+ *     The typed and fixed arity invocations use Nashorn internals of JDK 8 (see {@link NashornFunctionInvoker}).
+ *     If those aren't accessible, e.g. under a SecurityManager without accessClassInPackage permissions or on
+ *     JDK 9+, they go through the public API with the same conversions, except that undefined results convert like
+ *     null. {@link #detach(Object)}, {@link #setDetachResults(boolean)}, the function and script object handles
+ *     and the JSON boundary mode need the internals and fail with an {@link UnsupportedOperationException}
+ *     without them.
+ * </p>
+ *
  * @see NashornHelper for details on how Nashorn is used internally.
  */
 @ParametersAreNonnullByDefault
@@ -30,6 +62,36 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
 
     private NashornJavascriptEngineHolder engineHolder;
 
+    /**
+     * Of the engine context belongs to, see {@link NashornJavascriptEngineHolder#getGeneration()}.
+     */
+    private long generation;
+
+    private Supplier<NashornScriptEngine> engineFactory = NashornHelper::createEngine;
+
+    private final List<Consumer<NashornJavascriptEngineContext>> libraryLoads = new ArrayList<>();
+
+    private boolean replayingLoads;
+
+    private int recycleCount;
+
+    /**
+     * Created on first typed invocation, belongs to the current engine and context.
+     */
+    private NashornFunctionInvoker functionInvoker;
+
+    private boolean detachResults;
+
+    private JavascriptMetrics metrics = JavascriptMetrics.NOOP;
+
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * Top layer of a context created by a {@link NashornContextTemplate}.
+     */
+    @Nullable
+    NashornScratchScopePool.ScratchScope templateScope;
+
     /**
      * Engines should be created very rarely. You may reuse one engine with multiple contexts if you need to
      * separate global object contexts.
@@ -56,6 +118,7 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
         result.engineHolder = engineHolder;
         try (NashornJavascriptEngineHolder.NashornJavascriptEngine engine = engineHolder.open()) {
             result.context = NashornHelper.createContext(engine.getEngine());
+            result.generation = engineHolder.getGeneration();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -63,6 +126,107 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
         return result;
     }
 
+    /**
+     * For {@link NashornContextTemplate}: a context of the engine in engineHolder that recycles like template. Call
+     * with the engine locked.
+     */
+    static NashornJavascriptEngineContext createFromTemplate(NashornJavascriptEngineContext template,
+                                                             ScriptContext context) {
+        NashornJavascriptEngineContext result = new NashornJavascriptEngineContext();
+        result.engineHolder = template.engineHolder;
+        result.engineFactory = template.engineFactory;
+        result.metrics = template.metrics;
+        result.libraryLoads.addAll(template.libraryLoads);
+        result.context = context;
+        result.generation = result.engineHolder.getGeneration();
+        return result;
+    }
+
+    /**
+     * The ENGINE_SCOPE of the context was replaced.
+     */
+    void scopeReplaced() {
+        functionInvoker = null;
+    }
+
+    /**
+     * @param engineFactory creates engines for {@link #recycle()}. Defaults to {@link NashornHelper#createEngine()}.
+     */
+    public NashornJavascriptEngineContext setEngineFactory(Supplier<NashornScriptEngine> engineFactory) {
+        this.engineFactory = engineFactory;
+        return this;
+    }
+
+    public JavascriptMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics receives the latencies and errors of invocations and evals. Typed and fixed arity
+     *                invocations only read the clock if metrics is enabled. Defaults to
+     *                {@link JavascriptMetrics#NOOP}.
+     */
+    public NashornJavascriptEngineContext setMetrics(JavascriptMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public boolean isDetachResults() {
+        return detachResults;
+    }
+
+    /**
+     * @param detachResults true to convert the results of invokeFunction, invokeMethod, eval and the batches with
+     *                      {@link #detach(Object)} before returning them. Their results can't be used as script
+     *                      objects then, {@link #getScriptObject(String)} still returns one. Defaults to false.
+     * @throws UnsupportedOperationException for true if the Nashorn internals aren't accessible.
+     */
+    public NashornJavascriptEngineContext setDetachResults(boolean detachResults) {
+        if (detachResults) {
+            NashornInternals.check("Detached results");
+        }
+        this.detachResults = detachResults;
+        return this;
+    }
+
+    /**
+     * Replaces the engine with a new one from the engine factory and loads the libraries loaded so far into it.
+     * Done automatically before the next use if the engine is corrupt (see
+     * {@link NashornJavascriptEngineHolder#isCorrupt()}).
+     */
+    public void recycle() {
+        engineHolder.replaceEngine(engineFactory.get());
+        recycleCount++;
+        reload();
+    }
+
+    /**
+     * Creates the context anew in the current engine of the holder and loads the libraries loaded so far into it.
+     */
+    private void reload() {
+        context = (ScriptContext) engineHolder.withEngine(engine -> {
+            generation = engineHolder.getGeneration();
+            return NashornHelper.createContext(engine);
+        });
+        functionInvoker = null;
+        templateScope = null;
+        replayingLoads = true;
+        try {
+            for (Consumer<NashornJavascriptEngineContext> load : libraryLoads) {
+                load.accept(this);
+            }
+        } finally {
+            replayingLoads = false;
+        }
+    }
+
+    /**
+     * @return how often the engine was replaced.
+     */
+    public int getRecycleCount() {
+        return recycleCount;
+    }
+
     public NashornJavascriptEngineHolder getEngineHolder() {
         return engineHolder;
     }
@@ -72,11 +236,103 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
     }
 
     public Object withEngineAndContext(Function<Pair<NashornScriptEngine, ScriptContext>, Object> function) {
-        return engineHolder.withEngine(engine -> {
+        return withEngine(engine -> {
             return function.apply(Pair.of(engine, context));
         });
     }
 
+    private Object withEngine(Function<NashornScriptEngine, Object> function) {
+        if (engineHolder.isCorrupt()) {
+            recycle();
+        }
+        return engineHolder.withEngine(engine -> {
+            checkGeneration();
+            return function.apply(engine);
+        });
+    }
+
+    /**
+     * Reloads the context if another context replaced the engine. Call with the engine locked, the lock is
+     * reentrant for the reload.
+     */
+    private void checkGeneration() {
+        if (generation != engineHolder.getGeneration()) {
+            reload();
+        }
+    }
+
+    /**
+     * {@link #withEngine(Function)} for loading libraries, reported as eval into the engine.
+     */
+    private void withEngineForLoad(Function<NashornScriptEngine, Object> function) {
+        long start = startTiming();
+        try {
+            withEngine(function);
+        } catch (RuntimeException e) {
+            metrics.evalFailed(e);
+            throw e;
+        } finally {
+            evalCompleted(start, true);
+        }
+    }
+
+    /**
+     * @return start time for the metrics, {@link #NOT_TIMED} if they are disabled.
+     */
+    private long startTiming() {
+        return metrics.isEnabled() ? System.nanoTime() : NOT_TIMED;
+    }
+
+    private void invocationCompleted(String functionName, long start) {
+        if (start != NOT_TIMED) {
+            metrics.invocationCompleted(functionName, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Unlocks the engine locked with {@link #acquireInvoker()}.
+     */
+    private void releaseInvoker(String functionName, long start) {
+        engineHolder.release();
+        invocationCompleted(functionName, start);
+    }
+
+    /**
+     * Records a failed invocation with the invoker.
+     * @return never, rethrows t.
+     */
+    private RuntimeException invocationFailed(String functionName, Throwable t) {
+        if (t instanceof RuntimeException) {
+            metrics.invocationFailed(functionName, t);
+        }
+        throw Throwables.propagate(t);
+    }
+
+    private void evalCompleted(long start, boolean intoEngine) {
+        if (start != NOT_TIMED) {
+            metrics.evalCompleted(System.nanoTime() - start, intoEngine);
+        }
+    }
+
+    private List<JavascriptInvocationResult> batchCompleted(String functionName, long start,
+                                                            List<JavascriptInvocationResult> results) {
+        if (start != NOT_TIMED) {
+            for (JavascriptInvocationResult result : results) {
+                if (!result.isSuccess()) {
+                    metrics.invocationFailed(functionName, result.getError());
+                }
+            }
+            invocationCompleted(functionName, start);
+        }
+        return results;
+    }
+
+    private void recordLoad(Consumer<NashornJavascriptEngineContext> load) {
+        if (!replayingLoads) {
+            libraryLoads.add(load);
+        }
+    }
+
     /**
      * Intended for high performance function calls (little overhead). The best method for invoking
      * functions is using the {@link javax.script.Invocable#invokeFunction(String, Object...)} method which is
@@ -86,13 +342,284 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
      */
     @Override
     public Object invokeFunction(String functionName, Object... jsCompatibleArgs) {
-        return engineHolder.withEngine(engine -> {
-            try {
-                return NashornHelper.invokeFunction(engine, context, functionName, jsCompatibleArgs);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        long start = startTiming();
+        try {
+            return detachIfEnabled(withEngine(engine -> {
+                try {
+                    return NashornHelper.invokeFunction(engine, context, functionName, jsCompatibleArgs);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        } catch (RuntimeException e) {
+            metrics.invocationFailed(functionName, e);
+            throw e;
+        } finally {
+            invocationCompleted(functionName, start);
+        }
+    }
+
+    /**
+     * Typed variant of {@link #invokeFunction(String, Object...)}, see {@link NashornFunctionInvoker}. The result
+     * isn't boxed.
+     */
+    @Override
+    public double invokeFunctionAsDouble(String functionName, Object... jsCompatibleArgs) {
+        if (!NashornInternals.isAvailable()) {
+            return NashornInternals.toNumber(invokeFunction(functionName, jsCompatibleArgs));
+        }
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.invokeAsDouble(functionName, jsCompatibleArgs);
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    /**
+     * Typed variant of {@link #invokeFunction(String, Object...)}, see {@link NashornFunctionInvoker}.
+     */
+    @Override
+    public long invokeFunctionAsLong(String functionName, Object... jsCompatibleArgs) {
+        if (!NashornInternals.isAvailable()) {
+            return NashornInternals.toLong(invokeFunction(functionName, jsCompatibleArgs));
+        }
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.invokeAsLong(functionName, jsCompatibleArgs);
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    /**
+     * Typed variant of {@link #invokeFunction(String, Object...)}, see {@link NashornFunctionInvoker}.
+     */
+    @Override
+    public boolean invokeFunctionAsBoolean(String functionName, Object... jsCompatibleArgs) {
+        if (!NashornInternals.isAvailable()) {
+            return NashornInternals.toBoolean(invokeFunction(functionName, jsCompatibleArgs));
+        }
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.invokeAsBoolean(functionName, jsCompatibleArgs);
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    /**
+     * Typed variant of {@link #invokeFunction(String, Object...)}, see {@link NashornFunctionInvoker}.
+     */
+    @Nullable
+    @Override
+    public String invokeFunctionAsString(String functionName, Object... jsCompatibleArgs) {
+        if (!NashornInternals.isAvailable()) {
+            return NashornInternals.toString(invokeFunction(functionName, jsCompatibleArgs));
+        }
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.invokeAsString(functionName, jsCompatibleArgs);
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    /**
+     * Fixed arity variants of {@link #invokeFunction(String, Object...)}. They save the varargs array and the
+     * function object, see {@link NashornFunctionInvoker}.
+     */
+    @Nullable
+    public Object invokeFunction(String functionName) {
+        return invokeFixed(functionName, 0, null, null, null, null);
+    }
+
+    @Nullable
+    public Object invokeFunction(String functionName, @Nullable Object a0) {
+        return invokeFixed(functionName, 1, a0, null, null, null);
+    }
+
+    @Nullable
+    public Object invokeFunction(String functionName, @Nullable Object a0, @Nullable Object a1) {
+        return invokeFixed(functionName, 2, a0, a1, null, null);
+    }
+
+    @Nullable
+    public Object invokeFunction(String functionName, @Nullable Object a0, @Nullable Object a1, @Nullable Object a2) {
+        return invokeFixed(functionName, 3, a0, a1, a2, null);
+    }
+
+    @Nullable
+    public Object invokeFunction(String functionName, @Nullable Object a0, @Nullable Object a1,
+                                 @Nullable Object a2, @Nullable Object a3) {
+        return invokeFixed(functionName, 4, a0, a1, a2, a3);
+    }
+
+    /**
+     * Variants of {@link #invokeFunctionAsDouble(String, Object...)} for numeric arguments. Don't allocate once
+     * linked, unless the function does.
+     */
+    public double invokeFunctionAsDouble(String functionName) {
+        return invokeAsDoubleFixed(functionName, 0, 0, 0, 0, 0);
+    }
+
+    public double invokeFunctionAsDouble(String functionName, double a0) {
+        return invokeAsDoubleFixed(functionName, 1, a0, 0, 0, 0);
+    }
+
+    public double invokeFunctionAsDouble(String functionName, double a0, double a1) {
+        return invokeAsDoubleFixed(functionName, 2, a0, a1, 0, 0);
+    }
+
+    public double invokeFunctionAsDouble(String functionName, double a0, double a1, double a2) {
+        return invokeAsDoubleFixed(functionName, 3, a0, a1, a2, 0);
+    }
+
+    public double invokeFunctionAsDouble(String functionName, double a0, double a1, double a2, double a3) {
+        return invokeAsDoubleFixed(functionName, 4, a0, a1, a2, a3);
+    }
+
+    @Nullable
+    private Object invokeFixed(String functionName, int arity, @Nullable Object a0, @Nullable Object a1,
+                               @Nullable Object a2, @Nullable Object a3) {
+        if (!NashornInternals.isAvailable()) {
+            return invokeFunction(functionName, Arrays.copyOf(new Object[]{a0, a1, a2, a3}, arity));
+        }
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return detachIfEnabled(invoker, invoker.invokeFixed(functionName, arity, a0, a1, a2, a3));
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    private double invokeAsDoubleFixed(String functionName, int arity, double a0, double a1, double a2, double a3) {
+        if (!NashornInternals.isAvailable()) {
+            return NashornInternals.toNumber(invokeFunction(functionName,
+                    Arrays.copyOf(new Object[]{a0, a1, a2, a3}, arity)));
+        }
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.invokeAsDoubleFixed(functionName, arity, a0, a1, a2, a3);
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    /**
+     * JSON boundary mode of {@link #invokeFunction(String, Object...)}: the args are serialized to JSON once and
+     * parsed with the engine's native JSON.parse, the result is converted with JSON.stringify in the engine, see
+     * {@link NashornFunctionInvoker#invokeJson(String, String)}. The args are serialized before the engine is locked.
+     * <p>
+     *     With JDK 8 Nashorn this is 2-3 times slower than passing objects, the native JSON functions dominate. It
+     *     only makes sense if the data is JSON on both sides anyway, e.g. a request body passed with
+     *     {@link JavascriptJson#raw(String)} and a result written to a response.
+     * </p>
+     * @param jsonCompatibleArgs see {@link JavascriptJson}.
+     * @return the result as JSON, null if the function returned undefined.
+     * @throws IllegalArgumentException if an arg isn't JSON compatible or contains a cycle.
+     * @throws UnsupportedOperationException if the Nashorn internals aren't accessible.
+     */
+    @Nullable
+    public String invokeFunctionJson(String functionName, Object... jsonCompatibleArgs) {
+        NashornInternals.check("JSON invocations");
+        String argsJson = JavascriptJson.toJson(jsonCompatibleArgs);
+        long start = startTiming();
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.invokeJson(functionName, argsJson);
+        } catch (Throwable t) {
+            throw invocationFailed(functionName, t);
+        } finally {
+            releaseInvoker(functionName, start);
+        }
+    }
+
+    /**
+     * Like {@link #invokeFunctionJson(String, Object...)}, but streams the result into consumer after the engine is
+     * unlocked. Nothing is written if the function returned undefined.
+     */
+    public void invokeFunctionJson(JavascriptJsonConsumer consumer, String functionName,
+                                   Object... jsonCompatibleArgs) {
+        String result = invokeFunctionJson(functionName, jsonCompatibleArgs);
+        if (result != null) {
+            JavascriptJson.parse(result, consumer);
+        }
+    }
+
+    /**
+     * Reads script objects of this context without mirror calls, see {@link NashornFunctionInvoker#detach(Object)}.
+     * @throws UnsupportedOperationException if the Nashorn internals aren't accessible.
+     */
+    @Nullable
+    @Override
+    public Object detach(@Nullable Object value) {
+        NashornInternals.check("Detached results");
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker.detach(value);
+        } finally {
+            engineHolder.release();
+        }
+    }
+
+    /**
+     * @return buffer as an array of this context for passing to its functions without copying, see
+     * {@link NashornTypedArrays#wrap(ScriptContext, ByteBuffer)}. Belongs to the current engine, like script objects.
+     */
+    public ScriptObjectMirror wrapBuffer(ByteBuffer buffer) {
+        return (ScriptObjectMirror) withEngine(engine -> NashornTypedArrays.wrap(context, buffer));
+    }
+
+    @Nullable
+    private Object detachIfEnabled(@Nullable Object result) {
+        return detachResults ? detach(result) : result;
+    }
+
+    /**
+     * For results of invoker, while the engine is locked.
+     */
+    @Nullable
+    private Object detachIfEnabled(NashornFunctionInvoker invoker, @Nullable Object result) {
+        return detachResults ? invoker.detach(result) : result;
+    }
+
+    /**
+     * Locks the engine, release it with {@link NashornJavascriptEngineHolder#release()}.
+     */
+    private NashornFunctionInvoker acquireInvoker() {
+        if (engineHolder.isCorrupt()) {
+            recycle();
+        }
+        NashornScriptEngine engine = engineHolder.acquire();
+        try {
+            checkGeneration();
+            if (functionInvoker == null) {
+                functionInvoker = NashornFunctionInvoker.create(engine, context);
             }
-        });
+        } catch (RuntimeException e) {
+            engineHolder.release();
+            throw e;
+        }
+        return functionInvoker;
     }
 
     /**
@@ -109,13 +636,73 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
      */
     @Override
     public Object invokeMethod(Object scriptObject, String methodName, Object... jsCompatibleArgs) {
-        return engineHolder.withEngine(engine -> {
-            try {
-                return NashornHelper.invokeMethod(engine, context, scriptObject, methodName, jsCompatibleArgs);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        });
+        long start = startTiming();
+        try {
+            return detachIfEnabled(withEngine(engine -> {
+                try {
+                    return NashornHelper.invokeMethod(engine, context, scriptObject, methodName, jsCompatibleArgs);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        } catch (RuntimeException e) {
+            metrics.invocationFailed(methodName, e);
+            throw e;
+        } finally {
+            invocationCompleted(methodName, start);
+        }
+    }
+
+    /**
+     * Invokes the function once per element of argsList, locking the engine only once for all calls.
+     * @param argsList each element is the args array of one call.
+     * @return one result per element of argsList, in order. A failing call doesn't stop the batch.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<JavascriptInvocationResult> invokeFunctionBatch(String functionName, List<Object[]> argsList) {
+        long start = startTiming();
+        return batchCompleted(functionName, start, (List<JavascriptInvocationResult>) detachIfEnabled(
+                withEngine(engine -> NashornHelper.invokeFunctionBatch(engine, context, functionName, argsList))));
+    }
+
+    /**
+     * Batch variant of {@link #invokeMethod(Object, String, Object...)}, see
+     * {@link #invokeFunctionBatch(String, List)}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<JavascriptInvocationResult> invokeMethodBatch(Object scriptObject, String methodName,
+                                                              List<Object[]> argsList) {
+        long start = startTiming();
+        return batchCompleted(methodName, start, (List<JavascriptInvocationResult>) detachIfEnabled(
+                withEngine(engine -> NashornHelper.invokeMethodBatch(engine, context, scriptObject, methodName,
+                        argsList))));
+    }
+
+    /**
+     * The handle is resolved with linked member access, see {@link NashornFunctionInvoker}. Each call walks the
+     * path again through linked getters to notice reassignments, which is much cheaper than a lookup by name.
+     * @throws UnsupportedOperationException if the Nashorn internals aren't accessible.
+     */
+    @Override
+    public JavascriptFunctionHandle getFunctionHandle(String functionPath) {
+        return new FunctionHandle(resolvePath(functionPath, true));
+    }
+
+    @Override
+    public ScriptObjectHandle getScriptObjectHandle(String objectPath) {
+        return new ObjectHandle(resolvePath(objectPath, false));
+    }
+
+    private Handle resolvePath(String path, boolean function) {
+        NashornInternals.check("Function and script object handles");
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return new Handle(invoker, invoker.resolvePath(path, function));
+        } finally {
+            engineHolder.release();
+        }
     }
 
     /**
@@ -125,7 +712,7 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
      */
     @Override
     public Object getScriptObject(String scriptCodeReturningObject) {
-        return engineHolder.withEngine(engine -> {
+        return withEngine(engine -> {
             try {
                 return NashornHelper.getScriptObject(engine, context, scriptCodeReturningObject);
             } catch (Exception e) {
@@ -149,18 +736,26 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
      */
     @Override
     public Object eval(String scriptCode) {
-        return engineHolder.withEngine(engine -> {
-            try {
-                return NashornHelper.eval(engine, context, scriptCode);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        });
+        long start = startTiming();
+        try {
+            return detachIfEnabled(withEngine(engine -> {
+                try {
+                    return NashornHelper.eval(engine, context, scriptCode);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        } catch (RuntimeException e) {
+            metrics.evalFailed(e);
+            throw e;
+        } finally {
+            evalCompleted(start, false);
+        }
     }
 
     @Override
     public void evalIntoEngineUTF8Resource(String resourceName, Class<?> relativeTo) {
-        engineHolder.withEngine(engine -> {
+        withEngineForLoad(engine -> {
             try {
                 NashornHelper.evalIntoEngineUTF8Resource(engine, context, resourceName, relativeTo);
                 return null;
@@ -168,6 +763,7 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
                 throw new RuntimeException(e);
             }
         });
+        recordLoad(c -> c.evalIntoEngineUTF8Resource(resourceName, relativeTo));
     }
 
     /**
@@ -177,7 +773,7 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
      */
     @Override
     public void evalIntoEngine(String name, String content) {
-        engineHolder.withEngine(engine -> {
+        withEngineForLoad(engine -> {
             try {
                 NashornHelper.evalIntoEngine(engine, context, name, content);
                 return null;
@@ -185,6 +781,7 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
                 throw new RuntimeException(e);
             }
         });
+        recordLoad(c -> c.evalIntoEngine(name, content));
     }
 
     /**
@@ -195,7 +792,7 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
      */
     @Override
     public void loadWithRequire(LinkedHashMap<String, CharSource> requireTargets) {
-        engineHolder.withEngine(engine -> {
+        withEngineForLoad(engine -> {
             try {
                 NashornHelper.loadWithRequire(engine, context, requireTargets);
                 return null;
@@ -203,5 +800,119 @@ public class NashornJavascriptEngineContext implements JavascriptEngineContext {
                 throw new RuntimeException(e);
             }
         });
+        recordLoad(c -> c.loadWithRequire(requireTargets));
+    }
+
+    /**
+     * A path resolved with the invoker of one engine, invalid once the engine was replaced.
+     */
+    private static class Handle {
+
+        final NashornFunctionInvoker invoker;
+
+        final NashornFunctionInvoker.ResolvedPath path;
+
+        Handle(NashornFunctionInvoker invoker, NashornFunctionInvoker.ResolvedPath path) {
+            this.invoker = invoker;
+            this.path = path;
+        }
+    }
+
+    private class FunctionHandle implements JavascriptFunctionHandle {
+
+        private final Handle handle;
+
+        FunctionHandle(Handle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public String getPath() {
+            return handle.path.path;
+        }
+
+        @Override
+        public boolean isValid() {
+            return isHandleValid(handle);
+        }
+
+        @Nullable
+        @Override
+        public Object invoke(Object... jsCompatibleArgs) {
+            long start = startTiming();
+            NashornFunctionInvoker invoker = acquireHandleInvoker(handle);
+            try {
+                return detachIfEnabled(invoker, invoker.invokeResolved(handle.path, jsCompatibleArgs));
+            } catch (Throwable t) {
+                throw invocationFailed(handle.path.path, t);
+            } finally {
+                releaseInvoker(handle.path.path, start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "JavascriptFunctionHandle " + getPath();
+        }
+    }
+
+    private class ObjectHandle implements ScriptObjectHandle {
+
+        private final Handle handle;
+
+        ObjectHandle(Handle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public String getPath() {
+            return handle.path.path;
+        }
+
+        @Override
+        public boolean isValid() {
+            return isHandleValid(handle);
+        }
+
+        @Override
+        public Object get() {
+            if (!isValid()) {
+                throw new IllegalStateException("Handle for " + getPath() + " invalidated");
+            }
+            return handle.path.mirror;
+        }
+
+        @Nullable
+        @Override
+        public Object invokeMethod(String methodName, Object... jsCompatibleArgs) {
+            return NashornJavascriptEngineContext.this.invokeMethod(get(), methodName, jsCompatibleArgs);
+        }
+
+        @Override
+        public String toString() {
+            return "ScriptObjectHandle " + getPath();
+        }
+    }
+
+    private boolean isHandleValid(Handle handle) {
+        NashornFunctionInvoker invoker = acquireInvoker();
+        try {
+            return invoker == handle.invoker && invoker.isCurrent(handle.path);
+        } finally {
+            engineHolder.release();
+        }
+    }
+
+    /**
+     * Locks the engine like {@link #acquireInvoker()}.
+     * @throws IllegalStateException if the engine was replaced since handle was resolved.
+     */
+    private NashornFunctionInvoker acquireHandleInvoker(Handle handle) {
+        NashornFunctionInvoker invoker = acquireInvoker();
+        if (invoker != handle.invoker) {
+            engineHolder.release();
+            throw new IllegalStateException("Handle for " + handle.path.path + " invalidated by engine replacement");
+        }
+        return invoker;
     }
 }
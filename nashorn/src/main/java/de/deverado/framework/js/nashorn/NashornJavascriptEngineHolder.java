@@ -2,6 +2,7 @@ package de.deverado.framework.js.nashorn;/*
  * Copyright Georg Koester 2012-15. All rights reserved.
  */
 
+import de.deverado.framework.js.api.JavascriptMetrics;
 import jdk.nashorn.api.scripting.NashornScriptEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,7 +10,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 
 import java.util.ConcurrentModificationException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 /**
@@ -20,19 +21,30 @@ public class NashornJavascriptEngineHolder {
     private static final Logger LOG = LoggerFactory.getLogger(NashornJavascriptEngineHolder.class);
     private NashornScriptEngine engine;
 
-    private ReentrantLock simpleLock = new ReentrantLock();
+    /**
+     * Keeps the caches of {@link NashornHelper} for engine, see {@link NashornEngineResources}.
+     */
+    private NashornEngineResources engineResources;
+
+    private final EngineLock simpleLock = new EngineLock();
 
     boolean lockingEnabled = true;
 
+    private volatile boolean corrupt;
+
+    private volatile long generation;
+
+    private volatile JavascriptMetrics metrics = JavascriptMetrics.NOOP;
+
     public static NashornJavascriptEngineHolder createWithNewEngine() {
         NashornJavascriptEngineHolder result = new NashornJavascriptEngineHolder();
-        result.engine = NashornHelper.createEngine();
+        result.setEngine(NashornHelper.createEngine());
         return result;
     }
 
     public static NashornJavascriptEngineHolder createForExistingEngine(NashornScriptEngine engine) {
         NashornJavascriptEngineHolder result = new NashornJavascriptEngineHolder();
-        result.engine = engine;
+        result.setEngine(engine);
         return result;
     }
 
@@ -48,6 +60,18 @@ public class NashornJavascriptEngineHolder {
         }
     }
 
+    public JavascriptMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics receives failed accesses because the engine was in use
+     *                ({@link JavascriptMetrics#engineContended()}). Defaults to {@link JavascriptMetrics#NOOP}.
+     */
+    public void setMetrics(JavascriptMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Locks the engine and executes function.
      * @param function to exec
@@ -57,6 +81,7 @@ public class NashornJavascriptEngineHolder {
     public Object withEngine(Function<NashornScriptEngine, Object> function) {
         boolean acquired = tryLock();
         if (!acquired) {
+            metrics.engineContended();
             throw new IllegalStateException("Concurrent access disallowed");
         }
         try {
@@ -66,16 +91,92 @@ public class NashornJavascriptEngineHolder {
         }
     }
 
+    /**
+     * Locks the engine without the function object and the boxed result of {@link #withEngine(Function)}, for hot
+     * paths. Always call {@link #release()} in a finally block.
+     * @return the engine, only to be used until {@link #release()}.
+     * @throws IllegalStateException if engine is in use.
+     */
+    public NashornScriptEngine acquire() {
+        boolean acquired = tryLock();
+        if (!acquired) {
+            metrics.engineContended();
+            throw new IllegalStateException("Concurrent access disallowed");
+        }
+        return engine;
+    }
+
+    /**
+     * Unlocks the engine locked with {@link #acquire()}.
+     */
+    public void release() {
+        releaseLock();
+    }
+
+    /**
+     * @return true if the engine was abandoned during execution and its state can't be trusted anymore. See
+     * {@link NashornWatchdog}.
+     */
+    public boolean isCorrupt() {
+        return corrupt;
+    }
+
+    public void markCorrupt() {
+        corrupt = true;
+    }
+
+    /**
+     * Replaces a corrupt engine. Contexts of the old engine must be recreated,
+     * {@link NashornJavascriptEngineContext}s do that themselves (see {@link #getGeneration()}).
+     * @throws IllegalStateException if engine is in use.
+     */
+    public void replaceEngine(NashornScriptEngine newEngine) {
+        withEngine(old -> {
+            setEngine(newEngine);
+            generation++;
+            corrupt = false;
+            return null;
+        });
+    }
+
+    private void setEngine(NashornScriptEngine engine) {
+        this.engine = engine;
+        engineResources = NashornEngineResources.get(engine);
+    }
+
+    /**
+     * @return incremented with each {@link #replaceEngine(NashornScriptEngine)}. Read with the engine locked to
+     * get the generation of the locked engine.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The watchdog abandoned thread: if it holds the engine locked the engine is marked corrupt and unlocked for
+     * the other threads. Without locking the engine is marked corrupt in any case.
+     */
+    void abandon(Thread thread) {
+        if (!lockingEnabled || simpleLock.forceUnlock(thread)) {
+            corrupt = true;
+        }
+    }
+
     private boolean tryLock() {
-        if (!lockingEnabled) {
-            return true;
+        if (lockingEnabled && !simpleLock.tryLock()) {
+            return false;
         }
-        return simpleLock.tryLock();
+        if (!NashornWatchdog.engineLocked(this)) {
+            releaseLock();
+            return false;
+        }
+        return true;
     }
 
     public NashornJavascriptEngine open() throws IllegalStateException {
         boolean acquired = tryLock();
         if (!acquired) {
+            metrics.engineContended();
             throw new IllegalStateException("Concurrent access disallowed");
         }
         return new NashornJavascriptEngine(engine);
@@ -94,10 +195,80 @@ public class NashornJavascriptEngineHolder {
         if (!lockingEnabled) {
             return;
         }
-        try {
-            simpleLock.unlock();
-        } catch (IllegalMonitorStateException imse) {
-            throw new ConcurrentModificationException("Lock was released elsewhere!", imse);
+        if (!simpleLock.unlock() && !NashornWatchdog.isCurrentThreadAbandoned()) {
+            throw new ConcurrentModificationException("Lock was released elsewhere!");
+        }
+    }
+
+    /**
+     * Reentrant lock without waiting, that {@link #abandon(Thread)} can take from its owner.
+     */
+    private static class EngineLock {
+
+        private final AtomicReference<Hold> hold = new AtomicReference<>();
+
+        /**
+         * Hold of the last owner, reused when it locks again so locking doesn't allocate. Its count is only
+         * changed by its owner, also after a {@link #forceUnlock(Thread)}.
+         */
+        private volatile Hold lastHold;
+
+        boolean tryLock() {
+            Thread current = Thread.currentThread();
+            Hold held = hold.get();
+            if (held != null && held.owner == current) {
+                held.count++;
+                return true;
+            }
+            if (held != null) {
+                return false;
+            }
+            Hold next = lastHold;
+            if (next == null || next.owner != current) {
+                next = new Hold(current);
+            }
+            next.count = 1;
+            if (!hold.compareAndSet(null, next)) {
+                return false;
+            }
+            lastHold = next;
+            return true;
+        }
+
+        /**
+         * @return false if the current thread doesn't hold the lock.
+         */
+        boolean unlock() {
+            Hold held = hold.get();
+            if (held == null || held.owner != Thread.currentThread()) {
+                return false;
+            }
+            if (--held.count == 0) {
+                hold.compareAndSet(held, null);
+            }
+            return true;
+        }
+
+        /**
+         * @return true if owner held the lock.
+         */
+        boolean forceUnlock(Thread owner) {
+            Hold held = hold.get();
+            return held != null && held.owner == owner && hold.compareAndSet(held, null);
+        }
+    }
+
+    private static class Hold {
+
+        final Thread owner;
+
+        /**
+         * Changed by the owner only.
+         */
+        int count = 1;
+
+        Hold(Thread owner) {
+            this.owner = owner;
         }
     }
 
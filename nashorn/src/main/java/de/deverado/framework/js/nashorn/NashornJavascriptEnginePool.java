@@ -0,0 +1,752 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CharSource;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+import de.deverado.framework.js.api.JavascriptFunctionHandle;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.api.JavascriptJson;
+import de.deverado.framework.js.api.JavascriptJsonConsumer;
+import de.deverado.framework.js.api.ScriptObjectHandle;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A thread safe {@link JavascriptEngineContext} backed by a fixed number of
+ * {@link NashornJavascriptEngineContext}s, each with its own engine. Calls check out a free member, blocking
+ * until one becomes available (or the checkout timeout passes) instead of failing like
+ * {@link NashornJavascriptEngineHolder#withEngine(Function)} does on concurrent access.
+ * <p>
+ *     Libraries loaded with {@link #evalIntoEngine(String, String)}, {@link #evalIntoEngineUTF8Resource(String, Class)}
+ *     and {@link #loadWithRequire(LinkedHashMap)} are loaded into every member, so all members can serve the same
+ *     calls. Remember that each member needs its own warmup (see {@link NashornHelper}), so don't create more
+ *     members than you have cores to use for javascript.
+ * </p>
+ * <p>
+ *     With a warmup plan set ({@link #setWarmupPlan(NashornWarmupPlan, boolean)}) each member gets a
+ *     {@link NashornEngineWarmer}. Run it with {@link #warmUpAll(Executor)} after loading the libraries. If gating
+ *     is enabled, calls are only given to members that are done with warmup, so cold engines never see
+ *     production calls.
+ * </p>
+ * <p>
+ *     Script objects belong to the member (engine) that created them. Objects returned by the methods of this pool
+ *     (and the values of batch results) are remembered so that {@link #invokeMethod(Object, String, Object...)} can
+ *     route the call back to their member. Objects obtained otherwise (e.g. properties read from a returned object
+ *     or elements of a returned java List) are unknown to the pool: Use {@link #withContext(Function)} to work with
+ *     them.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornJavascriptEnginePool implements JavascriptEngineContext {
+
+    private List<NashornJavascriptEngineContext> members;
+
+    /**
+     * Guarded by this.
+     */
+    private boolean[] checkedOut;
+
+    /**
+     * Guarded by this.
+     */
+    private int availableCount;
+
+    private volatile long checkoutTimeoutNanos = -1;
+
+    private final Object libraryLock = new Object();
+
+    /**
+     * Guarded by libraryLock.
+     */
+    private final List<Consumer<NashornJavascriptEngineContext>> libraryLoads = new ArrayList<>();
+
+    private volatile NashornEngineWarmer[] warmers;
+
+    private volatile boolean gateOnWarmup;
+
+    /**
+     * Script objects handed out by this pool to the index of their member.
+     */
+    private final Map<Object, Integer> scriptObjectOwners = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Engines should be created very rarely, each of them requires warmup.
+     * @param size number of engines, one per core to use max.
+     */
+    public static NashornJavascriptEnginePool createWithNewEngines(int size) {
+        return createWithNewEngines(size, NashornHelper::createEngine);
+    }
+
+    /**
+     * @param engineFactory called size times, for example with {@link NashornHelper#createEngine(boolean)}.
+     */
+    public static NashornJavascriptEnginePool createWithNewEngines(int size,
+                                                                   Supplier<NashornScriptEngine> engineFactory) {
+        Preconditions.checkArgument(size > 0, "size must be positive");
+        List<NashornJavascriptEngineContext> members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            members.add(NashornJavascriptEngineContext.createWithNewEngine(engineFactory.get())
+                    .setEngineFactory(engineFactory));
+        }
+        return createForExistingContexts(members);
+    }
+
+    /**
+     * @param members must not be used outside of the pool after this. Each should have its own engine - members
+     *                sharing an engine would block each other.
+     */
+    public static NashornJavascriptEnginePool createForExistingContexts(
+            List<NashornJavascriptEngineContext> members) {
+        Preconditions.checkArgument(!members.isEmpty(), "members required");
+        NashornJavascriptEnginePool result = new NashornJavascriptEnginePool();
+        result.members = Collections.unmodifiableList(new ArrayList<>(members));
+        result.checkedOut = new boolean[members.size()];
+        result.availableCount = members.size();
+        return result;
+    }
+
+    /**
+     * @param timeout negative to wait without limit (the default). Checkouts taking longer fail with an
+     *                {@link IllegalStateException}.
+     */
+    public void setCheckoutTimeout(long timeout, TimeUnit unit) {
+        checkoutTimeoutNanos = timeout < 0 ? -1 : unit.toNanos(timeout);
+    }
+
+    public int getSize() {
+        return members.size();
+    }
+
+    public List<NashornJavascriptEngineContext> getMembers() {
+        return members;
+    }
+
+    public int getAvailableCount() {
+        synchronized (this) {
+            return availableCount;
+        }
+    }
+
+    /**
+     * Creates a {@link NashornEngineWarmer} for each member. Set before using the pool.
+     * @param gateOnWarmup if true, calls (except library loads and {@link #withMember(int, Function)}) wait for
+     *                     members that warmed up successfully. They fail if warmup failed on all members.
+     */
+    public void setWarmupPlan(NashornWarmupPlan plan, boolean gateOnWarmup) {
+        NashornEngineWarmer[] created = new NashornEngineWarmer[members.size()];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new NashornEngineWarmer(members.get(i), plan);
+        }
+        synchronized (this) {
+            warmers = created;
+            this.gateOnWarmup = gateOnWarmup;
+        }
+    }
+
+    /**
+     * @return warmer of member or null if no warmup plan was set.
+     */
+    @Nullable
+    public NashornEngineWarmer getWarmer(int index) {
+        NashornEngineWarmer[] current = warmers;
+        return current == null ? null : current[index];
+    }
+
+    /**
+     * Warms up all members with executor, one task per member. Load libraries before. Retries failed warmups.
+     * @param executor a direct executor warms up one member after the other in the calling thread.
+     * @return future completing when all members are done with warmup (also if some failed).
+     */
+    public ListenableFuture<List<Void>> warmUpAll(Executor executor) {
+        Preconditions.checkState(warmers != null, "No warmup plan set");
+        for (int i = 0; i < members.size(); i++) {
+            int index = i;
+            executor.execute(() -> withMember(index, context -> {
+                getWarmer(index).warmUp();
+                return null;
+            }));
+        }
+        return getReadyFuture();
+    }
+
+    /**
+     * @return future completing when all members are done with warmup (also if some failed).
+     */
+    public ListenableFuture<List<Void>> getReadyFuture() {
+        Preconditions.checkState(warmers != null, "No warmup plan set");
+        List<ListenableFuture<Void>> futures = new ArrayList<>();
+        for (NashornEngineWarmer warmer : warmers) {
+            futures.add(warmer.getReadyFuture());
+        }
+        return Futures.successfulAsList(futures);
+    }
+
+    /**
+     * Periodically runs warmup rounds on members that are idle at that moment, keeping them warm during
+     * pauses in traffic, and retries failed warmups. Busy members are skipped.
+     * @param rounds per member and run.
+     * @return cancel to stop.
+     */
+    public ScheduledFuture<?> startBackgroundWarming(ScheduledExecutorService scheduler, long period, TimeUnit unit,
+                                                     int rounds) {
+        Preconditions.checkState(warmers != null, "No warmup plan set");
+        return scheduler.scheduleWithFixedDelay(() -> {
+            for (int i = 0; i < members.size(); i++) {
+                NashornEngineWarmer warmer = getWarmer(i);
+                if (!warmer.isDone() || !tryCheckout(i)) {
+                    continue;
+                }
+                try {
+                    if (warmer.isReady()) {
+                        warmer.warmRounds(rounds);
+                    } else {
+                        warmer.warmUp();
+                    }
+                } finally {
+                    checkin(i);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * @return index of the member the script object was obtained from or -1 if the pool doesn't know it.
+     */
+    public int getOwnerIndex(Object scriptObject) {
+        Integer result = scriptObjectOwners.get(scriptObject);
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * Checks out a member and executes function with it.
+     * @param function to exec, mustn't leak the context to other threads.
+     * @return result of function
+     * @throws IllegalStateException if no member became available within the checkout timeout.
+     */
+    public Object withContext(Function<NashornJavascriptEngineContext, Object> function) {
+        int index = checkout(-1);
+        try {
+            return remember(function.apply(members.get(index)), index);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    /**
+     * Like {@link #withContext(Function)} but waits for a specific member.
+     * @param index of member, see {@link #getMembers()}.
+     */
+    public Object withMember(int index, Function<NashornJavascriptEngineContext, Object> function) {
+        Preconditions.checkElementIndex(index, members.size());
+        checkout(index);
+        try {
+            return remember(function.apply(members.get(index)), index);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    /**
+     * Checks out a member. Close the returned object to check it in again.
+     * @throws IllegalStateException if no member became available within the checkout timeout.
+     */
+    public PooledContext open() throws IllegalStateException {
+        return new PooledContext(checkout(-1));
+    }
+
+    @Override
+    public Object invokeFunction(String functionName, Object... jsCompatibleArgs) {
+        return withContext(context -> context.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    @Override
+    public double invokeFunctionAsDouble(String functionName, Object... jsCompatibleArgs) {
+        int index = checkout(-1);
+        try {
+            return members.get(index).invokeFunctionAsDouble(functionName, jsCompatibleArgs);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    @Override
+    public long invokeFunctionAsLong(String functionName, Object... jsCompatibleArgs) {
+        int index = checkout(-1);
+        try {
+            return members.get(index).invokeFunctionAsLong(functionName, jsCompatibleArgs);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    @Override
+    public boolean invokeFunctionAsBoolean(String functionName, Object... jsCompatibleArgs) {
+        int index = checkout(-1);
+        try {
+            return members.get(index).invokeFunctionAsBoolean(functionName, jsCompatibleArgs);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    @Nullable
+    @Override
+    public String invokeFunctionAsString(String functionName, Object... jsCompatibleArgs) {
+        int index = checkout(-1);
+        try {
+            return members.get(index).invokeFunctionAsString(functionName, jsCompatibleArgs);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    /**
+     * See {@link NashornJavascriptEngineContext#invokeFunctionJson(String, Object...)}.
+     */
+    @Nullable
+    public String invokeFunctionJson(String functionName, Object... jsonCompatibleArgs) {
+        int index = checkout(-1);
+        try {
+            return members.get(index).invokeFunctionJson(functionName, jsonCompatibleArgs);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    /**
+     * See {@link NashornJavascriptEngineContext#invokeFunctionJson(JavascriptJsonConsumer, String, Object...)}.
+     */
+    public void invokeFunctionJson(JavascriptJsonConsumer consumer, String functionName,
+                                   Object... jsonCompatibleArgs) {
+        String result = invokeFunctionJson(functionName, jsonCompatibleArgs);
+        if (result != null) {
+            JavascriptJson.parse(result, consumer);
+        }
+    }
+
+    /**
+     * Routes the call to the member the script object belongs to.
+     * @param scriptObject must have been returned by a method of this pool.
+     * @throws IllegalArgumentException if the script object is unknown to this pool.
+     */
+    @Override
+    public Object invokeMethod(Object scriptObject, String methodName, Object... jsCompatibleArgs) {
+        int index = getOwnerIndex(scriptObject);
+        if (index < 0) {
+            throw new IllegalArgumentException("Script object not obtained from this pool, use withContext: "
+                    + scriptObject);
+        }
+        return withMember(index, context -> context.invokeMethod(scriptObject, methodName, jsCompatibleArgs));
+    }
+
+    /**
+     * All calls of the batch run on one member.
+     */
+    @Override
+    public List<JavascriptInvocationResult> invokeFunctionBatch(String functionName, List<Object[]> argsList) {
+        int index = checkout(-1);
+        try {
+            return rememberValues(members.get(index).invokeFunctionBatch(functionName, argsList), index);
+        } finally {
+            checkin(index);
+        }
+    }
+
+    /**
+     * Routes the batch to the member the script object belongs to.
+     * @param scriptObject must have been returned by a method of this pool.
+     * @throws IllegalArgumentException if the script object is unknown to this pool.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<JavascriptInvocationResult> invokeMethodBatch(Object scriptObject, String methodName,
+                                                              List<Object[]> argsList) {
+        int index = getOwnerIndex(scriptObject);
+        if (index < 0) {
+            throw new IllegalArgumentException("Script object not obtained from this pool, use withContext: "
+                    + scriptObject);
+        }
+        return (List<JavascriptInvocationResult>) withMember(index,
+                context -> rememberValues(context.invokeMethodBatch(scriptObject, methodName, argsList), index));
+    }
+
+    /**
+     * Routes the conversion to the member the script objects in value belong to, any member if there are none.
+     * @param value script objects in it must belong to one member.
+     */
+    @Nullable
+    @Override
+    public Object detach(@Nullable Object value) {
+        int index = findOwnerIndex(value);
+        return index < 0 ? withContext(context -> context.detach(value))
+                : withMember(index, context -> context.detach(value));
+    }
+
+    /**
+     * @return owner of value, or of the first element of a list value (or its invocation result) that has one.
+     */
+    private int findOwnerIndex(@Nullable Object value) {
+        if (value instanceof ScriptObjectMirror) {
+            return getOwnerIndex(value);
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                Object elementValue = element instanceof JavascriptInvocationResult
+                        ? ((JavascriptInvocationResult) element).getValue() : element;
+                if (elementValue instanceof ScriptObjectMirror) {
+                    return getOwnerIndex(elementValue);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The handle calls the function on any member, resolving it once per member. Validity is checked on one idle
+     * member, the members have the same libraries loaded, see
+     * {@link NashornJavascriptEngineContext#getFunctionHandle(String)}.
+     */
+    @Override
+    public JavascriptFunctionHandle getFunctionHandle(String functionPath) {
+        PoolFunctionHandle result = new PoolFunctionHandle(functionPath);
+        // fail early on bad paths
+        int index = checkout(-1);
+        try {
+            result.getMemberHandle(index);
+        } finally {
+            checkin(index);
+        }
+        return result;
+    }
+
+    /**
+     * The object belongs to the member it was resolved on, the handle routes to it.
+     */
+    @Override
+    public ScriptObjectHandle getScriptObjectHandle(String objectPath) {
+        int index = checkout(-1);
+        try {
+            return new PoolObjectHandle(index, members.get(index).getScriptObjectHandle(objectPath));
+        } finally {
+            checkin(index);
+        }
+    }
+
+    @Override
+    public Object getScriptObject(String scriptCodeReturningObject) {
+        return withContext(context -> context.getScriptObject(scriptCodeReturningObject));
+    }
+
+    @Override
+    public Object eval(String scriptCode) {
+        return withContext(context -> context.eval(scriptCode));
+    }
+
+    /**
+     * Loaded into every member.
+     */
+    @Override
+    public void evalIntoEngineUTF8Resource(String resourceName, Class<?> relativeTo) {
+        loadIntoAllMembers(context -> context.evalIntoEngineUTF8Resource(resourceName, relativeTo));
+    }
+
+    /**
+     * Loaded into every member.
+     */
+    @Override
+    public void evalIntoEngine(String name, String content) {
+        loadIntoAllMembers(context -> context.evalIntoEngine(name, content));
+    }
+
+    /**
+     * Loaded into every member.
+     */
+    @Override
+    public void loadWithRequire(LinkedHashMap<String, CharSource> requireTargets) {
+        loadIntoAllMembers(context -> context.loadWithRequire(requireTargets));
+    }
+
+    /**
+     * Applies load to every member, waiting for each to become available. Loads are remembered in order.
+     * @param load executed once per member, mustn't leak the context to other threads.
+     */
+    public void loadIntoAllMembers(Consumer<NashornJavascriptEngineContext> load) {
+        synchronized (libraryLock) {
+            for (int i = 0; i < members.size(); i++) {
+                withMember(i, context -> {
+                    load.accept(context);
+                    return null;
+                });
+            }
+            libraryLoads.add(load);
+        }
+    }
+
+    /**
+     * @return the loads applied with {@link #loadIntoAllMembers(Consumer)} and its siblings, in order.
+     */
+    public List<Consumer<NashornJavascriptEngineContext>> getLibraryLoads() {
+        synchronized (libraryLock) {
+            return new ArrayList<>(libraryLoads);
+        }
+    }
+
+    @Nullable
+    private Object remember(@Nullable Object result, int index) {
+        if (result instanceof ScriptObjectMirror) {
+            scriptObjectOwners.put(result, index);
+        }
+        return result;
+    }
+
+    /**
+     * Remembers the script objects among the values of batch results. Only for batches, other results aren't
+     * scanned: that would cost every call.
+     */
+    private List<JavascriptInvocationResult> rememberValues(List<JavascriptInvocationResult> results, int index) {
+        for (JavascriptInvocationResult result : results) {
+            if (result.isSuccess()) {
+                remember(result.getValue(), index);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param wanted member index or -1 for any member.
+     * @return index of checked out member
+     */
+    private int checkout(int wanted) {
+        long timeoutNanos = checkoutTimeoutNanos;
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (this) {
+            while (true) {
+                int index = findAvailable(wanted);
+                if (index >= 0) {
+                    checkedOut[index] = true;
+                    availableCount--;
+                    return index;
+                }
+                if (wanted < 0) {
+                    checkWarmupFailed();
+                }
+                try {
+                    if (timeoutNanos < 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new IllegalStateException("No engine available within "
+                                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private boolean tryCheckout(int index) {
+        synchronized (this) {
+            if (checkedOut[index]) {
+                return false;
+            }
+            checkedOut[index] = true;
+            availableCount--;
+            return true;
+        }
+    }
+
+    private int findAvailable(int wanted) {
+        if (wanted >= 0) {
+            return checkedOut[wanted] ? -1 : wanted;
+        }
+        if (availableCount == 0) {
+            return -1;
+        }
+        NashornEngineWarmer[] gatingWarmers = gateOnWarmup ? warmers : null;
+        for (int i = 0; i < checkedOut.length; i++) {
+            if (!checkedOut[i] && (gatingWarmers == null || gatingWarmers[i].isReady())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gated calls would wait forever if warmup failed on all members.
+     */
+    private void checkWarmupFailed() {
+        NashornEngineWarmer[] gatingWarmers = gateOnWarmup ? warmers : null;
+        if (gatingWarmers == null) {
+            return;
+        }
+        for (NashornEngineWarmer warmer : gatingWarmers) {
+            if (warmer.getState() != NashornEngineWarmer.State.FAILED) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Warmup failed on all engines, retry with warmUpAll",
+                gatingWarmers[0].getFailure());
+    }
+
+    private void checkin(int index) {
+        synchronized (this) {
+            checkedOut[index] = false;
+            availableCount++;
+            notifyAll();
+        }
+    }
+
+    public class PooledContext implements AutoCloseable {
+
+        private int index;
+
+        private PooledContext(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public NashornJavascriptEngineContext getContext() {
+            Preconditions.checkState(index >= 0, "Already closed");
+            return members.get(index);
+        }
+
+        @Override
+        public void close() {
+            if (index >= 0) {
+                int toCheckin = index;
+                index = -1;
+                checkin(toCheckin);
+            }
+        }
+    }
+
+    private class PoolFunctionHandle implements JavascriptFunctionHandle {
+
+        private final String path;
+
+        /**
+         * Accessed with the member checked out.
+         */
+        private final JavascriptFunctionHandle[] memberHandles = new JavascriptFunctionHandle[members.size()];
+
+        PoolFunctionHandle(String path) {
+            this.path = path;
+        }
+
+        JavascriptFunctionHandle getMemberHandle(int index) {
+            JavascriptFunctionHandle result = memberHandles[index];
+            if (result == null) {
+                result = members.get(index).getFunctionHandle(path);
+                memberHandles[index] = result;
+            }
+            return result;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Checks one idle member, resolving the path there if it wasn't yet.
+         */
+        @Override
+        public boolean isValid() {
+            int index = checkout(-1);
+            try {
+                return getMemberHandle(index).isValid();
+            } catch (IllegalArgumentException e) {
+                // path doesn't lead to a function anymore
+                return false;
+            } finally {
+                checkin(index);
+            }
+        }
+
+        @Nullable
+        @Override
+        public Object invoke(Object... jsCompatibleArgs) {
+            int index = checkout(-1);
+            try {
+                return remember(getMemberHandle(index).invoke(jsCompatibleArgs), index);
+            } finally {
+                checkin(index);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "JavascriptFunctionHandle " + path;
+        }
+    }
+
+    private class PoolObjectHandle implements ScriptObjectHandle {
+
+        private final int index;
+
+        private final ScriptObjectHandle memberHandle;
+
+        PoolObjectHandle(int index, ScriptObjectHandle memberHandle) {
+            this.index = index;
+            this.memberHandle = memberHandle;
+        }
+
+        @Override
+        public String getPath() {
+            return memberHandle.getPath();
+        }
+
+        /**
+         * Doesn't check the member out, the check only briefly locks its engine.
+         */
+        @Override
+        public boolean isValid() {
+            return memberHandle.isValid();
+        }
+
+        @Override
+        public Object get() {
+            return withMember(index, context -> memberHandle.get());
+        }
+
+        @Nullable
+        @Override
+        public Object invokeMethod(String methodName, Object... jsCompatibleArgs) {
+            return withMember(index, context -> memberHandle.invokeMethod(methodName, jsCompatibleArgs));
+        }
+
+        @Override
+        public String toString() {
+            return "ScriptObjectHandle " + getPath();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharSource;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.nashorn.internal.runtime.Context;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Compiled module wrappers of one engine for the require of {@link NashornHelper#loadWithRequire}, keyed by the
+ * content hash of the module source. A module is parsed and compiled once per engine into a function taking
+ * require, module and exports. Each context loading it only evaluates the compiled wrapper, which links it to the
+ * context's global without parsing again. Thread safe.
+ * <p>
+ *     Module sources are read once per {@link CharSource} instance and kept while the CharSource is referenced,
+ *     so pool members and replaced engines loading the same require targets don't read them again. Use new
+ *     CharSources to pick up changed sources. Sources with the same content share one copy of the text.
+ *     {@link #prefetch(Iterable, Executor)} reads them ahead, so that the engine thread doesn't wait for I/O.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+class NashornModuleCache {
+
+    private static final LoadingCache<CharSource, ModuleSource> SOURCES = CacheBuilder.newBuilder().weakKeys()
+            .build(CacheLoader.from(NashornModuleCache::read));
+
+    private static final Interner<ModuleSource> BY_CONTENT = Interners.newWeakInterner();
+
+    private final NashornScriptEngine engine;
+
+    private final Cache<HashCode, CompiledModule> compiled;
+
+    private final long maxChars;
+
+    /**
+     * @param maxChars summed source length of the modules cached, 0 disables caching.
+     */
+    NashornModuleCache(NashornScriptEngine engine, long maxChars) {
+        this.engine = engine;
+        this.maxChars = maxChars;
+        compiled = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher((HashCode hash, CompiledModule module) -> module.chars)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Call from script running in context, like require does.
+     * @return the module's wrapper function in context, to be called with require, module and exports.
+     * @throws ScriptException if the module doesn't compile.
+     */
+    Object link(ScriptContext context, String name, CharSource source) throws ScriptException {
+        ModuleSource module;
+        try {
+            module = getSource(source);
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException("Failed to read module " + name, e.getCause());
+        }
+        CompiledModule result = compiled.getIfPresent(module.hash);
+        if (result == null) {
+            result = new CompiledModule(compile(context, name, module.text), module.text.length());
+            if (maxChars > 0) {
+                compiled.put(module.hash, result);
+            }
+        }
+        // the script calls the function, hand out the function itself and not its mirror
+        return ScriptObjectMirror.unwrap(result.script.eval(context), Context.getGlobal());
+    }
+
+    private CompiledScript compile(ScriptContext context, String name, String text) throws ScriptException {
+        // the file name of the compiled source is taken from the engine's context
+        ScriptContext previousContext = engine.getContext();
+        engine.setContext(context);
+        Object previousName = context.getAttribute(ScriptEngine.FILENAME, ScriptContext.ENGINE_SCOPE);
+        context.setAttribute(ScriptEngine.FILENAME, name, ScriptContext.ENGINE_SCOPE);
+        try {
+            // newline before the closing brace: the source may end with a line comment
+            return engine.compile("(function(require, module, exports) {" + text + "\n})");
+        } finally {
+            if (previousName == null) {
+                context.removeAttribute(ScriptEngine.FILENAME, ScriptContext.ENGINE_SCOPE);
+            } else {
+                context.setAttribute(ScriptEngine.FILENAME, previousName, ScriptContext.ENGINE_SCOPE);
+            }
+            engine.setContext(previousContext);
+        }
+    }
+
+    /**
+     * Reads sources with executor, one task per source. Sources read before or being read already aren't read
+     * again.
+     * @return future completing when all sources are read, failing if one of them failed.
+     */
+    static ListenableFuture<List<Object>> prefetch(Iterable<CharSource> sources, Executor executor) {
+        List<ListenableFuture<Object>> futures = new ArrayList<>();
+        for (CharSource source : sources) {
+            ListenableFutureTask<Object> task = ListenableFutureTask.create(() -> getSource(source));
+            executor.execute(task);
+            futures.add(task);
+        }
+        return Futures.allAsList(futures);
+    }
+
+    static ModuleSource getSource(CharSource source) {
+        return SOURCES.getUnchecked(source);
+    }
+
+    /**
+     * @return hits are modules linked without compiling.
+     */
+    CacheStats getStats() {
+        return compiled.stats();
+    }
+
+    long size() {
+        return compiled.size();
+    }
+
+    private static ModuleSource read(CharSource source) {
+        try {
+            String text = source.read();
+            return BY_CONTENT.intern(new ModuleSource(text, Hashing.sha256().hashString(text, Charsets.UTF_8)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static class ModuleSource {
+
+        final String text;
+
+        final HashCode hash;
+
+        ModuleSource(String text, HashCode hash) {
+            this.text = text;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ModuleSource && hash.equals(((ModuleSource) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode();
+        }
+    }
+
+    private static class CompiledModule {
+
+        final CompiledScript script;
+
+        final int chars;
+
+        CompiledModule(CompiledScript script, int chars) {
+            this.script = script;
+            this.chars = chars;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.io.CharSource;
+import com.google.common.io.Files;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Path resolution for the require of {@link NashornHelper#loadWithRequire}. Normalizes the module names when
+ * targets are added and caches resolved relative requires per (directory, target), so that a require call from
+ * script is a map lookup instead of string rewrites and interop calls.
+ * <p>
+ *     Paths are absolute, end with .js and are simplified (see {@link Files#simplifyPath(String)}): "lib/a",
+ *     "./lib/a.js" and "/lib/x/../a.js" are all "/lib/a.js". A target is resolved relative to the directory of the
+ *     requiring module unless it starts with '/'.
+ * </p>
+ * <p>
+ *     One instance per context, created by require.js. Not thread safe, lock the engine as for the other
+ *     {@link NashornHelper} methods.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornModuleResolver {
+
+    private final Map<String, Map.Entry<String, CharSource>> targets = new HashMap<>();
+
+    private final Map<String, String> directories = new HashMap<>();
+
+    /**
+     * Requiring directory to target to path.
+     */
+    private final Map<String, Map<String, String>> resolved = new HashMap<>();
+
+    /**
+     * @param requireTargets module names/paths to CharSources that provide the source.
+     * @throws IllegalArgumentException if two names have the same path, or a name is already registered.
+     */
+    public void addTargets(Map<String, CharSource> requireTargets) {
+        for (Map.Entry<String, CharSource> entry : requireTargets.entrySet()) {
+            String path = normalize(entry.getKey());
+            if (targets.containsKey(path)) {
+                throw new IllegalArgumentException("Collision, two files with same path: " + entry.getKey());
+            }
+            targets.put(path, entry);
+            int lastSlash = path.lastIndexOf('/');
+            directories.put(path, lastSlash == 0 ? "/" : path.substring(0, lastSlash));
+        }
+    }
+
+    /**
+     * @param directory of the requiring module (see {@link #getDirectory(String)}), "" or "/" for the root.
+     * @return normalized path of target, registered or not.
+     */
+    public String resolve(String directory, String target) {
+        Map<String, String> byTarget = resolved.get(directory);
+        if (byTarget == null) {
+            byTarget = new HashMap<>();
+            resolved.put(directory, byTarget);
+        }
+        String result = byTarget.get(target);
+        if (result == null) {
+            result = target.startsWith("/") ? normalize(target) : normalize(directory + "/" + target);
+            byTarget.put(target, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the registered name and source of path or null.
+     */
+    @Nullable
+    public Map.Entry<String, CharSource> getEntry(String path) {
+        return targets.get(path);
+    }
+
+    /**
+     * @return directory of the registered path, to resolve the requires of its module.
+     */
+    @Nullable
+    public String getDirectory(String path) {
+        return directories.get(path);
+    }
+
+    /**
+     * @return the registered paths.
+     */
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(targets.keySet());
+    }
+
+    public int size() {
+        return targets.size();
+    }
+
+    static String normalize(String name) {
+        String path = name.endsWith(".js") ? name : name + ".js";
+        return Files.simplifyPath(path.startsWith("/") ? path : "/" + path);
+    }
+}
@@ -0,0 +1,221 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.nashorn.internal.objects.Global;
+import jdk.nashorn.internal.objects.NativeDate;
+import jdk.nashorn.internal.runtime.JSType;
+import jdk.nashorn.internal.runtime.ScriptFunction;
+import jdk.nashorn.internal.runtime.ScriptObject;
+import jdk.nashorn.internal.runtime.Undefined;
+import jdk.nashorn.internal.runtime.arrays.ArrayData;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts results into java structures that don't reference the engine, in one pass on the engine thread. Reading
+ * a {@link ScriptObjectMirror} from another thread calls into the engine, which isn't thread safe, and every read
+ * is an interop call.
+ * <p>
+ *     Objects become unmodifiable Maps of their own enumerable properties (in insertion order), arrays unmodifiable
+ *     Lists, strings Strings, undefined null and dates {@link Instant}s (null if invalid). Numbers and booleans
+ *     stay as they are. Like JSON.stringify functions are left out of objects and become null in arrays. Java
+ *     Lists, Maps and {@link JavascriptInvocationResult}s are copied with their elements detached, other java
+ *     objects (including {@link NashornTypedArrays} views) are kept.
+ * </p>
+ * <p>
+ *     Objects referenced more than once are converted once and shared in the result. Cycles can't be represented
+ *     and fail the conversion.
+ * </p>
+ * <p>
+ *     Script objects of the global the detacher was created for are read through Nashorn internals directly,
+ *     others through their mirror. Not thread safe, the bookkeeping is reused between conversions. Lock the engine
+ *     as for the other {@link NashornHelper} methods.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+class NashornResultDetacher {
+
+    private final Global global;
+
+    /**
+     * Converted objects by identity, to share them in the result.
+     */
+    private final IdentityHashMap<Object, Object> converted = new IdentityHashMap<>();
+
+    /**
+     * Objects being converted, to detect cycles.
+     */
+    private final IdentityHashMap<Object, Boolean> inProgress = new IdentityHashMap<>();
+
+    NashornResultDetacher(Global global) {
+        this.global = global;
+    }
+
+    /**
+     * The global must be current (see {@link jdk.nashorn.internal.runtime.Context#getGlobal()}).
+     * @throws IllegalArgumentException if value is a function or contains a cycle.
+     */
+    @Nullable
+    Object detach(@Nullable Object value) {
+        try {
+            Object unwrapped = ScriptObjectMirror.unwrap(value, global);
+            if (unwrapped instanceof ScriptFunction || (unwrapped instanceof JSObject
+                    && ((JSObject) unwrapped).isFunction())) {
+                throw new IllegalArgumentException("Functions can't be detached: " + value);
+            }
+            return convert(unwrapped);
+        } finally {
+            // IdentityHashMap.clear keeps the table
+            converted.clear();
+            inProgress.clear();
+        }
+    }
+
+    @Nullable
+    private Object convert(@Nullable Object value) {
+        if (value == null || value instanceof Undefined) {
+            return null;
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof String) {
+            return value;
+        }
+        if (value instanceof CharSequence) {
+            // ConsString
+            return value.toString();
+        }
+        boolean internal = value instanceof ScriptObject;
+        if (!internal && !(value instanceof JSObject) && !(value instanceof List) && !(value instanceof Map)
+                && !(value instanceof JavascriptInvocationResult) || value instanceof NashornTypedArrays.BufferView) {
+            return value;
+        }
+        Object result = converted.get(value);
+        if (result != null) {
+            return result;
+        }
+        if (inProgress.put(value, Boolean.TRUE) != null) {
+            throw new IllegalArgumentException("Result contains a cycle, can't be detached");
+        }
+        if (internal) {
+            result = convertScriptObject((ScriptObject) value);
+        } else if (value instanceof JSObject) {
+            result = convertJSObject((JSObject) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            Object[] elements = new Object[list.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = convertElement(list.get(i));
+            }
+            result = Collections.unmodifiableList(Arrays.asList(elements));
+        } else if (value instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!isFunction(e.getValue())) {
+                    map.put(String.valueOf(e.getKey()), convert(unwrap(e.getValue())));
+                }
+            }
+            result = Collections.unmodifiableMap(map);
+        } else {
+            JavascriptInvocationResult invocationResult = (JavascriptInvocationResult) value;
+            result = invocationResult.isSuccess()
+                    ? JavascriptInvocationResult.success(convert(unwrap(invocationResult.getValue())))
+                    : invocationResult;
+        }
+        inProgress.remove(value);
+        if (result != null) {
+            converted.put(value, result);
+        }
+        return result;
+    }
+
+    @Nullable
+    private Object convertScriptObject(ScriptObject object) {
+        if (object instanceof NativeDate) {
+            return toInstant(NativeDate.getTime(object));
+        }
+        if (object.isArray()) {
+            // element reads work for all array data, asObjectArray doesn't for buffer storage
+            ArrayData data = object.getArray();
+            Object[] elements = new Object[(int) data.length()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = convertElement(data.getObject(i));
+            }
+            return Collections.unmodifiableList(Arrays.asList(elements));
+        }
+        String[] keys = object.getOwnKeys(false);
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String key : keys) {
+            Object member = object.get(key);
+            if (!(member instanceof ScriptFunction)) {
+                map.put(key, convert(member));
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Mirrors of other globals and java implementations.
+     */
+    @Nullable
+    private Object convertJSObject(JSObject object) {
+        if ("Date".equals(object.getClassName()) && object instanceof ScriptObjectMirror) {
+            return toInstant(JSType.toNumber(((ScriptObjectMirror) object).callMember("getTime")));
+        }
+        if (object.isArray()) {
+            Object[] elements = new Object[JSType.toInt32(object.getMember("length"))];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = convertElement(object.getSlot(i));
+            }
+            return Collections.unmodifiableList(Arrays.asList(elements));
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        if (object instanceof ScriptObjectMirror) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror) object;
+            for (String key : mirror.getOwnKeys(false)) {
+                Object member = mirror.getMember(key);
+                if (!isFunction(member)) {
+                    map.put(key, convert(member));
+                }
+            }
+        } else {
+            for (String key : object.keySet()) {
+                Object member = object.getMember(key);
+                if (!isFunction(member)) {
+                    map.put(key, convert(member));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Nullable
+    private Object convertElement(@Nullable Object element) {
+        return isFunction(element) ? null : convert(unwrap(element));
+    }
+
+    @Nullable
+    private Object unwrap(@Nullable Object value) {
+        return ScriptObjectMirror.unwrap(value, global);
+    }
+
+    private static boolean isFunction(@Nullable Object value) {
+        return value instanceof ScriptFunction || (value instanceof JSObject && ((JSObject) value).isFunction());
+    }
+
+    @Nullable
+    private static Instant toInstant(double time) {
+        return Double.isNaN(time) ? null : Instant.ofEpochMilli((long) time);
+    }
+}
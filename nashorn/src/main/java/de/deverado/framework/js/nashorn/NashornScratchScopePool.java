@@ -0,0 +1,198 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.script.Bindings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the throw-away ENGINE_SCOPE bindings {@link NashornHelper#eval(NashornScriptEngine,
+ * javax.script.ScriptContext, String)} uses for shielding. {@link NashornScriptEngine#createBindings()} creates a
+ * complete new Nashorn global each time, which is expensive (about as much as a hundred function invocations).
+ * <p>
+ *     After an eval the variables the script created are removed from the scratch scope. A scope is only reused
+ *     if it is then indistinguishable from a fresh one: no variables left (var and function declarations can't be
+ *     deleted) and the builtins unchanged, including their prototypes (see {@link NashornBuiltinsSnapshot}).
+ *     Otherwise it is discarded, as are scopes of evals that failed or returned script objects (those might still
+ *     reference the scope's variables). Objects deeper down in the builtins aren't compared, a scope is therefore
+ *     reused at most {@link #getMaxReuses()} times.
+ * </p>
+ * <p>
+ *     Comparing the builtins needs the Nashorn internals of JDK 8. Without access to them scopes are never reused.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornScratchScopePool {
+
+    private static volatile int defaultMaxIdle = 4;
+
+    private static volatile int defaultMaxReuses = 1000;
+
+    private final NashornScriptEngine engine;
+
+    /**
+     * Guarded by this.
+     */
+    private final ArrayDeque<ScratchScope> idle = new ArrayDeque<>();
+
+    private volatile int maxIdle = defaultMaxIdle;
+
+    private volatile int maxReuses = defaultMaxReuses;
+
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    NashornScratchScopePool(NashornScriptEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @param maxIdle idle scopes kept per engine for pools created after this call. 0 disables recycling.
+     */
+    public static void setDefaultMaxIdle(int maxIdle) {
+        Preconditions.checkArgument(maxIdle >= 0, "maxIdle mustn't be negative");
+        defaultMaxIdle = maxIdle;
+    }
+
+    public static void setDefaultMaxReuses(int maxReuses) {
+        Preconditions.checkArgument(maxReuses >= 0, "maxReuses mustn't be negative");
+        defaultMaxReuses = maxReuses;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @param maxIdle 0 disables recycling for this engine.
+     */
+    public void setMaxIdle(int maxIdle) {
+        Preconditions.checkArgument(maxIdle >= 0, "maxIdle mustn't be negative");
+        this.maxIdle = maxIdle;
+        synchronized (this) {
+            while (idle.size() > maxIdle) {
+                idle.pollLast();
+            }
+        }
+    }
+
+    public int getMaxReuses() {
+        return maxReuses;
+    }
+
+    public void setMaxReuses(int maxReuses) {
+        Preconditions.checkArgument(maxReuses >= 0, "maxReuses mustn't be negative");
+        this.maxReuses = maxReuses;
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    ScratchScope acquire() {
+        ScratchScope result;
+        synchronized (this) {
+            result = idle.pollFirst();
+        }
+        if (result != null) {
+            reusedCount.incrementAndGet();
+            return result;
+        }
+        createdCount.incrementAndGet();
+        return newScope(maxIdle > 0);
+    }
+
+    /**
+     * @param recyclable if false the scope's builtins aren't recorded and it is never clean.
+     */
+    ScratchScope newScope(boolean recyclable) {
+        Bindings bindings = engine.createBindings();
+        NashornBuiltinsSnapshot builtins = null;
+        if (recyclable && bindings instanceof ScriptObjectMirror && NashornInternals.isAvailable()) {
+            builtins = NashornBuiltinsSnapshot.record(
+                    NashornFunctionInvoker.captureGlobal((ScriptObjectMirror) bindings));
+        }
+        return new ScratchScope(bindings, builtins);
+    }
+
+    /**
+     * @param evalResult result of the eval that used scope, null if it failed.
+     * @param succeeded false if the eval failed.
+     */
+    void release(ScratchScope scope, @Nullable Object evalResult, boolean succeeded) {
+        if (maxIdle == 0) {
+            return;
+        }
+        if (!succeeded || evalResult instanceof ScriptObjectMirror || ++scope.uses > maxReuses
+                || !scope.clean()) {
+            discardedCount.incrementAndGet();
+            return;
+        }
+        synchronized (this) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(scope);
+                return;
+            }
+        }
+        discardedCount.incrementAndGet();
+    }
+
+    static class ScratchScope {
+
+        final Bindings bindings;
+
+        /**
+         * Null if not recyclable.
+         */
+        @Nullable
+        private final NashornBuiltinsSnapshot builtins;
+
+        int uses;
+
+        private ScratchScope(Bindings bindings, @Nullable NashornBuiltinsSnapshot builtins) {
+            this.bindings = bindings;
+            this.builtins = builtins;
+        }
+
+        /**
+         * Removes the variables created by a script.
+         * @return true if scope is as good as new.
+         */
+        boolean clean() {
+            if (builtins == null) {
+                return false;
+            }
+            if (!bindings.isEmpty()) {
+                List<String> created = new ArrayList<>(bindings.keySet());
+                for (String key : created) {
+                    bindings.remove(key);
+                }
+                if (!bindings.isEmpty()) {
+                    return false;
+                }
+            }
+            return builtins.isUnchanged();
+        }
+    }
+}
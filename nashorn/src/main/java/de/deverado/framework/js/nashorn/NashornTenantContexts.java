@@ -0,0 +1,226 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Isolated contexts for tenants (e.g. customers) on one shared engine, kept in an LRU cache: hot tenants stay
+ * resident, the least recently used tenants are dropped above {@link #getMaxTenants()} and idle tenants after the
+ * expiry set with {@link #setExpireAfterAccess(long, TimeUnit)}. A tenant's scripts don't see the globals of other
+ * tenants. The libraries are shared, frozen: tenants can't change them for each other, see
+ * {@link NashornContextTemplate}.
+ * <p>
+ *     Everything is loaded lazily: the libraries when the first tenant is requested, a tenant's context (stamped
+ *     from the template, then loaded with the tenant load) when the tenant isn't cached. A dropped context still
+ *     works for callers holding it, the next {@link #get(String)} creates a new one.
+ * </p>
+ * <p>
+ *     All contexts share the engine lock: use them from one thread at a time, like a
+ *     {@link NashornJavascriptEngineContext}. If the engine is replaced (see
+ *     {@link NashornJavascriptEngineContext#recycle()}) the next {@link #get(String)} drops the contexts of the old
+ *     engine, the libraries are loaded again on the next miss.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornTenantContexts {
+
+    private final NashornJavascriptEngineHolder engineHolder;
+
+    private final Consumer<NashornJavascriptEngineContext> libraryLoad;
+
+    private final long maxTenants;
+
+    @Nullable
+    private BiConsumer<String, NashornJavascriptEngineContext> tenantLoad;
+
+    private long expireAfterAccessNanos = -1;
+
+    /**
+     * Created on first use, see {@link #setExpireAfterAccess(long, TimeUnit)}.
+     */
+    private volatile Cache<String, NashornJavascriptEngineContext> contexts;
+
+    @Nullable
+    private volatile NashornContextTemplate template;
+
+    private final AtomicLong libraryLoadCount = new AtomicLong();
+
+    /**
+     * Of the engine of the cached contexts, see {@link NashornJavascriptEngineHolder#getGeneration()}.
+     */
+    private volatile long generation;
+
+    private NashornTenantContexts(NashornJavascriptEngineHolder engineHolder,
+                                  Consumer<NashornJavascriptEngineContext> libraryLoad, long maxTenants) {
+        this.engineHolder = engineHolder;
+        this.libraryLoad = libraryLoad;
+        this.maxTenants = maxTenants;
+        generation = engineHolder.getGeneration();
+    }
+
+    /**
+     * @param libraryLoad loads the libraries shared by all tenants into a new context, e.g. with
+     *                    {@link NashornJavascriptEngineContext#loadWithRequire(java.util.LinkedHashMap)}.
+     * @param maxTenants contexts kept at most. Each keeps its own global and the objects its scripts created.
+     * @throws UnsupportedOperationException if the Nashorn internals of JDK 8 aren't accessible, see
+     * {@link NashornContextTemplate#capture(NashornJavascriptEngineContext)}.
+     */
+    public static NashornTenantContexts create(NashornJavascriptEngineHolder engineHolder,
+                                               Consumer<NashornJavascriptEngineContext> libraryLoad,
+                                               long maxTenants) {
+        NashornInternals.check("Tenant contexts");
+        Preconditions.checkArgument(maxTenants >= 0, "maxTenants mustn't be negative");
+        return new NashornTenantContexts(engineHolder, libraryLoad, maxTenants);
+    }
+
+    /**
+     * @param tenantLoad called with tenant and its new context, e.g. to load the tenant's scripts. Set before
+     *                   first use.
+     */
+    public NashornTenantContexts setTenantLoad(
+            @Nullable BiConsumer<String, NashornJavascriptEngineContext> tenantLoad) {
+        this.tenantLoad = tenantLoad;
+        return this;
+    }
+
+    /**
+     * @param duration tenants not used for this long are dropped, negative to keep them (the default). Set before
+     *                 first use.
+     */
+    public NashornTenantContexts setExpireAfterAccess(long duration, TimeUnit unit) {
+        Preconditions.checkState(contexts == null, "Already in use");
+        expireAfterAccessNanos = duration < 0 ? -1 : unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @return the context of tenant, created (and the libraries loaded) if not cached or of a replaced engine.
+     * @throws IllegalStateException if the engine is in use.
+     */
+    public NashornJavascriptEngineContext get(String tenant) {
+        checkGeneration();
+        try {
+            return getContexts().get(tenant, () -> createContext(tenant));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Nullable
+    public NashornJavascriptEngineContext getIfPresent(String tenant) {
+        return getContexts().getIfPresent(tenant);
+    }
+
+    /**
+     * Drops the context of tenant, e.g. after its scripts changed.
+     */
+    public void invalidate(String tenant) {
+        getContexts().invalidate(tenant);
+    }
+
+    public void invalidateAll() {
+        getContexts().invalidateAll();
+    }
+
+    /**
+     * @return hit, miss, load time (of tenant contexts) and eviction counts.
+     */
+    public CacheStats getStats() {
+        return getContexts().stats();
+    }
+
+    public long size() {
+        return getContexts().size();
+    }
+
+    public long getMaxTenants() {
+        return maxTenants;
+    }
+
+    /**
+     * @return how often the libraries were loaded: once, plus once per engine replacement.
+     */
+    public long getLibraryLoadCount() {
+        return libraryLoadCount.get();
+    }
+
+    /**
+     * @return template of the contexts, null before the first tenant was requested.
+     */
+    @Nullable
+    public NashornContextTemplate getTemplate() {
+        return template;
+    }
+
+    private Cache<String, NashornJavascriptEngineContext> getContexts() {
+        Cache<String, NashornJavascriptEngineContext> result = contexts;
+        if (result == null) {
+            synchronized (this) {
+                result = contexts;
+                if (result == null) {
+                    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                            .maximumSize(maxTenants)
+                            .recordStats();
+                    if (expireAfterAccessNanos >= 0) {
+                        builder.expireAfterAccess(expireAfterAccessNanos, TimeUnit.NANOSECONDS);
+                    }
+                    result = builder.build();
+                    contexts = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops the contexts if the engine was replaced: they would load the libraries themselves.
+     */
+    private void checkGeneration() {
+        long current = engineHolder.getGeneration();
+        if (current != generation) {
+            synchronized (this) {
+                if (current != generation) {
+                    getContexts().invalidateAll();
+                    generation = current;
+                }
+            }
+        }
+    }
+
+    private NashornJavascriptEngineContext createContext(String tenant) {
+        NashornJavascriptEngineContext result = (NashornJavascriptEngineContext) engineHolder.withEngine(engine -> {
+            NashornContextTemplate current = template;
+            if (current == null || current.getEngine() != engine) {
+                NashornJavascriptEngineContext libraryContext =
+                        NashornJavascriptEngineContext.createForExistingEngine(engineHolder);
+                libraryLoad.accept(libraryContext);
+                libraryLoadCount.incrementAndGet();
+                current = NashornContextTemplate.capture(libraryContext);
+                template = current;
+            }
+            return current.newContext();
+        });
+        BiConsumer<String, NashornJavascriptEngineContext> load = tenantLoad;
+        if (load != null) {
+            load.accept(tenant, result);
+        }
+        return result;
+    }
+}
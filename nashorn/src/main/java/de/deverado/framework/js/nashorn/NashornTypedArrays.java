@@ -0,0 +1,344 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import jdk.nashorn.api.scripting.AbstractJSObject;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import jdk.nashorn.internal.runtime.JSType;
+import jdk.nashorn.internal.runtime.ScriptRuntime;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.script.ScriptContext;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * Bridge for binary and numeric data between java and scripts without copying.
+ * <p>
+ *     {@link #wrap(ScriptContext, ByteBuffer)} turns a NIO ByteBuffer (heap, direct or memory-mapped) into a script
+ *     array whose elements are stored in the buffer, like a Uint8Array: <code>v[i]</code>, <code>v[i] = x</code>,
+ *     <code>v.length</code>, <code>Array.isArray(v)</code> and the generic <code>Array.prototype</code> functions
+ *     that don't change the length, e.g. <code>Array.prototype.reduce.call(v, ...)</code>. Nashorn reads and writes
+ *     the buffer directly, without boxing the elements. Out of range reads give undefined, written values are
+ *     converted to unsigned bytes. The array covers the buffer from its position to its limit at the time of
+ *     wrapping, changing its length fails.
+ * </p>
+ * <p>
+ *     The other wrap methods expose IntBuffers, DoubleBuffers and primitive arrays as array-like java objects
+ *     behaving like an Int32Array or a Float64Array. Nashorn has no external storage for them, every element access
+ *     is an interop call. Java arrays can also be passed as they are, Nashorn indexes them in place.
+ * </p>
+ * <p>
+ *     Wrapping is explicit: buffers passed as arguments to the invoke methods stay java objects, scripts may use
+ *     their methods.
+ * </p>
+ * <p>
+ *     The other way {@link #toIntArray(Object)} and {@link #toDoubleArray(Object)} convert javascript arrays to
+ *     primitive arrays in one bulk copy, without boxing every element.
+ * </p>
+ * <p>
+ *     The views and the conversions use the javascript conversions of the Nashorn internals of JDK 8, they fail
+ *     with an {@link UnsupportedOperationException} if those aren't accessible. Wrapping ByteBuffers only needs the
+ *     public API.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornTypedArrays {
+
+    private NashornTypedArrays() {
+    }
+
+    /**
+     * Lock the engine while wrapping, {@link NashornJavascriptEngineContext#wrapBuffer(ByteBuffer)} does.
+     * @param context created with {@link NashornHelper#createContext(jdk.nashorn.api.scripting.NashornScriptEngine)},
+     *                the array belongs to its global. Functions of other globals can use it through its mirror.
+     * @return array stored in the bytes between position and limit. Writes fail for read only buffers.
+     */
+    public static ScriptObjectMirror wrap(ScriptContext context, ByteBuffer buffer) {
+        Object bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (!(bindings instanceof ScriptObjectMirror)) {
+            throw new IllegalArgumentException("Context not created with NashornHelper.createContext");
+        }
+        ScriptObjectMirror array = (ScriptObjectMirror) ((ScriptObjectMirror) bindings).eval("[]");
+        array.setIndexedPropertiesToExternalArrayData(buffer.slice());
+        return array;
+    }
+
+    public static IntBufferView wrap(IntBuffer buffer) {
+        NashornInternals.check("Buffer views");
+        return new IntBufferView(buffer.slice());
+    }
+
+    public static IntBufferView wrap(int[] array) {
+        NashornInternals.check("Buffer views");
+        return new IntBufferView(IntBuffer.wrap(array));
+    }
+
+    public static DoubleBufferView wrap(DoubleBuffer buffer) {
+        NashornInternals.check("Buffer views");
+        return new DoubleBufferView(buffer.slice());
+    }
+
+    public static DoubleBufferView wrap(double[] array) {
+        NashornInternals.check("Buffer views");
+        return new DoubleBufferView(DoubleBuffer.wrap(array));
+    }
+
+    /**
+     * Elements are converted like javascript's bitwise operators do: fractions are truncated, non-numeric values
+     * become 0.
+     * @param jsArray javascript array, typed array or wrapped ByteBuffer, a view, an int[] (returned as is, like the
+     *                array of a view wrapping a whole int[]), a double[] or a list of numbers.
+     * @throws IllegalArgumentException if jsArray is none of these.
+     */
+    public static int[] toIntArray(@Nullable Object jsArray) {
+        NashornInternals.check("Array conversions");
+        if (jsArray instanceof int[]) {
+            return (int[]) jsArray;
+        }
+        if (jsArray instanceof BufferView) {
+            return ((BufferView<?>) jsArray).toIntArray();
+        }
+        if (jsArray instanceof ScriptObjectMirror) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror) jsArray;
+            if (mirror.isArray()) {
+                try {
+                    // bulk copy of the array data
+                    return mirror.to(int[].class);
+                } catch (UnsupportedOperationException e) {
+                    // buffer storage, read by element below
+                }
+            }
+            if (mirror.hasMember("length")) {
+                // typed arrays and buffers
+                int[] result = new int[JSType.toInt32(mirror.getMember("length"))];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = JSType.toInt32(mirror.getSlot(i));
+                }
+                return result;
+            }
+        }
+        if (jsArray instanceof double[]) {
+            double[] array = (double[]) jsArray;
+            int[] result = new int[array.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = JSType.toInt32(array[i]);
+            }
+            return result;
+        }
+        if (jsArray instanceof List) {
+            List<?> list = (List<?>) jsArray;
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = JSType.toInt32(list.get(i));
+            }
+            return result;
+        }
+        throw new IllegalArgumentException("Not a numeric array: " + jsArray);
+    }
+
+    /**
+     * Elements are converted like javascript's Number() does: non-numeric values become NaN.
+     * @param jsArray javascript array, typed array or wrapped ByteBuffer, a view, a double[] (returned as is, like
+     *                the array of a view wrapping a whole double[]), an int[] or a list of numbers.
+     * @throws IllegalArgumentException if jsArray is none of these.
+     */
+    public static double[] toDoubleArray(@Nullable Object jsArray) {
+        NashornInternals.check("Array conversions");
+        if (jsArray instanceof double[]) {
+            return (double[]) jsArray;
+        }
+        if (jsArray instanceof BufferView) {
+            return ((BufferView<?>) jsArray).toDoubleArray();
+        }
+        if (jsArray instanceof ScriptObjectMirror) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror) jsArray;
+            if (mirror.isArray()) {
+                try {
+                    // bulk copy of the array data
+                    return mirror.to(double[].class);
+                } catch (UnsupportedOperationException e) {
+                    // buffer storage, read by element below
+                }
+            }
+            if (mirror.hasMember("length")) {
+                // typed arrays and buffers
+                double[] result = new double[JSType.toInt32(mirror.getMember("length"))];
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = JSType.toNumber(mirror.getSlot(i));
+                }
+                return result;
+            }
+        }
+        if (jsArray instanceof int[]) {
+            int[] array = (int[]) jsArray;
+            double[] result = new double[array.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = array[i];
+            }
+            return result;
+        }
+        if (jsArray instanceof List) {
+            List<?> list = (List<?>) jsArray;
+            double[] result = new double[list.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = JSType.toNumber(list.get(i));
+            }
+            return result;
+        }
+        throw new IllegalArgumentException("Not a numeric array: " + jsArray);
+    }
+
+    /**
+     * Array-like script object reading and writing through to a buffer.
+     */
+    public abstract static class BufferView<B extends Buffer> extends AbstractJSObject {
+
+        protected final B buffer;
+
+        private final String className;
+
+        BufferView(B buffer, String className) {
+            this.buffer = buffer;
+            this.className = className;
+        }
+
+        /**
+         * @return the wrapped buffer, index 0 of the view is index 0 of the buffer.
+         */
+        public B getBuffer() {
+            return buffer;
+        }
+
+        public int length() {
+            return buffer.limit();
+        }
+
+        abstract Object get(int index);
+
+        abstract void set(int index, Object value);
+
+        abstract int[] toIntArray();
+
+        abstract double[] toDoubleArray();
+
+        @Override
+        public Object getSlot(int index) {
+            return hasSlot(index) ? get(index) : ScriptRuntime.UNDEFINED;
+        }
+
+        @Override
+        public boolean hasSlot(int index) {
+            return index >= 0 && index < buffer.limit();
+        }
+
+        @Override
+        public void setSlot(int index, Object value) {
+            if (hasSlot(index)) {
+                set(index, value);
+            }
+        }
+
+        @Override
+        public Object getMember(String name) {
+            return "length".equals(name) ? buffer.limit() : ScriptRuntime.UNDEFINED;
+        }
+
+        @Override
+        public boolean hasMember(String name) {
+            return "length".equals(name);
+        }
+
+        @Override
+        public boolean isArray() {
+            return true;
+        }
+
+        @Override
+        public String getClassName() {
+            return className;
+        }
+
+        @Override
+        public String toString() {
+            return "[object " + className + "]";
+        }
+    }
+
+    public static class IntBufferView extends BufferView<IntBuffer> {
+
+        IntBufferView(IntBuffer buffer) {
+            super(buffer, "Int32Array");
+        }
+
+        @Override
+        Object get(int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        void set(int index, Object value) {
+            buffer.put(index, JSType.toInt32(value));
+        }
+
+        @Override
+        int[] toIntArray() {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.limit() == buffer.array().length) {
+                return buffer.array();
+            }
+            int[] result = new int[buffer.limit()];
+            buffer.duplicate().get(result);
+            return result;
+        }
+
+        @Override
+        double[] toDoubleArray() {
+            double[] result = new double[buffer.limit()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = buffer.get(i);
+            }
+            return result;
+        }
+    }
+
+    public static class DoubleBufferView extends BufferView<DoubleBuffer> {
+
+        DoubleBufferView(DoubleBuffer buffer) {
+            super(buffer, "Float64Array");
+        }
+
+        @Override
+        Object get(int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        void set(int index, Object value) {
+            buffer.put(index, JSType.toNumber(value));
+        }
+
+        @Override
+        int[] toIntArray() {
+            int[] result = new int[buffer.limit()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = JSType.toInt32(buffer.get(i));
+            }
+            return result;
+        }
+
+        @Override
+        double[] toDoubleArray() {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.limit() == buffer.array().length) {
+                return buffer.array();
+            }
+            double[] result = new double[buffer.limit()];
+            buffer.duplicate().get(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import de.deverado.framework.js.api.JavascriptEngineContext;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Representative invocations replayed by {@link NashornEngineWarmer} until their latency stabilizes. Register
+ * the calls your production traffic makes, with realistic arguments - Nashorn optimizes for the types it sees.
+ * Setters return this for chaining. Don't change a plan while it is in use.
+ * <p>
+ *     Warmup runs in windows of {@link #getWindowSize()} rounds, each round executing all invocations once. The
+ *     engine is warm when the median round time of {@link #getRequiredStableWindows()} consecutive windows
+ *     changed less than {@link #getStableTolerance()} (relative) and at least {@link #getMinRounds()} rounds ran.
+ *     It never runs more than {@link #getMaxRounds()} rounds.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornWarmupPlan {
+
+    private final List<Function<JavascriptEngineContext, Object>> invocations = new ArrayList<>();
+
+    private int windowSize = 20;
+
+    private double stableTolerance = 0.1;
+
+    private int requiredStableWindows = 3;
+
+    private int minRounds = 100;
+
+    private int maxRounds = 5000;
+
+    public static NashornWarmupPlan create() {
+        return new NashornWarmupPlan();
+    }
+
+    /**
+     * @param invocation is executed on the engine thread, result is discarded.
+     */
+    public NashornWarmupPlan addInvocation(Function<JavascriptEngineContext, Object> invocation) {
+        invocations.add(invocation);
+        return this;
+    }
+
+    public NashornWarmupPlan addFunctionInvocation(String functionName, Object... jsCompatibleArgs) {
+        return addInvocation(context -> context.invokeFunction(functionName, jsCompatibleArgs));
+    }
+
+    public NashornWarmupPlan addEval(String scriptCode) {
+        return addInvocation(context -> context.eval(scriptCode));
+    }
+
+    public List<Function<JavascriptEngineContext, Object>> getInvocations() {
+        return Collections.unmodifiableList(invocations);
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public NashornWarmupPlan setWindowSize(int windowSize) {
+        Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    public double getStableTolerance() {
+        return stableTolerance;
+    }
+
+    public NashornWarmupPlan setStableTolerance(double stableTolerance) {
+        Preconditions.checkArgument(stableTolerance >= 0, "stableTolerance mustn't be negative");
+        this.stableTolerance = stableTolerance;
+        return this;
+    }
+
+    public int getRequiredStableWindows() {
+        return requiredStableWindows;
+    }
+
+    public NashornWarmupPlan setRequiredStableWindows(int requiredStableWindows) {
+        Preconditions.checkArgument(requiredStableWindows > 0, "requiredStableWindows must be positive");
+        this.requiredStableWindows = requiredStableWindows;
+        return this;
+    }
+
+    public int getMinRounds() {
+        return minRounds;
+    }
+
+    public NashornWarmupPlan setMinRounds(int minRounds) {
+        Preconditions.checkArgument(minRounds >= 0, "minRounds mustn't be negative");
+        this.minRounds = minRounds;
+        return this;
+    }
+
+    public int getMaxRounds() {
+        return maxRounds;
+    }
+
+    public NashornWarmupPlan setMaxRounds(int maxRounds) {
+        Preconditions.checkArgument(maxRounds > 0, "maxRounds must be positive");
+        this.maxRounds = maxRounds;
+        return this;
+    }
+}
@@ -0,0 +1,397 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import de.deverado.framework.js.api.JavascriptMetrics;
+import de.deverado.framework.js.api.JavascriptTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Aborts javascript executions that exceed their wall clock or CPU time budget. One daemon thread checks all
+ * watched executions periodically.
+ * <p>
+ *     {@link #call(long, long, Supplier)} runs the work on a worker thread and waits for it. An execution over
+ *     budget is first interrupted. That only helps if the script waits in interruptible java code: Nashorn doesn't
+ *     check for interruption while running javascript. If the execution is still running after the stop grace
+ *     period the caller gets a {@link JavascriptTimeoutException} and the worker thread is abandoned: it keeps
+ *     running until the script ends (forever for an endless loop, using CPU), its result is discarded. The engines
+ *     it holds locked (see {@link NashornJavascriptEngineHolder}) are marked corrupt and unlocked for the other
+ *     threads, {@link NashornJavascriptEngineContext} replaces corrupt engines with new ones. The abandoned thread
+ *     can't lock engines anymore. Threads aren't stopped with {@link Thread#stop()}: that leaves locks and
+ *     other shared state in arbitrary states.
+ * </p>
+ * <p>
+ *     Each abandoned thread may burn a core until its script ends. Once {@link #setMaxAbandoned(int)} of them
+ *     are running, budgeted calls fail fast with a {@link RejectedExecutionException} and {@link #isHealthy()}
+ *     returns false, until abandoned scripts end. Abandoning is reported to {@link #setMetrics(JavascriptMetrics)}.
+ * </p>
+ * <p>
+ *     The handoff to the worker costs some ten microseconds per call, calls without budgets run directly.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class NashornWatchdog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NashornWatchdog.class);
+
+    private static class DefaultHolder {
+        static final NashornWatchdog DEFAULT = create(10, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Watch of the work running in the current (worker) thread.
+     */
+    private static final ThreadLocal<Watch> CURRENT = new ThreadLocal<>();
+
+    private static final AtomicInteger WORKER_COUNT = new AtomicInteger();
+
+    private final long checkIntervalNanos;
+
+    private final long stopGraceNanos;
+
+    private final Set<Watch> active = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger abandonedRunning = new AtomicInteger();
+
+    private volatile int maxAbandoned = Runtime.getRuntime().availableProcessors();
+
+    private volatile JavascriptMetrics metrics = JavascriptMetrics.NOOP;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final boolean cpuTimeSupported;
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread result = new Thread(runnable, "javascriptWatchdogWorker-" + WORKER_COUNT.incrementAndGet());
+        result.setDaemon(true);
+        return result;
+    });
+
+    /**
+     * Guarded by this.
+     */
+    private Thread checker;
+
+    private NashornWatchdog(long checkIntervalNanos, long stopGraceNanos) {
+        this.checkIntervalNanos = checkIntervalNanos;
+        this.stopGraceNanos = stopGraceNanos;
+        cpuTimeSupported = threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+    }
+
+    /**
+     * @return a shared watchdog checking every 10 ms with a stop grace period of 100 ms.
+     */
+    public static NashornWatchdog getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * @param checkInterval budgets are enforced with this granularity.
+     * @param stopGrace how long an interrupted execution may take to finish before its thread is abandoned.
+     */
+    public static NashornWatchdog create(long checkInterval, long stopGrace, TimeUnit unit) {
+        Preconditions.checkArgument(checkInterval > 0, "checkInterval must be positive");
+        Preconditions.checkArgument(stopGrace >= 0, "stopGrace mustn't be negative");
+        return new NashornWatchdog(unit.toNanos(checkInterval), unit.toNanos(stopGrace));
+    }
+
+    /**
+     * @param maxAbandoned abandoned threads still running scripts at which budgeted calls are rejected. Defaults
+     *                     to the number of processors.
+     * @return this
+     */
+    public NashornWatchdog setMaxAbandoned(int maxAbandoned) {
+        Preconditions.checkArgument(maxAbandoned > 0, "maxAbandoned must be positive");
+        this.maxAbandoned = maxAbandoned;
+        return this;
+    }
+
+    public int getMaxAbandoned() {
+        return maxAbandoned;
+    }
+
+    /**
+     * @param metrics receives {@link JavascriptMetrics#scriptAbandoned(int)} and
+     *                {@link JavascriptMetrics#abandonedScriptFinished(int)}.
+     * @return this
+     */
+    public NashornWatchdog setMetrics(JavascriptMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics, "metrics");
+        return this;
+    }
+
+    /**
+     * Runs work on a worker thread and aborts it if it exceeds one of the budgets. Waits for the outcome
+     * uninterruptibly, that takes the budget plus the stop grace period at most.
+     * @param maxWallNanos -1 for no wall clock limit.
+     * @param maxCpuNanos -1 for no CPU time limit. Ignored if the JVM doesn't measure thread CPU time.
+     * @return result of work.
+     * @throws JavascriptTimeoutException if work exceeded a budget and didn't finish normally after being
+     * interrupted.
+     * @throws RejectedExecutionException if {@link #getMaxAbandoned()} abandoned threads are still running.
+     */
+    public <T> T call(long maxWallNanos, long maxCpuNanos, Supplier<T> work) {
+        if (maxWallNanos < 0 && (maxCpuNanos < 0 || !cpuTimeSupported)) {
+            return work.get();
+        }
+        int abandoned = abandonedRunning.get();
+        if (abandoned >= maxAbandoned) {
+            throw new RejectedExecutionException("Javascript rejected, " + abandoned +
+                    " abandoned threads are still running scripts over their time budget");
+        }
+        Watch watch = new Watch(maxWallNanos, cpuTimeSupported ? maxCpuNanos : -1);
+        active.add(watch);
+        try {
+            ensureChecker();
+            workers.execute(() -> watch.run(work));
+            @SuppressWarnings("unchecked")
+            T result = (T) Uninterruptibles.getUninterruptibly(watch.outcome);
+            return result;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AbandonedException) {
+                throw new JavascriptTimeoutException("Javascript abandoned after exceeding its time budget", null,
+                        true);
+            }
+            if (cause instanceof RuntimeException && watch.isTimedOut()) {
+                throw new JavascriptTimeoutException("Javascript interrupted after exceeding its time budget",
+                        cause, false);
+            }
+            throw Throwables.propagate(cause);
+        } finally {
+            active.remove(watch);
+        }
+    }
+
+    /**
+     * @return number of executions currently watched.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return number of abandoned worker threads still running their script.
+     */
+    public int getAbandonedCount() {
+        return abandonedRunning.get();
+    }
+
+    /**
+     * @return false if budgeted calls are rejected because too many abandoned threads are still running.
+     */
+    public boolean isHealthy() {
+        return abandonedRunning.get() < maxAbandoned;
+    }
+
+    /**
+     * Called by holder when the current thread locked its engine, to unlock it if the thread is abandoned.
+     * @return false if the current thread was abandoned and mustn't use the engine.
+     */
+    static boolean engineLocked(NashornJavascriptEngineHolder holder) {
+        Watch watch = CURRENT.get();
+        return watch == null || watch.addHolder(holder);
+    }
+
+    /**
+     * @return true if the current thread is a worker abandoned after exceeding its budget.
+     */
+    static boolean isCurrentThreadAbandoned() {
+        Watch watch = CURRENT.get();
+        return watch != null && watch.isAbandoned();
+    }
+
+    private synchronized void ensureChecker() {
+        if (checker == null) {
+            checker = new Thread(this::checkLoop, "javascriptWatchdog");
+            checker.setDaemon(true);
+            checker.start();
+        }
+    }
+
+    private void checkLoop() {
+        while (true) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(checkIntervalNanos);
+                long now = System.nanoTime();
+                for (Watch watch : active) {
+                    watch.check(now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("Javascript watchdog check failed", e);
+            }
+        }
+    }
+
+    /**
+     * Outcome of abandoned work, converted into a {@link JavascriptTimeoutException} by call.
+     */
+    private static class AbandonedException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private class Watch {
+
+        private final long startNanos = System.nanoTime();
+
+        private final long maxWallNanos;
+
+        private final long maxCpuNanos;
+
+        private final CompletableFuture<Object> outcome = new CompletableFuture<>();
+
+        private volatile boolean timedOut;
+
+        private long timedOutNanos;
+
+        /**
+         * Guarded by this.
+         */
+        private Thread thread;
+
+        /**
+         * Guarded by this.
+         */
+        private long startCpuNanos;
+
+        /**
+         * Guarded by this.
+         */
+        private boolean finished;
+
+        /**
+         * Guarded by this.
+         */
+        private boolean abandoned;
+
+        /**
+         * Engines locked by the worker, guarded by this.
+         */
+        private final Set<NashornJavascriptEngineHolder> holders =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private Watch(long maxWallNanos, long maxCpuNanos) {
+            this.maxWallNanos = maxWallNanos;
+            this.maxCpuNanos = maxCpuNanos;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        synchronized boolean addHolder(NashornJavascriptEngineHolder holder) {
+            if (abandoned) {
+                return false;
+            }
+            holders.add(holder);
+            return true;
+        }
+
+        /**
+         * Runs work in the worker thread.
+         */
+        private void run(Supplier<?> work) {
+            synchronized (this) {
+                if (abandoned) {
+                    return;
+                }
+                thread = Thread.currentThread();
+                startCpuNanos = maxCpuNanos >= 0 ? threadMXBean.getCurrentThreadCpuTime() : 0;
+            }
+            CURRENT.set(this);
+            Object result = null;
+            Throwable error = null;
+            try {
+                result = work.get();
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                CURRENT.remove();
+                // the interrupt of the watchdog mustn't hit the next task of the worker
+                Thread.interrupted();
+            }
+            synchronized (this) {
+                if (abandoned) {
+                    metrics.abandonedScriptFinished(abandonedRunning.decrementAndGet());
+                    LOG.info("Abandoned javascript thread {} finished", thread.getName());
+                    return;
+                }
+                finished = true;
+            }
+            if (error != null) {
+                outcome.completeExceptionally(error);
+            } else {
+                outcome.complete(result);
+            }
+        }
+
+        /**
+         * Called by the checker thread only.
+         */
+        private void check(long now) {
+            if (!timedOut) {
+                boolean overBudget = maxWallNanos >= 0 && now - startNanos > maxWallNanos;
+                synchronized (this) {
+                    if (!overBudget && maxCpuNanos >= 0 && thread != null) {
+                        long cpu = threadMXBean.getThreadCpuTime(thread.getId());
+                        overBudget = cpu >= 0 && cpu - startCpuNanos > maxCpuNanos;
+                    }
+                    if (overBudget && !finished) {
+                        timedOut = true;
+                        timedOutNanos = now;
+                        if (thread != null) {
+                            thread.interrupt();
+                        }
+                    }
+                }
+            } else if (now - timedOutNanos >= stopGraceNanos) {
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            synchronized (this) {
+                if (finished || abandoned) {
+                    return;
+                }
+                abandoned = true;
+                if (thread != null) {
+                    metrics.scriptAbandoned(abandonedRunning.incrementAndGet());
+                    LOG.warn("Abandoning javascript thread {} exceeding its time budget", thread.getName());
+                    for (NashornJavascriptEngineHolder holder : holders) {
+                        holder.abandon(thread);
+                    }
+                }
+            }
+            outcome.completeExceptionally(new AbandonedException());
+        }
+    }
+}
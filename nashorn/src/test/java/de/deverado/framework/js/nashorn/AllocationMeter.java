@@ -0,0 +1,47 @@
+package de.deverado.framework.js.nashorn;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures bytes allocated by the current thread, for allocation benchmarks. Sibling of {@link CPUTimeStopwatch}.
+ */
+public class AllocationMeter {
+
+    private long startBytes;
+    private final com.sun.management.ThreadMXBean sunBean;
+
+    public AllocationMeter() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            sunBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        } else {
+            throw new IllegalStateException("Not running on sun VM, not possible to measure allocations");
+        }
+    }
+
+    public static AllocationMeter createStarted() {
+        AllocationMeter result = new AllocationMeter();
+        result.restart();
+        return result;
+    }
+
+    public void restart() {
+        startBytes = allocatedBytes();
+    }
+
+    public long allocated() {
+        return allocatedBytes() - startBytes;
+    }
+
+    private long allocatedBytes() {
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    public String toString() {
+        return "{allocated=" + allocated() + "}";
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.CharSource;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+public class NashornCodeCacheTest {
+
+    private static final String UGLIFY_ROOT = "de/deverado/framework/js/nashorn/uglify";
+
+    private static final String[] UGLIFY_FILES = {"./lib/parse-js.js", "./lib/consolidator.js", "./lib/process.js",
+            "./lib/squeeze-more.js", "uglify.js"};
+
+    @Test
+    public void testPrimeAndLoad() throws Exception {
+        File dir = Files.createTempDir();
+        LinkedHashMap<String, CharSource> targets = new LinkedHashMap<>();
+        NashornHelper.addClasspathResources(targets, UGLIFY_ROOT, UGLIFY_FILES);
+        Consumer<NashornJavascriptEngineContext> load = context -> {
+            context.loadWithRequire(targets);
+            context.invokeFunction("require", "uglify");
+        };
+
+        NashornCodeCache primer = NashornCodeCache.create(dir);
+        assertFalse(primer.verify(targets));
+        primer.prime(targets, load);
+        assertTrue(primer.getStoreCount() > 0);
+        assertTrue(primer.verify(targets));
+
+        // restarted node
+        NashornCodeCache cache = NashornCodeCache.create(dir).setReadOnly(true);
+        assertTrue(cache.verify(targets));
+        load.accept(NashornJavascriptEngineContext.createWithNewEngine(cache.createEngine()));
+        // everything stored is loaded, some compilation units aren't stored by Nashorn
+        assertEquals(primer.getStoreCount(), cache.getHitCount());
+        assertEquals(0, cache.getStoreCount());
+        assertTrue(cache.getHitRate() > 0.5);
+
+        // library changed
+        LinkedHashMap<String, CharSource> changed = new LinkedHashMap<>(targets);
+        changed.put("extra.js", CharSource.wrap("exports.x = 1;"));
+        assertFalse(cache.verify(changed));
+        assertTrue(new File(dir, "nashorn-code-cache.properties").isFile());
+        assertFalse(primer.verify(changed));
+        assertFalse(new File(dir, "nashorn-code-cache.properties").isFile());
+    }
+
+    @Test
+    public void testUnusableDirectoryDisablesCaching() throws Exception {
+        File notADir = File.createTempFile("notADir", ".txt");
+        notADir.deleteOnExit();
+        NashornCodeCache cache = NashornCodeCache.create(new File(notADir, "codeCache")).setMinSourceChars(0);
+
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine(
+                cache.createEngine());
+        assertEquals(3, ((Number) context.eval("1 + 2")).intValue());
+        assertEquals(0, cache.getStoreCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testTrim() throws Exception {
+        File dir = Files.createTempDir();
+        File versionDir = new File(dir, "version");
+        versionDir.mkdirs();
+        File older = new File(versionDir, "older");
+        Files.write(new byte[100], older);
+        older.setLastModified(System.currentTimeMillis() - 60000);
+        File newer = new File(versionDir, "newer");
+        Files.write(new byte[100], newer);
+
+        NashornCodeCache.create(dir).setMaxBytes(150).trim();
+        assertFalse(older.exists());
+        assertTrue(newer.exists());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NashornEngineWarmerTest {
+
+    @Test
+    public void testWarmUpUntilStable() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("globalFunc.js", "function globalFunc(a,b) { return a + b; }\n");
+        NashornEngineWarmer warmer = new NashornEngineWarmer(context, NashornWarmupPlan.create()
+                .addFunctionInvocation("globalFunc", 3, 5).setMinRounds(50).setStableTolerance(0.5));
+
+        assertEquals(NashornEngineWarmer.State.COLD, warmer.getState());
+        warmer.warmUp();
+        assertTrue(warmer.isReady());
+        assertTrue(warmer.getReadyFuture().isDone());
+        assertTrue(warmer.getRoundsRun() >= 50);
+        assertTrue(warmer.getLastWindowMedianNanos() > 0);
+    }
+
+    @Test
+    public void testFailingInvocationEndsWarmup() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        NashornEngineWarmer warmer = new NashornEngineWarmer(context, NashornWarmupPlan.create()
+                .addFunctionInvocation("missingFunc"));
+        warmer.warmUp();
+        assertEquals(NashornEngineWarmer.State.FAILED, warmer.getState());
+        assertTrue(warmer.isDone());
+        assertFalse(warmer.isReady());
+        assertNotNull(warmer.getFailure());
+        try {
+            warmer.getReadyFuture().get();
+            fail("expected failure");
+        } catch (ExecutionException expected) {
+            // ok
+        }
+
+        context.evalIntoEngine("missingFunc.js", "function missingFunc() { return 1; }");
+        warmer.warmUp();
+        assertTrue(warmer.isReady());
+        assertNull(warmer.getFailure());
+        assertEquals(1, warmer.getFailureCount());
+        warmer.getReadyFuture().get();
+    }
+
+    @Test
+    public void testConcurrentWarmUpRunsPlanOnce() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        NashornEngineWarmer warmer = new NashornEngineWarmer(context, NashornWarmupPlan.create().addInvocation(c -> {
+            if (calls.incrementAndGet() == 1) {
+                started.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+            return null;
+        }).setMinRounds(10).setMaxRounds(20));
+        Thread first = new Thread(warmer::warmUp);
+        first.start();
+        started.await();
+        warmer.warmUp();
+        assertEquals(NashornEngineWarmer.State.WARMING, warmer.getState());
+        assertEquals(1, calls.get());
+        release.countDown();
+        first.join();
+
+        assertTrue(warmer.isReady());
+        assertEquals(calls.get(), warmer.getRoundsRun());
+        warmer.warmRounds(5);
+        assertEquals(calls.get() - 5, warmer.getRoundsRun());
+    }
+
+    @Test
+    public void testErrorEndsWarmup() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        AtomicBoolean fail = new AtomicBoolean(true);
+        NashornEngineWarmer warmer = new NashornEngineWarmer(context, NashornWarmupPlan.create().addInvocation(c -> {
+            if (fail.get()) {
+                throw new StackOverflowError();
+            }
+            return null;
+        }).setMinRounds(10).setMaxRounds(20));
+        try {
+            warmer.warmUp();
+            fail("expected error");
+        } catch (StackOverflowError expected) {
+            // ok
+        }
+        assertEquals(NashornEngineWarmer.State.FAILED, warmer.getState());
+        assertTrue(warmer.getFailure() instanceof StackOverflowError);
+        assertTrue(warmer.getReadyFuture().isDone());
+
+        fail.set(false);
+        warmer.warmUp();
+        assertTrue(warmer.isReady());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMinRoundsRejected() throws Exception {
+        NashornWarmupPlan.create().setMinRounds(-1);
+    }
+
+    @Test
+    public void testPoolFailsCallsIfWarmupFailedEverywhere() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.setWarmupPlan(NashornWarmupPlan.create().addFunctionInvocation("globalFunc", 3, 5)
+                .setMinRounds(20).setMaxRounds(200), true);
+        pool.warmUpAll(MoreExecutors.directExecutor()).get();
+        try {
+            pool.invokeFunction("globalFunc", 1, 2);
+            fail("members failing warmup mustn't be used");
+        } catch (IllegalStateException expected) {
+            assertNotNull(expected.getCause());
+        }
+
+        pool.evalIntoEngine("globalFunc.js", "function globalFunc(a,b) { return a + b; }\n");
+        pool.warmUpAll(MoreExecutors.directExecutor()).get();
+        assertEquals(3.0, pool.invokeFunction("globalFunc", 1, 2));
+    }
+
+    @Test
+    public void testPoolGatesOnWarmup() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.setWarmupPlan(NashornWarmupPlan.create().addFunctionInvocation("globalFunc", 3, 5)
+                .setMinRounds(20).setMaxRounds(200), true);
+        pool.setCheckoutTimeout(50, TimeUnit.MILLISECONDS);
+        pool.evalIntoEngine("globalFunc.js", "function globalFunc(a,b) { return a + b; }\n");
+
+        try {
+            pool.invokeFunction("globalFunc", 1, 2);
+            fail("cold members mustn't be used");
+        } catch (IllegalStateException expected) {
+            // ok
+        }
+        assertFalse(pool.getReadyFuture().isDone());
+
+        pool.warmUpAll(MoreExecutors.directExecutor()).get();
+        assertTrue(pool.getWarmer(0).isReady());
+        assertTrue(pool.getWarmer(1).isReady());
+        assertEquals(3.0, pool.invokeFunction("globalFunc", 1, 2));
+    }
+}
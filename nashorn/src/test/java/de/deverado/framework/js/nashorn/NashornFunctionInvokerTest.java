@@ -0,0 +1,206 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Stopwatch;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+public class NashornFunctionInvokerTest {
+
+    private static final String LIB = "function add(a, b) { return a + b; }\n" +
+            "function id(a) { return a; }\n" +
+            "function sum() { var s = 0; for (var i = 0; i < arguments.length; i++) { s += arguments[i]; } " +
+            "return s; }\n" +
+            "function concat(a, b) { return a + b; }\n" +
+            "function x(o) { return o.x; }\n" +
+            "function obj() { return { x: 7 }; }\n" +
+            "function boom() { throw new Error('boom'); }\n";
+
+    @Test
+    public void testTypedResults() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+
+        assertEquals(8.0, context.invokeFunctionAsDouble("add", 3, 5), 0);
+        assertEquals(8L, context.invokeFunctionAsLong("add", 3, 5));
+        assertEquals("35", context.invokeFunctionAsString("concat", "3", 5));
+        assertTrue(context.invokeFunctionAsBoolean("id", "false"));
+        assertFalse(context.invokeFunctionAsBoolean("id", ""));
+
+        // javascript conversion semantics
+        assertTrue(Double.isNaN(context.invokeFunctionAsDouble("id", "abc")));
+        assertTrue(Double.isNaN(context.invokeFunctionAsDouble("id")));
+        assertEquals(12.0, context.invokeFunctionAsDouble("id", "12"), 0);
+        assertEquals(8L, context.invokeFunctionAsLong("id", 8.9));
+        assertEquals(0L, context.invokeFunctionAsLong("id", "abc"));
+        assertEquals("undefined", context.invokeFunctionAsString("id"));
+        assertNull(context.invokeFunctionAsString("id", (Object) null));
+
+        // unlinked path for many args
+        assertEquals(15.0, context.invokeFunctionAsDouble("sum", 1, 2, 3, 4, 5), 0);
+        assertEquals(15L, context.invokeFunctionAsLong("sum", 1, 2, 3, 4, 5));
+        assertEquals("15", context.invokeFunctionAsString("sum", 1, 2, 3, 4, 5));
+
+        // script objects as args
+        ScriptObjectMirror o = (ScriptObjectMirror) context.invokeFunction("obj");
+        assertEquals(7L, context.invokeFunctionAsLong("x", o));
+
+        // redefinition picked up
+        context.evalIntoEngine("redefine.js", "function add(a, b) { return a * b; }");
+        assertEquals(15.0, context.invokeFunctionAsDouble("add", 3, 5), 0);
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+        try {
+            context.invokeFunctionAsDouble("missing");
+            fail("expected failure");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getCause() instanceof NoSuchMethodException);
+        }
+        try {
+            context.invokeFunctionAsDouble("boom");
+            fail("expected failure");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("boom"));
+        }
+        // engine released after failures
+        assertEquals(2.0, context.invokeFunctionAsDouble("add", 1, 1), 0);
+    }
+
+    @Test
+    public void testFixedArityAndNumericArgs() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB + "function four(a, b, c, d) { return a + b + c + d; }\n");
+
+        assertEquals(10.0, context.invokeFunctionAsDouble("four", 1.0, 2.0, 3.0, 4.0), 0);
+        assertEquals("1234", context.invokeFunctionAsString("four", "1", 2, 3, 4));
+        assertEquals(2L, context.invokeFunctionAsLong("id", 2.7));
+        assertTrue(context.invokeFunctionAsBoolean("id", 1.0));
+        assertFalse(context.invokeFunctionAsBoolean("id", Double.NaN));
+
+        // results like invokeFunction(String, Object...)
+        assertEquals("35", context.invokeFunction("concat", "3", 5));
+        assertNull(context.invokeFunction("id"));
+        ScriptObjectMirror o = (ScriptObjectMirror) context.invokeFunction("obj");
+        assertEquals(7L, context.invokeFunctionAsLong("x", o));
+        assertEquals(7, ((Number) context.invokeFunction("x", o)).intValue());
+        try {
+            context.invokeFunction("boom");
+            fail("expected failure");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getCause() instanceof ScriptException);
+        }
+    }
+
+    @Test
+    public void testFunctionsOfOtherGlobals() throws Exception {
+        NashornJavascriptEngineContext library = NashornJavascriptEngineContext.createWithNewEngine();
+        library.evalIntoEngine("lib.js", LIB);
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createForExistingEngine(
+                library.getEngineHolder());
+        // a mirror of the library's function, like a context template sets it
+        context.getContext().setAttribute("add", library.getScriptObject("add"), ScriptContext.ENGINE_SCOPE);
+        context.getContext().setAttribute("sum", library.getScriptObject("sum"), ScriptContext.ENGINE_SCOPE);
+
+        assertEquals(8.0, context.invokeFunctionAsDouble("add", 3, 5), 0);
+        assertEquals(8L, context.invokeFunctionAsLong("add", 3.0, 5.0));
+        assertEquals("35", context.invokeFunctionAsString("add", "3", 5));
+        assertEquals(8, ((Number) context.invokeFunction("add", 3, 5)).intValue());
+        assertEquals(15L, context.invokeFunctionAsLong("sum", 1, 2, 3, 4, 5));
+    }
+
+    @Test
+    public void testPoolTypedResults() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.evalIntoEngine("lib.js", LIB);
+        assertEquals(8L, pool.invokeFunctionAsLong("add", 3, 5));
+    }
+
+    @Ignore
+    @Test
+    public void typedResultBenchmark() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+
+        for (int o = 0; o < 10; o++) {
+            System.gc();
+            AllocationMeter allocation = AllocationMeter.createStarted();
+            Stopwatch timer = Stopwatch.createStarted();
+            double sum = 0;
+            for (int i = 0; i < 100000; i++) {
+                sum += ((Number) context.invokeFunction("add", 3, 5)).doubleValue();
+            }
+            System.out.format("invokeFunction: %s, %d bytes per call (%s)\n", timer,
+                    allocation.allocated() / 100000, sum);
+
+            System.gc();
+            allocation.restart();
+            timer = Stopwatch.createStarted();
+            sum = 0;
+            for (int i = 0; i < 100000; i++) {
+                sum += context.invokeFunctionAsDouble("add", 3, 5);
+            }
+            // invokeFunction ~60 ns, 144 bytes per call; typed ~40 ns, 24 bytes: the varargs array, small ints
+            // come from the Integer cache
+            System.out.format("invokeFunctionAsDouble: %s, %d bytes per call (%s)\n", timer,
+                    allocation.allocated() / 100000, sum);
+        }
+    }
+
+    @Ignore
+    @Test
+    public void fixedArityAllocationBenchmark() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+        Object[] args = {3.5, 5.5};
+
+        for (int o = 0; o < 10; o++) {
+            System.gc();
+            AllocationMeter allocation = AllocationMeter.createStarted();
+            Stopwatch timer = Stopwatch.createStarted();
+            double sum = 0;
+            for (int i = 0; i < 100000; i++) {
+                sum += ((Number) context.invokeFunction("add", args)).doubleValue();
+            }
+            System.out.format("invokeFunction(String, Object...): %s, %d bytes per call (%s)\n", timer,
+                    allocation.allocated() / 100000, sum);
+
+            System.gc();
+            allocation.restart();
+            timer = Stopwatch.createStarted();
+            sum = 0;
+            for (int i = 0; i < 100000; i++) {
+                sum += ((Number) context.invokeFunction("add", args[0], args[1])).doubleValue();
+            }
+            System.out.format("invokeFunction(String, Object, Object): %s, %d bytes per call (%s)\n", timer,
+                    allocation.allocated() / 100000, sum);
+
+            System.gc();
+            allocation.restart();
+            timer = Stopwatch.createStarted();
+            sum = 0;
+            for (int i = 0; i < 100000; i++) {
+                sum += context.invokeFunctionAsDouble("add", 3.5, 5.5);
+            }
+            // invokeFunction ~80 ns, 120 bytes per call; fixed arity ~75 ns, 24 bytes (the boxed result); double
+            // args ~60 ns, 0 bytes
+            System.out.format("invokeFunctionAsDouble(String, double, double): %s, %d bytes per call (%s)\n",
+                    timer, allocation.allocated() / 100000, sum);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.io.CharSource;
+import de.deverado.framework.js.api.JavascriptFunctionHandle;
+import de.deverado.framework.js.api.JavascriptInvocationResult;
+import de.deverado.framework.js.api.ScriptObjectHandle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class NashornJavascriptEnginePoolTest {
+
+    @Test
+    public void testLibrariesLoadedIntoAllMembers() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(3);
+        pool.evalIntoEngine("globalFunc.js", "function globalFunc(a,b) { return a + b; }\n");
+        LinkedHashMap<String, CharSource> targets = new LinkedHashMap<>();
+        targets.put("someMod.js", CharSource.wrap("exports.func = function() { return 'hallo!'; };"));
+        pool.loadWithRequire(targets);
+
+        for (int i = 0; i < pool.getSize(); i++) {
+            assertEquals(5.0, pool.withMember(i, context -> context.invokeFunction("globalFunc", 3, 2)));
+            assertEquals("hallo!", pool.withMember(i, context -> context.eval("require('someMod').func();")));
+        }
+        assertEquals(2, pool.getLibraryLoads().size());
+    }
+
+    @Test
+    public void testConcurrentInvocations() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.evalIntoEngine("globalFunc.js", "function globalFunc(a,b) { return a + b; }\n");
+
+        ExecutorService threads = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 600; i++) {
+                int a = i;
+                results.add(threads.submit(() -> pool.invokeFunction("globalFunc", a, 1)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i + 1.0, ((Number) results.get(i).get()).doubleValue(), 0);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(2, pool.getAvailableCount());
+    }
+
+    @Test
+    public void testInvokeMethodRoutedToOwningMember() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.evalIntoEngine("globalCode", "gobj = {a: 3, adder: function (b) { return this.a+b;} }");
+
+        Object gobj;
+        try (NashornJavascriptEnginePool.PooledContext blocked = pool.open()) {
+            // forces use of the other member
+            gobj = pool.getScriptObject("gobj");
+            assertTrue(pool.getOwnerIndex(gobj) != blocked.getIndex());
+        }
+        assertEquals(5.0, pool.invokeMethod(gobj, "adder", 2));
+    }
+
+    @Test
+    public void testBatchResultsRoutedToOwningMember() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.evalIntoEngine("globalCode",
+                "function make(a) { return {a: a, adder: function (b) { return this.a+b;} }; }");
+
+        List<JavascriptInvocationResult> results;
+        try (NashornJavascriptEnginePool.PooledContext blocked = pool.open()) {
+            results = pool.invokeFunctionBatch("make", Arrays.asList(new Object[]{1}, new Object[]{2}));
+            assertTrue(pool.getOwnerIndex(results.get(1).getValue()) != blocked.getIndex());
+        }
+        assertEquals(4.0, pool.invokeMethod(results.get(1).getValue(), "adder", 2));
+        List<JavascriptInvocationResult> methodResults = pool.invokeMethodBatch(results.get(0).getValue(), "adder",
+                Collections.singletonList(new Object[]{1}));
+        assertEquals(2.0, methodResults.get(0).getValue());
+
+        // elements of other lists aren't scanned
+        List<?> list = (List<?>) pool.withContext(context -> Arrays.asList(context.invokeFunction("make", 1)));
+        assertEquals(-1, pool.getOwnerIndex(list.get(0)));
+    }
+
+    @Test
+    public void testHandleValidityCheckedOnIdleMember() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.setCheckoutTimeout(50, TimeUnit.MILLISECONDS);
+        pool.evalIntoEngine("globalCode", "function globalFunc(a,b) { return a + b; }\n"
+                + "gobj = {a: 3};");
+        JavascriptFunctionHandle function = pool.getFunctionHandle("globalFunc");
+        ScriptObjectHandle object = pool.getScriptObjectHandle("gobj");
+
+        try (NashornJavascriptEnginePool.PooledContext busy = pool.open()) {
+            assertTrue(function.isValid());
+            assertTrue(object.isValid());
+        }
+
+        pool.evalIntoEngine("replaced", "function globalFunc(a,b) { return a * b; }\ngobj = {a: 4};");
+        assertFalse(function.isValid());
+        assertFalse(object.isValid());
+    }
+
+    @Test
+    public void testCheckoutTimeout() throws Exception {
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(1);
+        pool.setCheckoutTimeout(50, TimeUnit.MILLISECONDS);
+
+        CountDownLatch checkedOut = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try (NashornJavascriptEnginePool.PooledContext ignored = pool.open()) {
+                checkedOut.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        checkedOut.await();
+        try {
+            pool.eval("1 + 1");
+            fail("expected timeout");
+        } catch (IllegalStateException expected) {
+            // ok
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+        assertEquals(2, pool.eval("1 + 1"));
+    }
+}
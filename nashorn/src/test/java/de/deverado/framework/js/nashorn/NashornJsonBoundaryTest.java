@@ -0,0 +1,337 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import de.deverado.framework.js.api.JavascriptJson;
+import de.deverado.framework.js.api.JavascriptJsonConsumer;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import javax.script.ScriptException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class NashornJsonBoundaryTest {
+
+    private static final String LIB = "function echo(a) { return a; }\n" +
+            "function nothing() { }\n" +
+            "function describe(o) { return { name: o.name, count: o.items.length, first: o.items[0].id, " +
+            "nested: o.nested.deep[1] }; }\n" +
+            "function boom() { throw new Error('boom'); }\n";
+
+    @Test
+    public void testInvokeFunctionJson() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+
+        Map<String, Object> arg = new LinkedHashMap<>();
+        arg.put("name", "a \"quoted\"\nname");
+        arg.put("items", Arrays.asList(ImmutableMap.of("id", 1), ImmutableMap.of("id", 2)));
+        arg.put("nested", ImmutableMap.of("deep", new int[]{3, 4}));
+        assertEquals("{\"name\":\"a \\\"quoted\\\"\\nname\",\"count\":2,\"first\":1,\"nested\":4}",
+                context.invokeFunctionJson("describe", arg));
+
+        assertEquals("[1,2.5,null,true,\"X\"]", context.invokeFunctionJson("echo",
+                (Object) new Object[]{1, 2.5, Double.NaN, true, 'X'}));
+        assertEquals("{\"a\":[1]}", context.invokeFunctionJson("echo", JavascriptJson.raw("{\"a\": [1]}")));
+        assertEquals("null", context.invokeFunctionJson("echo", (Object) null));
+        assertNull(context.invokeFunctionJson("nothing"));
+        assertNull(context.invokeFunctionJson("echo"));
+    }
+
+    @Test
+    public void testConsumer() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+
+        RecordingConsumer consumer = new RecordingConsumer();
+        context.invokeFunctionJson(consumer, "echo", JavascriptJson.raw(
+                "{\"a\": [1, 1.5, 1e300, \"s\\u0041\"], \"b\": {\"c\": null, \"d\": false}, \"e\": []}"));
+        assertEquals(Arrays.asList("{", "a", "[", "1L", "1.5", "1.0E300", "\"sA\"", "]", "b", "{", "c", "null", "d",
+                "false", "}", "e", "[", "]", "}"), consumer.tokens);
+
+        consumer = new RecordingConsumer();
+        context.invokeFunctionJson(consumer, "nothing");
+        assertTrue(consumer.tokens.isEmpty());
+
+        NashornJavascriptEnginePool pool = NashornJavascriptEnginePool.createWithNewEngines(2);
+        pool.evalIntoEngine("lib.js", LIB);
+        assertEquals("{\"x\":1}", pool.invokeFunctionJson("echo", ImmutableMap.of("x", 1)));
+        consumer = new RecordingConsumer();
+        pool.invokeFunctionJson(consumer, "echo", "y");
+        assertEquals(Arrays.asList("\"y\""), consumer.tokens);
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+
+        try {
+            context.invokeFunctionJson("boom");
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof ScriptException);
+        }
+        try {
+            context.invokeFunctionJson("echo", JavascriptJson.raw("{broken"));
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof ScriptException);
+        }
+        try {
+            context.invokeFunctionJson("echo", new Object());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Map<String, Object> cyclic = new LinkedHashMap<>();
+        cyclic.put("self", Arrays.asList(1, cyclic));
+        try {
+            context.invokeFunctionJson("echo", cyclic);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("cycle"));
+        }
+        // shared, not cyclic
+        List<Integer> shared = Arrays.asList(1, 2);
+        assertEquals("[[1,2],[1,2]]", JavascriptJson.toJson(Arrays.asList(shared, shared)));
+        for (String malformed : new String[]{"", "{", "[1,]", "{\"a\" 1}", "tru", "\"open", "1 2", "-"}) {
+            try {
+                JavascriptJson.parse(malformed, new RecordingConsumer());
+                fail(malformed);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // still usable
+        assertEquals("1", context.invokeFunctionJson("echo", 1));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("text", "tab\t\u0001 \u00e4");
+        value.put("numbers", Arrays.asList(0, -1, Long.MAX_VALUE, 0.25, -2.5e-10));
+        value.put("flags", new boolean[]{true, false});
+        value.put("none", null);
+        value.put("empty", ImmutableMap.of());
+        String json = JavascriptJson.toJson(value);
+
+        TreeConsumer tree = new TreeConsumer();
+        JavascriptJson.parse(json, tree);
+        Map<String, Object> expected = new LinkedHashMap<>(value);
+        expected.put("flags", Arrays.asList(true, false));
+        expected.put("numbers", Arrays.asList(0L, -1L, Long.MAX_VALUE, 0.25, -2.5e-10));
+        assertEquals(expected, tree.result);
+    }
+
+    /**
+     * Compares handing nested data over as java objects and walking the result mirrors into java objects with the
+     * JSON boundary mode, for growing payload sizes.
+     */
+    @Ignore
+    @Test
+    public void jsonBoundaryBenchmark() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", "function transform(o) { var r = { id: o.id, items: [] }; " +
+                "for (var i = 0; i < o.items.length; i++) { var item = o.items[i]; " +
+                "r.items.push({ name: item.name + '!', value: item.value * 2, tags: item.tags }); } return r; }");
+
+        for (int size : new int[]{1, 10, 100, 1000}) {
+            Map<String, Object> payload = createPayload(size);
+            int calls = 100000 / size;
+            for (int o = 0; o < 5; o++) {
+                System.gc();
+                Stopwatch timer = Stopwatch.createStarted();
+                Object sink = null;
+                for (int i = 0; i < calls; i++) {
+                    sink = toJava(context.invokeFunction("transform", payload));
+                }
+                System.out.format("size %d mirrors: %s (%s)\n", size, timer, sink.hashCode());
+
+                System.gc();
+                timer = Stopwatch.createStarted();
+                for (int i = 0; i < calls; i++) {
+                    TreeConsumer tree = new TreeConsumer();
+                    context.invokeFunctionJson(tree, "transform", payload);
+                    sink = tree.result;
+                }
+                // JDK 8 Nashorn: size 1: mirrors 420 ms, json 760 ms; 10: 220 vs 600; 100: 210 vs 450; 1000: 170 vs
+                // 420 - the native JSON.parse and JSON.stringify dominate, parsing with JavascriptJson is ~10%
+                System.out.format("size %d json: %s (%s)\n", size, timer, sink.hashCode());
+            }
+        }
+    }
+
+    private static Map<String, Object> createPayload(int size) {
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            items.add(ImmutableMap.of("name", "item" + i, "value", i, "tags", Arrays.asList("a", "b")));
+        }
+        return ImmutableMap.of("id", "payload", "items", items);
+    }
+
+    private static Object toJava(Object value) {
+        if (value instanceof ScriptObjectMirror) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror) value;
+            if (mirror.isArray()) {
+                List<Object> result = new ArrayList<>();
+                for (Object element : mirror.values()) {
+                    result.add(toJava(element));
+                }
+                return result;
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> e : mirror.entrySet()) {
+                result.put(e.getKey(), toJava(e.getValue()));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    private static class RecordingConsumer implements JavascriptJsonConsumer {
+
+        final List<String> tokens = new ArrayList<>();
+
+        @Override
+        public void writeStartObject() {
+            tokens.add("{");
+        }
+
+        @Override
+        public void writeEndObject() {
+            tokens.add("}");
+        }
+
+        @Override
+        public void writeStartArray() {
+            tokens.add("[");
+        }
+
+        @Override
+        public void writeEndArray() {
+            tokens.add("]");
+        }
+
+        @Override
+        public void writeFieldName(String name) {
+            tokens.add(name);
+        }
+
+        @Override
+        public void writeString(String text) {
+            tokens.add("\"" + text + "\"");
+        }
+
+        @Override
+        public void writeNumber(long number) {
+            tokens.add(number + "L");
+        }
+
+        @Override
+        public void writeNumber(double number) {
+            tokens.add(Double.toString(number));
+        }
+
+        @Override
+        public void writeBoolean(boolean state) {
+            tokens.add(Boolean.toString(state));
+        }
+
+        @Override
+        public void writeNull() {
+            tokens.add("null");
+        }
+    }
+
+    /**
+     * Builds maps and lists.
+     */
+    private static class TreeConsumer implements JavascriptJsonConsumer {
+
+        private final List<Object> stack = new ArrayList<>();
+
+        private final List<String> fieldNames = new ArrayList<>();
+
+        Object result;
+
+        @Override
+        public void writeStartObject() {
+            stack.add(new LinkedHashMap<String, Object>());
+        }
+
+        @Override
+        public void writeEndObject() {
+            add(stack.remove(stack.size() - 1));
+        }
+
+        @Override
+        public void writeStartArray() {
+            stack.add(new ArrayList<>());
+        }
+
+        @Override
+        public void writeEndArray() {
+            add(stack.remove(stack.size() - 1));
+        }
+
+        @Override
+        public void writeFieldName(String name) {
+            fieldNames.add(name);
+        }
+
+        @Override
+        public void writeString(String text) {
+            add(text);
+        }
+
+        @Override
+        public void writeNumber(long number) {
+            add(number);
+        }
+
+        @Override
+        public void writeNumber(double number) {
+            add(number);
+        }
+
+        @Override
+        public void writeBoolean(boolean state) {
+            add(state);
+        }
+
+        @Override
+        public void writeNull() {
+            add(null);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object value) {
+            if (stack.isEmpty()) {
+                result = value;
+                return;
+            }
+            Object parent = stack.get(stack.size() - 1);
+            if (parent instanceof Map) {
+                ((Map<String, Object>) parent).put(fieldNames.remove(fieldNames.size() - 1), value);
+            } else {
+                ((List<Object>) parent).add(value);
+            }
+        }
+    }
+}
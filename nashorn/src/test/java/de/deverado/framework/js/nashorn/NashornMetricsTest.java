@@ -0,0 +1,113 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import de.deverado.framework.js.api.JavascriptFunctionStats;
+import de.deverado.framework.js.api.JavascriptLatencyHistogram;
+import de.deverado.framework.js.api.JmxJavascriptMetrics;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class NashornMetricsTest {
+
+    @Test
+    public void testContextAndHolderReport() throws Exception {
+        JmxJavascriptMetrics metrics = JmxJavascriptMetrics.create();
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine()
+                .setMetrics(metrics);
+        context.getEngineHolder().setMetrics(metrics);
+        context.evalIntoEngine("lib.js", "function add(a, b) { return a + b; }\n" +
+                "function fail() { throw new Error('failing'); }");
+        assertEquals(1, metrics.getEvalIntoEngineCount());
+
+        context.invokeFunction("add", 1, 2);
+        context.invokeFunctionAsDouble("add", 1, 2);
+        context.invokeFunctionBatch("add", Arrays.asList(new Object[]{1, 2}, new Object[]{3, 4}));
+        try {
+            context.invokeFunction("fail");
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        context.invokeFunctionBatch("fail", Collections.singletonList(new Object[0]));
+        context.eval("1 + 1");
+
+        assertEquals(5, metrics.getInvocationCount());
+        assertEquals(2, metrics.getInvocationErrorCount());
+        assertEquals(1, metrics.getEvalCount());
+        JavascriptFunctionStats add = metrics.getFunctionStats().get("add");
+        assertEquals(3, add.getCount());
+        assertEquals(0, add.getErrorCount());
+        assertEquals(2, metrics.getFunctionStats().get("fail").getErrorCount());
+
+        context.getEngineHolder().withEngine(engine -> {
+            Thread concurrent = new Thread(() -> {
+                try {
+                    context.eval("1");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            });
+            concurrent.start();
+            try {
+                concurrent.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+        assertEquals(1, metrics.getEngineContentionCount());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        JmxJavascriptMetrics metrics = JmxJavascriptMetrics.create(1).register("test");
+        try {
+            metrics.invocationCompleted("first", TimeUnit.MILLISECONDS.toNanos(3));
+            metrics.invocationCompleted("second", TimeUnit.MILLISECONDS.toNanos(5));
+            metrics.taskCompleted(TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2), true);
+
+            ObjectName name = metrics.getRegisteredName();
+            assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "InvocationCount"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TaskErrorCount"));
+            TabularData functions = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                    "FunctionStats");
+            // names above the limit are counted together
+            CompositeData other = (CompositeData) functions.get(new Object[]{JmxJavascriptMetrics.OTHER_FUNCTIONS})
+                    .get("value");
+            assertEquals(1L, other.get("count"));
+        } finally {
+            metrics.unregister();
+        }
+        assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("de.deverado.framework.js:type=JavascriptMetrics,name=\"test\"")));
+    }
+
+    @Test
+    public void testLatencyHistogram() throws Exception {
+        JavascriptLatencyHistogram histogram = new JavascriptLatencyHistogram();
+        assertEquals(0, histogram.getQuantileNanos(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getMeanNanos());
+        // exact to a factor of two
+        long median = histogram.getQuantileNanos(0.5);
+        assertTrue(median >= 50000 && median < 100000);
+        assertEquals(100000, histogram.getQuantileNanos(0.99));
+    }
+}
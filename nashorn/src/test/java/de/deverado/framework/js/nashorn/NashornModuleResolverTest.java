@@ -0,0 +1,56 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharSource;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class NashornModuleResolverTest {
+
+    @Test
+    public void testResolve() throws Exception {
+        CharSource a = CharSource.wrap("");
+        CharSource b = CharSource.wrap("");
+        NashornModuleResolver resolver = new NashornModuleResolver();
+        resolver.addTargets(ImmutableMap.of("./lib/a.js", a, "b", b));
+        assertEquals(2, resolver.size());
+
+        assertSame(a, resolver.getEntry("/lib/a.js").getValue());
+        assertEquals("./lib/a.js", resolver.getEntry("/lib/a.js").getKey());
+        assertEquals("/lib", resolver.getDirectory("/lib/a.js"));
+        assertEquals("/", resolver.getDirectory("/b.js"));
+
+        assertEquals("/lib/a.js", resolver.resolve("/", "lib/a"));
+        assertEquals("/lib/a.js", resolver.resolve("/", "./lib/a.js"));
+        assertEquals("/lib/c.js", resolver.resolve("/lib", "./c"));
+        assertEquals("/b.js", resolver.resolve("/lib", "../b"));
+        assertEquals("/b.js", resolver.resolve("/lib", "/b"));
+        assertEquals("/lib/a.js", resolver.resolve("", "lib/a"));
+        // cached
+        assertSame(resolver.resolve("/lib", "./c"), resolver.resolve("/lib", "./c"));
+
+        assertNull(resolver.getEntry(resolver.resolve("/lib", "b")));
+        assertNull(resolver.getDirectory("/lib/c.js"));
+    }
+
+    @Test
+    public void testCollision() throws Exception {
+        NashornModuleResolver resolver = new NashornModuleResolver();
+        resolver.addTargets(Collections.singletonMap("lib/a", CharSource.wrap("")));
+        try {
+            resolver.addTargets(Collections.singletonMap("./lib/x/../a.js", CharSource.wrap("")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class NashornTenantContextsTest {
+
+    private static NashornTenantContexts createContexts(long maxTenants) {
+        return NashornTenantContexts.create(NashornJavascriptEngineHolder.createWithNewEngine(),
+                context -> context.evalIntoEngine("lib.js", "var config = { mode: 'safe' };" +
+                        "function greet(who) { return greeting + who; }"),
+                maxTenants)
+                .setTenantLoad((tenant, context) -> context.evalIntoEngine(tenant + ".js",
+                        "var greeting = 'hello " + tenant + ", '; var seen = [];" +
+                        "function visit(who) { seen.push(who); return seen.length; }"));
+    }
+
+    @Test
+    public void testTenantsAreIsolated() throws Exception {
+        NashornTenantContexts contexts = createContexts(10);
+        assertNull(contexts.getTemplate());
+
+        NashornJavascriptEngineContext a = contexts.get("a");
+        NashornJavascriptEngineContext b = contexts.get("b");
+        assertSame(a, contexts.get("a"));
+        assertEquals(1, contexts.getLibraryLoadCount());
+
+        assertEquals(1, a.invokeFunction("visit", "x"));
+        assertEquals(2, a.invokeFunction("visit", "y"));
+        assertEquals(1, b.invokeFunction("visit", "z"));
+        assertEquals("hello b, you", b.eval("greet('you')"));
+
+        assertEquals(1, contexts.getStats().hitCount());
+        assertEquals(2, contexts.getStats().missCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTenantsAreDropped() throws Exception {
+        NashornTenantContexts contexts = createContexts(2);
+        NashornJavascriptEngineContext a = contexts.get("a");
+        a.invokeFunction("visit", "x");
+        contexts.get("b");
+        contexts.get("a");
+        contexts.get("c");
+
+        assertEquals(2, contexts.size());
+        assertNull(contexts.getIfPresent("b"));
+        assertSame(a, contexts.getIfPresent("a"));
+        assertEquals(1, contexts.getStats().evictionCount());
+
+        // a new context for a dropped tenant, the libraries aren't loaded again
+        NashornJavascriptEngineContext b = contexts.get("b");
+        assertEquals(1, b.invokeFunction("visit", "x"));
+        assertEquals(1, contexts.getLibraryLoadCount());
+
+        contexts.invalidate("a");
+        assertNotSame(a, contexts.get("a"));
+    }
+
+    @Test
+    public void testTenantsCantChangeLibrariesForEachOther() throws Exception {
+        NashornTenantContexts contexts = createContexts(10);
+        NashornJavascriptEngineContext a = contexts.get("a");
+        NashornJavascriptEngineContext b = contexts.get("b");
+
+        a.evalIntoEngine("evil.js", "config.mode = 'evil'; config.added = 1; greet.added = 1;" +
+                "Object.getPrototypeOf(config).evil = 1; Object.prototype.evil = 1; Array.prototype.push = null;");
+        assertEquals("safe", b.eval("config.mode"));
+        assertEquals("undefined,undefined", b.eval("typeof config.added + ',' + typeof greet.added"));
+        assertEquals("undefined,undefined", b.eval("typeof config.evil + ',' + typeof ({}).evil"));
+        assertEquals(1, b.invokeFunction("visit", "x"));
+        assertEquals("hello b, you", b.eval("greet('you')"));
+        assertEquals("safe", a.eval("config.mode"));
+    }
+
+    @Test
+    public void testEngineReplacementDropsContexts() throws Exception {
+        NashornTenantContexts contexts = createContexts(10);
+        NashornJavascriptEngineContext a = contexts.get("a");
+        a.invokeFunction("visit", "x");
+        NashornContextTemplate template = contexts.getTemplate();
+
+        a.recycle();
+        NashornJavascriptEngineContext newA = contexts.get("a");
+        assertNotSame(a, newA);
+        assertNotSame(template, contexts.getTemplate());
+        assertEquals(2, contexts.getLibraryLoadCount());
+        assertEquals(1, newA.invokeFunction("visit", "y"));
+        assertEquals("hello a, you", newA.eval("greet('you')"));
+        assertSame(newA, contexts.get("a"));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class NashornTypedArraysTest {
+
+    private static final String LIB =
+            "function sum(v) { var s = 0; for (var i = 0; i < v.length; i++) { s += v[i]; } return s; }\n" +
+            "function fill(v, x) { for (var i = 0; i < v.length; i++) { v[i] = x; } return v; }\n" +
+            "function describe(v) { return [Array.isArray(v), v.length, v[v.length], " +
+            "Array.prototype.map.call(v, function(e) { return e * 2; }).join(',')].join(' '); }\n" +
+            "function numbers() { return [1, 2.5, 'x']; }\n" +
+            "function floats() { var t = new Float64Array(2); t[0] = 1.5; t[1] = 2.5; return t; }\n" +
+            "function capacity(b) { return b.capacity(); }\n";
+
+    @Test
+    public void testWrappedByteBufferWithoutCopy() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4);
+        buffer.put(new byte[]{1, 2, 3, (byte) 200});
+        buffer.flip();
+        Object view = context.wrapBuffer(buffer);
+
+        assertEquals(206.0, ((Number) context.invokeFunction("sum", view)).doubleValue(), 0);
+        assertEquals(206L, context.invokeFunctionAsLong("sum", view));
+        assertEquals("true 4  2,4,6,400", context.invokeFunction("describe", view));
+        assertArrayEquals(new int[]{1, 2, 3, 200}, NashornTypedArrays.toIntArray(view));
+
+        // writes go to the buffer, converted like a Uint8Array does
+        context.invokeFunction("fill", view, 257);
+        assertEquals(1, buffer.get(0));
+        assertEquals(0, buffer.position());
+
+        // view starts at the position
+        buffer.position(2);
+        assertEquals(2L, context.invokeFunctionAsLong("sum", context.wrapBuffer(buffer)));
+        assertEquals(Arrays.asList(1, 1), context.setDetachResults(true).invokeFunction("fill",
+                context.wrapBuffer(buffer), 1));
+    }
+
+    @Test
+    public void testByteBufferArgsPassedAsTheyAre() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+        assertEquals(8, ((Number) context.invokeFunction("capacity", ByteBuffer.allocate(8))).intValue());
+        assertEquals(8L, context.invokeFunctionAsLong("capacity", ByteBuffer.allocate(8)));
+    }
+
+    @Test
+    public void testMappedBuffer() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+        File file = File.createTempFile("typedArrays", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 3);
+            Object view = context.wrapBuffer(mapped);
+            context.invokeFunction("fill", view, 7);
+            assertEquals(21L, context.invokeFunctionAsLong("sum", view));
+            mapped.force();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            assertEquals(7, raf.read());
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrayViews() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+        int[] ints = {1, 2, 3};
+        double[] doubles = {0.5, 1.5};
+
+        assertEquals("true 3  2,4,6", context.invokeFunction("describe", NashornTypedArrays.wrap(ints)));
+        context.invokeFunction("fill", NashornTypedArrays.wrap(ints), 4.7);
+        assertArrayEquals(new int[]{4, 4, 4}, ints);
+
+        assertEquals(2.0, context.invokeFunctionAsDouble("sum", NashornTypedArrays.wrap(doubles)), 0);
+        Object returned = context.invokeFunction("fill", NashornTypedArrays.wrap(doubles), 2.5);
+        assertSame(doubles, NashornTypedArrays.toDoubleArray(returned));
+        assertTrue(Arrays.equals(new double[]{2.5, 2.5}, doubles));
+    }
+
+    @Test
+    public void testToPrimitiveArrays() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", LIB);
+
+        double[] numbers = NashornTypedArrays.toDoubleArray(context.invokeFunction("numbers"));
+        assertEquals(3, numbers.length);
+        assertEquals(2.5, numbers[1], 0);
+        assertTrue(Double.isNaN(numbers[2]));
+        assertArrayEquals(new int[]{1, 2, 0}, NashornTypedArrays.toIntArray(context.invokeFunction("numbers")));
+
+        assertArrayEquals(new double[]{1.5, 2.5}, NashornTypedArrays.toDoubleArray(context.invokeFunction("floats")),
+                0);
+        assertArrayEquals(new int[]{1, 2}, NashornTypedArrays.toIntArray(context.invokeFunction("floats")));
+
+        assertArrayEquals(new double[]{1, 255}, NashornTypedArrays.toDoubleArray(
+                context.wrapBuffer(ByteBuffer.wrap(new byte[]{1, (byte) 255}))), 0);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+package de.deverado.framework.js.nashorn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import de.deverado.framework.js.api.JavascriptFunctionHandle;
+import de.deverado.framework.js.api.JavascriptTimeoutException;
+import de.deverado.framework.js.api.JmxJavascriptMetrics;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class NashornWatchdogTest {
+
+    private final NashornWatchdog watchdog = NashornWatchdog.create(5, 50, TimeUnit.MILLISECONDS);
+
+    @Test
+    public void testRunawayScriptStoppedAndEngineRecycled() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", "function spin() { while (true) {} }\nfunction add(a, b) { return a + b; }");
+        try {
+            watchdog.call(TimeUnit.MILLISECONDS.toNanos(50), -1, () -> context.invokeFunction("spin"));
+            fail("expected timeout");
+        } catch (JavascriptTimeoutException expected) {
+            assertTrue(expected.isEngineStopped());
+        }
+        assertTrue(context.getEngineHolder().isCorrupt());
+
+        assertEquals(3.0, ((Number) context.invokeFunction("add", 1, 2)).doubleValue(), 0);
+        assertEquals(1, context.getRecycleCount());
+        assertFalse(context.getEngineHolder().isCorrupt());
+        assertEquals(0, watchdog.getActiveCount());
+    }
+
+    @Test
+    public void testContextsSharingTheEngineReloadAfterRecycle() throws Exception {
+        NashornJavascriptEngineHolder holder = NashornJavascriptEngineHolder.createWithNewEngine();
+        NashornJavascriptEngineContext first = NashornJavascriptEngineContext.createForExistingEngine(holder);
+        NashornJavascriptEngineContext second = NashornJavascriptEngineContext.createForExistingEngine(holder);
+        first.evalIntoEngine("lib.js", "function spin() { while (true) {} }");
+        second.evalIntoEngine("lib.js", "var offset = 10; function add(a, b) { return a + b + offset; }");
+        JavascriptFunctionHandle add = second.getFunctionHandle("add");
+        assertEquals(13.0, second.invokeFunctionAsDouble("add", 1, 2), 0);
+
+        try {
+            watchdog.call(TimeUnit.MILLISECONDS.toNanos(50), -1, () -> first.invokeFunction("spin"));
+            fail("expected timeout");
+        } catch (JavascriptTimeoutException expected) {
+            assertTrue(expected.isEngineStopped());
+        }
+        first.eval("1");
+        assertEquals(1, first.getRecycleCount());
+
+        // second loads its libraries into the new engine
+        assertFalse(add.isValid());
+        assertEquals(13.0, second.invokeFunctionAsDouble("add", 1, 2), 0);
+        assertEquals(13, ((Number) second.invokeFunction("add", 1, 2)).intValue());
+        assertEquals("function", second.eval("typeof add"));
+        assertEquals(0, second.getRecycleCount());
+    }
+
+    @Test
+    public void testAbandonedScriptFinishingLaterLeavesEngineAlone() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", "function slow(ms) { var end = Date.now() + ms; while (Date.now() < end) {} " +
+                "return ms; }\nfunction add(a, b) { return a + b; }");
+        try {
+            watchdog.call(TimeUnit.MILLISECONDS.toNanos(20), -1, () -> context.invokeFunction("slow", 500));
+            fail("expected timeout");
+        } catch (JavascriptTimeoutException expected) {
+            assertTrue(expected.isEngineStopped());
+        }
+        assertEquals(0, watchdog.getActiveCount());
+        assertEquals(1, watchdog.getAbandonedCount());
+
+        // the engine is unlocked although the abandoned script still runs, and replaced
+        assertEquals(3.0, ((Number) context.invokeFunction("add", 1, 2)).doubleValue(), 0);
+        assertEquals(1, context.getRecycleCount());
+        context.getEngineHolder().withEngine(engine -> {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (watchdog.getAbandonedCount() > 0 && System.nanoTime() < end) {
+                Thread.yield();
+            }
+            return null;
+        });
+        assertEquals(0, watchdog.getAbandonedCount());
+        // its late release didn't unlock the engine for others
+        assertEquals(2, watchdog.call(TimeUnit.SECONDS.toNanos(10), -1, () -> context.eval("1 + 1")));
+        assertEquals(1, context.getRecycleCount());
+    }
+
+    @Test
+    public void testBudgetedCallsRejectedWhileTooManyThreadsAbandoned() throws Exception {
+        JmxJavascriptMetrics metrics = JmxJavascriptMetrics.create();
+        watchdog.setMaxAbandoned(1).setMetrics(metrics);
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        context.evalIntoEngine("lib.js", "function slow(ms) { var end = Date.now() + ms; while (Date.now() < end) {} " +
+                "return ms; }");
+        try {
+            watchdog.call(TimeUnit.MILLISECONDS.toNanos(20), -1, () -> context.invokeFunction("slow", 500));
+            fail("expected timeout");
+        } catch (JavascriptTimeoutException expected) {
+            assertTrue(expected.isEngineStopped());
+        }
+        assertFalse(watchdog.isHealthy());
+        assertEquals(1, metrics.getScriptAbandonedCount());
+        assertEquals(1, metrics.getAbandonedRunning());
+        try {
+            watchdog.call(TimeUnit.SECONDS.toNanos(10), -1, () -> context.eval("1 + 1"));
+            fail("expected rejection");
+        } catch (RejectedExecutionException expected) {
+            // fails fast instead of risking another thread
+        }
+        // calls without budget run in the caller thread
+        assertEquals(2, watchdog.call(-1, -1, () -> context.eval("1 + 1")));
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (watchdog.getAbandonedCount() > 0 && System.nanoTime() < end) {
+            Thread.sleep(5);
+        }
+        assertTrue(watchdog.isHealthy());
+        assertEquals(0, metrics.getAbandonedRunning());
+        assertEquals(2, watchdog.call(TimeUnit.SECONDS.toNanos(10), -1, () -> context.eval("1 + 1")));
+    }
+
+    @Test
+    public void testInterruptibleWorkOnlyInterrupted() throws Exception {
+        try {
+            watchdog.call(TimeUnit.MILLISECONDS.toNanos(20), -1, () -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
+            fail("expected timeout");
+        } catch (JavascriptTimeoutException expected) {
+            assertFalse(expected.isEngineStopped());
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testWorkWithinBudgetUnaffected() throws Exception {
+        NashornJavascriptEngineContext context = NashornJavascriptEngineContext.createWithNewEngine();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(2, watchdog.call(TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10),
+                    () -> context.eval("1 + 1")));
+        }
+        assertEquals(0, context.getRecycleCount());
+    }
+}